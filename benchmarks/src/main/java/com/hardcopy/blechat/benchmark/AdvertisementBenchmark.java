@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.benchmark;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hardcopy.blechat.bluetooth.AdvertisementFilter;
+import com.hardcopy.blechat.bluetooth.AdvertisementParser;
+
+/**
+ * Scan callback work per advertisement. Both should report 0 bytes per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdvertisementBenchmark {
+
+	private static final int RECORD_COUNT = 1024;
+	private static final UUID SERVICE_UUID = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+	private byte[][] mRecords;
+	private AdvertisementParser mParser;
+	private AdvertisementFilter mFilter;
+	private int mIndex = 0;
+
+	@Setup
+	public void setup() {
+		mRecords = BenchmarkData.makeScanRecords(new Random(42), RECORD_COUNT, SERVICE_UUID);
+		mParser = new AdvertisementParser();
+		mFilter = new AdvertisementFilter.Builder().addServiceUuid(SERVICE_UUID).build();
+	}
+
+	/**
+	 * Precompiled filter, as in BleManager scan callback
+	 */
+	@Benchmark
+	public boolean filter() {
+		return mFilter.matches(nextRecord(), -60);
+	}
+
+	/**
+	 * Every AD structure of the record
+	 */
+	@Benchmark
+	public int parse() {
+		mParser.parse(nextRecord());
+		return mParser.getServiceUuidCount() + mParser.getNameLength() + mParser.getManufacturerId();
+	}
+
+	private byte[] nextRecord() {
+		mIndex = (mIndex + 1) & (RECORD_COUNT - 1);
+		return mRecords[mIndex];
+	}
+
+}
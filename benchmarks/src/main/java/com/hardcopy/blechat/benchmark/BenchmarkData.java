@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.benchmark;
+
+import java.util.Random;
+import java.util.UUID;
+
+import com.hardcopy.blechat.bluetooth.TransactionReceiver;
+
+/**
+ * Randomized inputs. Same seed makes same data, so runs can be compared.
+ */
+class BenchmarkData {
+
+	private static final String NOISE = "abcdefghijklmnopqrstuvwxyz0123456789 .,:;=&[]*\n";
+
+	/**
+	 * Chat text with commands in it. About 1 of 4 commands is broken.
+	 */
+	static String makeCommandStream(Random random, int length) {
+		StringBuilder sb = new StringBuilder(length + 64);
+		while(sb.length() < length) {
+			int noise = random.nextInt(200);
+			for(int i=0; i<noise; i++)
+				sb.append(NOISE.charAt(random.nextInt(NOISE.length())));
+
+			switch(random.nextInt(4)) {
+			case 0:
+				sb.append("thingsp");		// Broken prefix
+				break;
+			case 1:
+				sb.append("thingspeak:key=ABCDEF&field1=").append(random.nextInt(1000));	// No suffix yet
+				break;
+			default:
+				sb.append("thingspeak:key=ABCDEF&field1=").append(random.nextInt(1000))
+						.append("&field2=").append(random.nextInt(100000)).append("[*]");
+				break;
+			}
+		}
+		sb.setLength(length);
+		return sb.toString();
+	}
+
+	/**
+	 * Frames of TransactionReceiver protocol with random payloads.
+	 * Some bytes are corrupted so the parser has to resynchronize.
+	 */
+	static byte[] makeFrameStream(Random random, int length, int maxDataLength, double errorRate) {
+		byte[] stream = new byte[length];
+		int offset = 0;
+		while(offset < length) {
+			int dataLength = random.nextInt(maxDataLength + 1);
+			byte[] frame = new byte[dataLength + 5];
+			frame[0] = TransactionReceiver.START_BYTE;
+			frame[1] = (byte) random.nextInt(128);
+			frame[2] = (byte) dataLength;
+			for(int i=0; i<dataLength; i++)
+				frame[3 + i] = (byte) random.nextInt(256);
+			frame[dataLength + 3] = (byte) crc8(frame, 1, dataLength + 2);
+			frame[dataLength + 4] = TransactionReceiver.END_BYTE;
+			if(random.nextDouble() < errorRate)
+				frame[1 + random.nextInt(frame.length - 1)] ^= 0x5A;
+
+			int count = Math.min(frame.length, length - offset);
+			System.arraycopy(frame, 0, stream, offset, count);
+			offset += count;
+		}
+		return stream;
+	}
+
+	/**
+	 * 62 byte scan records (advertising data + scan response, zero padded) with flags,
+	 * 16 bit UUIDs, manufacturer data and name. About 1 of 8 also advertises targetUuid.
+	 */
+	static byte[][] makeScanRecords(Random random, int count, UUID targetUuid) {
+		byte[][] records = new byte[count][];
+		for(int n=0; n<count; n++) {
+			byte[] record = new byte[62];
+			int p = 0;
+			record[p++] = 2;
+			record[p++] = 0x01;
+			record[p++] = 0x06;
+
+			int uuidCount = 1 + random.nextInt(3);
+			record[p++] = (byte) (1 + uuidCount * 2);
+			record[p++] = 0x03;
+			for(int i=0; i<uuidCount; i++) {
+				record[p++] = (byte) random.nextInt(256);
+				record[p++] = 0x18;
+			}
+
+			if(random.nextInt(8) == 0) {
+				long msb = targetUuid.getMostSignificantBits();
+				long lsb = targetUuid.getLeastSignificantBits();
+				record[p++] = 17;
+				record[p++] = 0x07;
+				for(int i=0; i<8; i++)
+					record[p++] = (byte) (lsb >>> (8 * i));
+				for(int i=0; i<8; i++)
+					record[p++] = (byte) (msb >>> (8 * i));
+			}
+
+			int dataLength = random.nextInt(8);
+			record[p++] = (byte) (3 + dataLength);
+			record[p++] = (byte) 0xFF;
+			record[p++] = (byte) random.nextInt(256);
+			record[p++] = 0x00;
+			for(int i=0; i<dataLength; i++)
+				record[p++] = (byte) random.nextInt(256);
+
+			int nameLength = Math.min(62 - p - 2, 4 + random.nextInt(8));
+			if(nameLength > 0) {
+				record[p++] = (byte) (1 + nameLength);
+				record[p++] = 0x09;
+				for(int i=0; i<nameLength; i++)
+					record[p++] = (byte) NOISE.charAt(random.nextInt(26));
+			}
+			records[n] = record;
+		}
+		return records;
+	}
+
+	/**
+	 * CRC-8 (polynomial 0x07) over command, length and data, same as TransactionReceiver
+	 */
+	private static int crc8(byte[] buffer, int offset, int count) {
+		int crc = 0;
+		for(int i = offset; i < offset + count; i++) {
+			crc ^= buffer[i] & 0xFF;
+			for(int bit=0; bit<8; bit++)
+				crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+		}
+		return crc;
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hardcopy.blechat.contents.CommandParser;
+import com.hardcopy.blechat.utils.Logs;
+
+/**
+ * CommandParser on a long random stream with ThingSpeak commands,
+ * broken prefixes and unterminated commands mixed in.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParserBenchmark {
+
+	private static final int CHUNK_SIZE = 20;		// Notification payload with default MTU
+
+	@Param({"4096", "65536"})
+	public int mStreamLength;
+
+	private String mStream;
+	private byte[] mBytes;
+	private CommandParser mParser;
+
+	@Setup
+	public void setup() {
+		Logs.mIsEnabled = false;		// android.util.Log is a stub on JVM
+		mStream = BenchmarkData.makeCommandStream(new Random(42), mStreamLength);
+		mBytes = mStream.getBytes();
+		mParser = new CommandParser();
+		mParser.registerCommand(CommandParser.COMMAND_THINGSPEAK, CommandParser.THINGSPEAK_PREFIX,
+				CommandParser.COMMAND_SUFFIX, null);
+	}
+
+	/**
+	 * Whole stream at once, then take every command found
+	 */
+	@Benchmark
+	public int setString() {
+		mParser.setString(mStream);
+		return drainCommands();
+	}
+
+	/**
+	 * Stream in notification sized chunks. Commands are checked after each chunk like the service does.
+	 */
+	@Benchmark
+	public int setBytesAndCheckCommands() {
+		int count = 0;
+		for(int offset = 0; offset < mBytes.length; offset += CHUNK_SIZE) {
+			mParser.setBytes(mBytes, offset, Math.min(CHUNK_SIZE, mBytes.length - offset));
+			count += drainCommands();
+		}
+		return count;
+	}
+
+	private int drainCommands() {
+		int count = 0;
+		while(mParser.nextCommand())
+			count += mParser.getParameterString().length();
+		return count;
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hardcopy.blechat.bluetooth.TransactionBuilder;
+
+/**
+ * Encoding a message into a transaction. Nothing is sent (no BleManager).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBuilderBenchmark {
+
+	@Param({"20", "512"})
+	public int mMessageLength;
+
+	private String mMessage;
+	private TransactionBuilder.Transaction mTransaction;
+
+	@Setup
+	public void setup() {
+		mMessage = BenchmarkData.makeCommandStream(new Random(42), mMessageLength);
+		mTransaction = new TransactionBuilder(null, null).makeTransaction();
+	}
+
+	@Benchmark
+	public TransactionBuilder.Transaction settingFinished() {
+		mTransaction.begin();
+		mTransaction.setMessage(mMessage);
+		mTransaction.settingFinished();
+		return mTransaction;
+	}
+
+}
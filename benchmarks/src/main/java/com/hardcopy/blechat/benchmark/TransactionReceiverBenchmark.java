@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hardcopy.blechat.bluetooth.TransactionReceiver;
+
+/**
+ * TransactionReceiver.parseStream() on a stream of random frames, 1% of them corrupted
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionReceiverBenchmark {
+
+	@Param({"4096", "65536"})
+	public int mStreamLength;
+
+	private byte[] mStream;
+	private TransactionReceiver mReceiver;
+	private int mFrameBytes = 0;
+
+	@Setup
+	public void setup() {
+		mStream = BenchmarkData.makeFrameStream(new Random(42), mStreamLength,
+				TransactionReceiver.MAX_DATA_LENGTH, 0.01);
+		mReceiver = new TransactionReceiver(null);
+		mReceiver.setOnFrameListener(new TransactionReceiver.OnFrameListener() {
+			@Override
+			public void onFrameReceived(TransactionReceiver.Frame frame) {
+				mFrameBytes += frame.getLength();
+			}
+		});
+	}
+
+	@Benchmark
+	public int parseStream() {
+		mFrameBytes = 0;
+		mReceiver.parseStream(mStream, mStream.length);
+		return mFrameBytes;
+	}
+
+}
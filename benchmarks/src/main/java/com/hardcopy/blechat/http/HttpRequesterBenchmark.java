@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.http;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HttpRequester.buildParameters(). In http package because the method is protected.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequesterBenchmark {
+
+	@Param({"4", "32"})
+	public int mParameterCount;
+
+	private Map<String, Object> mParams;
+	private HttpRequester mRequester;
+
+	@Setup
+	public void setup() {
+		mParams = new LinkedHashMap<String, Object>();
+		for(int i=0; i<mParameterCount; i++) {
+			if(i % 4 == 3)
+				mParams.put("text" + i, "온도 = " + i + " & humidity/100");	// Needs escaping
+			else
+				mParams.put("field" + i, Integer.valueOf(i * 1000 + 7));
+		}
+		mRequester = new HttpRequester();
+	}
+
+	@Benchmark
+	public String buildParameters() throws IOException {
+		return mRequester.buildParameters(mParams);
+	}
+
+}
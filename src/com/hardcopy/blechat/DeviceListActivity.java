@@ -17,10 +17,13 @@
 package com.hardcopy.blechat;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Set;
 
 import com.hardcopy.blechat.R;
+import com.hardcopy.blechat.bluetooth.AdvertisementParser;
 import com.hardcopy.blechat.bluetooth.BleManager;
+import com.hardcopy.blechat.bluetooth.ScanAggregator;
 import com.hardcopy.blechat.utils.Logs;
 
 import android.app.Activity;
@@ -64,9 +67,11 @@ public class DeviceListActivity extends Activity {
     private BluetoothAdapter mBtAdapter;
     private BleManager mBleManager;
     private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private DeviceListAdapter mNewDevicesArrayAdapter;
     
-    private ArrayList<BluetoothDevice> mDevices = new ArrayList<BluetoothDevice>(); 
+    // Scan results are collected here and shown a few times per second
+    private ScanAggregator mScanAggregator;
+    private final HashSet<String> mBondedAddresses = new HashSet<String>();
 
     // UI stuff
     Button mScanButton = null;
@@ -91,7 +96,6 @@ public class DeviceListActivity extends Activity {
         mScanButton = (Button) findViewById(R.id.button_scan);
         mScanButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
-            	mNewDevicesArrayAdapter.clear();
                 doDiscovery();
                 v.setVisibility(View.GONE);
             }
@@ -100,7 +104,7 @@ public class DeviceListActivity extends Activity {
         // Initialize array adapters. One for already paired devices and
         // one for newly discovered devices
         mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.adapter_device_name);
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.adapter_device_name);
+        mNewDevicesArrayAdapter = new DeviceListAdapter(this);
 
         // Find and set up the ListView for paired devices
         ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
@@ -127,11 +131,25 @@ public class DeviceListActivity extends Activity {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
             for (BluetoothDevice device : pairedDevices) {
                 mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                mBondedAddresses.add(device.getAddress());
             }
         } else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
             mPairedDevicesArrayAdapter.add(noDevices);
         }
+        
+        // Show devices found recently before new scan results arrive
+        mScanAggregator = ScanAggregator.getInstance();
+        ArrayList<ScanAggregator.ScannedDevice> recentDevices = mScanAggregator.getRecentDevices();
+        for (int i = recentDevices.size() - 1; i >= 0; i--) {
+            if (mBondedAddresses.contains(recentDevices.get(i).getAddress()))
+                recentDevices.remove(i);
+        }
+        if (recentDevices.size() > 0) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+            mNewDevicesArrayAdapter.merge(recentDevices, null);
+        }
+        mScanAggregator.setOnScanUpdateListener(mScanUpdateListener);
     }
 
     @Override
@@ -142,6 +160,8 @@ public class DeviceListActivity extends Activity {
         if (mBtAdapter != null) {
             mBtAdapter.cancelDiscovery();
         }
+        mScanAggregator.setOnScanUpdateListener(null);
+        mBleManager.setScanCallback(null);
     }
 
     /**
@@ -157,9 +177,6 @@ public class DeviceListActivity extends Activity {
         // Turn on sub-title for new devices
         findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
 
-        // Empty cache
-        mDevices.clear();
-        
         // If we're already discovering, stop it
         if (mBleManager.getState() == BleManager.STATE_SCANNING) {
         	mBleManager.scanLeDevice(false);
@@ -189,18 +206,6 @@ public class DeviceListActivity extends Activity {
     	mBleManager.scanLeDevice(false);
     }
     
-    /**
-     * Check if it's already cached
-     */
-    private boolean checkDuplicated(BluetoothDevice device) {
-    	for(BluetoothDevice dvc : mDevices) {
-    		if(device.getAddress().equalsIgnoreCase(dvc.getAddress())) {
-    			return true;
-    		}
-    	}
-    	return false;
-    }
-
     /**
      * The on-click listener for all devices in the ListViews
      */
@@ -233,20 +238,32 @@ public class DeviceListActivity extends Activity {
     private BluetoothAdapter.LeScanCallback mLeScanCallback = 
     		new BluetoothAdapter.LeScanCallback() {
     	@Override
-    	public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            Logs.d("# Scan device rssi is " + rssi);
-            runOnUiThread(new Runnable() {
-            	@Override
-            	public void run() {
-            		if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-            			if(!checkDuplicated(device)) {
-                			mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-                			mNewDevicesArrayAdapter.notifyDataSetChanged();
-            				mDevices.add(device);
-            			}
-            		}
+    	public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+    		// Called for every advertisement. Aggregator updates the list a few times per second.
+            Logs.d(TAG, "# Scan device rssi is {}", rssi);
+            String address = device.getAddress();
+            if (!mBondedAddresses.contains(address)) {
+            	// Look for the name only until one is found. Advertised name comes first,
+            	// getName() is a binder call and is null until the stack resolves the name.
+            	String name = null;
+            	if (!mScanAggregator.hasName(address)) {
+            		AdvertisementParser parser = new AdvertisementParser();
+            		parser.parse(scanRecord);
+            		name = (parser.hasName() ? parser.getName() : device.getName());
             	}
-            });
+            	mScanAggregator.onDeviceFound(address, name, rssi);
+            }
+    	}
+    };
+    
+    /**
+     * Receives changed devices on UI thread
+     */
+    private ScanAggregator.OnScanUpdateListener mScanUpdateListener = 
+    		new ScanAggregator.OnScanUpdateListener() {
+    	@Override
+    	public void onScanUpdate(ArrayList<ScanAggregator.ScannedDevice> changed, ArrayList<String> removed) {
+    		mNewDevicesArrayAdapter.merge(changed, removed);
     	}
     };
     
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.hardcopy.blechat.bluetooth.ScanAggregator.ScannedDevice;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Scanned devices of DeviceListActivity. One row per address.
+ * Changed devices from ScanAggregator are merged in place, so a row doesn't move
+ * when its RSSI changes. Devices the aggregator forgets are removed, so the list
+ * never holds more than ScanAggregator.MAX_DEVICES rows. Methods must be called on UI thread.
+ */
+public class DeviceListAdapter extends BaseAdapter {
+
+	private final LayoutInflater mInflater;
+	private final String mUnknownName;
+	private final ArrayList<ScannedDevice> mDevices = new ArrayList<ScannedDevice>();
+	private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+
+
+	public DeviceListAdapter(Context c) {
+		mInflater = (LayoutInflater) c.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		mUnknownName = c.getString(R.string.unknown_device);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Remove forgotten devices, update known devices and append new ones.
+	 * Calls notifyDataSetChanged() once.
+	 * @param devices		changed devices
+	 * @param removed		addresses of removed devices. Can be null.
+	 */
+	public void merge(List<ScannedDevice> devices, List<String> removed) {
+		boolean isRemoved = remove(removed);
+		if(devices == null || devices.isEmpty()) {
+			if(isRemoved)
+				notifyDataSetChanged();
+			return;
+		}
+		for(ScannedDevice device : devices) {
+			Integer position = mPositions.get(device.getAddress());
+			if(position == null) {
+				mPositions.put(device.getAddress(), mDevices.size());
+				mDevices.add(device);
+			} else {
+				mDevices.set(position, device);
+			}
+		}
+		notifyDataSetChanged();
+	}
+
+	public void clear() {
+		mDevices.clear();
+		mPositions.clear();
+		notifyDataSetChanged();
+	}
+
+	public String getAddress(int position) {
+		return mDevices.get(position).getAddress();
+	}
+
+	@Override
+	public int getCount() {
+		return mDevices.size();
+	}
+
+	@Override
+	public Object getItem(int position) {
+		return mDevices.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) convertView;
+		if(view == null)
+			view = (TextView) mInflater.inflate(R.layout.adapter_device_name, parent, false);
+
+		// Address is the last 17 chars, same as paired device rows
+		ScannedDevice device = mDevices.get(position);
+		String name = (device.getName() != null ? device.getName() : mUnknownName);
+		view.setText(name + "  (" + device.getRssi() + " dBm)\n" + device.getAddress());
+		return view;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private boolean remove(List<String> addresses) {
+		if(addresses == null || addresses.isEmpty())
+			return false;
+		boolean isRemoved = false;
+		for(String address : addresses) {
+			if(mPositions.remove(address) != null)
+				isRemoved = true;
+		}
+		if(!isRemoved)
+			return false;
+
+		// Compact rows and renumber positions. Order of the others is kept.
+		int count = 0;
+		for(int i=0; i<mDevices.size(); i++) {
+			ScannedDevice device = mDevices.get(i);
+			if(mPositions.containsKey(device.getAddress())) {
+				mDevices.set(count, device);
+				mPositions.put(device.getAddress(), count);
+				count++;
+			}
+		}
+		while(mDevices.size() > count)
+			mDevices.remove(mDevices.size() - 1);
+		return true;
+	}
+
+}
@@ -20,6 +20,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import com.hardcopy.blechat.R;
+import com.hardcopy.blechat.bluetooth.ByteSlice;
 import com.hardcopy.blechat.fragments.ExampleFragment;
 import com.hardcopy.blechat.fragments.FragmentAdapter;
 import com.hardcopy.blechat.fragments.IFragmentListener;
@@ -221,6 +222,10 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
 			if(mService != null)
 				mService.startServiceMonitoring();
 			break;
+		case IFragmentListener.CALLBACK_THINGSPEAK_CHANNEL:
+			if(mService != null)
+				mService.setThingSpeakChannel(arg2);
+			break;
 		case IFragmentListener.CALLBACK_SEND_MESSAGE:
 			if(mService != null && arg2 != null)
 				mService.sendMessageToRemote(arg2);
@@ -433,8 +438,11 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
 			///////////////////////////////////////////////
 			case Constants.MESSAGE_READ_CHAT_DATA:
 				if(msg.obj != null) {
+					// Service sends raw bytes. Decode here, right before showing them.
+					ByteSlice slice = (ByteSlice) msg.obj;
 					ExampleFragment frg = (ExampleFragment) mSectionsPagerAdapter.getItem(FragmentAdapter.FRAGMENT_POS_EXAMPLE);
-					frg.showMessage((String)msg.obj);
+					frg.showMessage(slice.decode());
+					slice.recycle();
 				}
 				break;
 			
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Scan filter checked against raw scan record in the scan callback.
+ *
+ * Conditions are compiled by Builder into primitive arrays. matches() walks AD structures
+ * of the record once and returns as soon as every condition is met, without creating
+ * any object. So advertisements of unrelated devices are dropped before
+ * BluetoothDevice.getAddress() or other allocation in the callback.
+ *
+ * Service UUIDs match if any one is advertised, or only if every one is advertised
+ * with Builder.setMatchAllServiceUuids(). Other conditions must all be met.
+ * A filter is immutable and can be shared between threads.
+ */
+public class AdvertisementFilter {
+
+	public static final int MAX_SERVICE_UUIDS = 64;		// One bit each while matching
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final long[] mUuidMsb;
+	private final long[] mUuidLsb;
+	private final long mAllUuidBits;		// 0 if any one UUID matches
+	private final int mManufacturerId;
+	private final byte[] mManufacturerData;
+	private final byte[] mManufacturerMask;
+	private final byte[] mNamePrefix;
+	private final int mMinRssi;
+
+
+	private AdvertisementFilter(Builder builder) {
+		int count = builder.mUuids.size();
+		mUuidMsb = new long[count];
+		mUuidLsb = new long[count];
+		for(int i = 0; i < count; i++) {
+			mUuidMsb[i] = builder.mUuids.get(i).getMostSignificantBits();
+			mUuidLsb[i] = builder.mUuids.get(i).getLeastSignificantBits();
+		}
+		mAllUuidBits = (builder.mMatchAllUuids && count > 0 ? (-1L >>> (64 - count)) : 0);
+		mManufacturerId = builder.mManufacturerId;
+		mManufacturerData = builder.mManufacturerData;
+		mManufacturerMask = builder.mManufacturerMask;
+		mNamePrefix = builder.mNamePrefix;
+		mMinRssi = builder.mMinRssi;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Check an advertisement
+	 * @param record		scanRecord of LeScanCallback.onLeScan()
+	 * @param rssi			RSSI of the advertisement
+	 * @return	boolean		true if every condition is met
+	 */
+	public boolean matches(byte[] record, int rssi) {
+		if(rssi < mMinRssi)
+			return false;
+
+		boolean uuidMatched = (mUuidMsb.length == 0);
+		boolean manufacturerMatched = (mManufacturerId < 0);
+		boolean nameMatched = (mNamePrefix == null);
+		if(uuidMatched && manufacturerMatched && nameMatched)
+			return true;
+		if(record == null)
+			return false;
+
+		long foundUuids = 0;
+		int index = 0;
+		while(index < record.length) {
+			int length = record[index] & 0xFF;
+			if(length == 0)
+				break;
+			int start = index + 2;
+			int end = index + 1 + length;
+			if(end > record.length)
+				break;
+
+			switch(record[index + 1] & 0xFF) {
+			case AdvertisementParser.TYPE_UUID16_INCOMPLETE:
+			case AdvertisementParser.TYPE_UUID16_COMPLETE:
+				for(int i = start; !uuidMatched && i + 2 <= end; i += 2) {
+					foundUuids |= uuidBit(AdvertisementParser.uuidMsb(AdvertisementParser.readShortUuid(record, i, 2)),
+							AdvertisementParser.BASE_UUID_LSB);
+					uuidMatched = isUuidMatched(foundUuids);
+				}
+				break;
+
+			case AdvertisementParser.TYPE_UUID32_INCOMPLETE:
+			case AdvertisementParser.TYPE_UUID32_COMPLETE:
+				for(int i = start; !uuidMatched && i + 4 <= end; i += 4) {
+					foundUuids |= uuidBit(AdvertisementParser.uuidMsb(AdvertisementParser.readShortUuid(record, i, 4)),
+							AdvertisementParser.BASE_UUID_LSB);
+					uuidMatched = isUuidMatched(foundUuids);
+				}
+				break;
+
+			case AdvertisementParser.TYPE_UUID128_INCOMPLETE:
+			case AdvertisementParser.TYPE_UUID128_COMPLETE:
+				for(int i = start; !uuidMatched && i + 16 <= end; i += 16) {
+					foundUuids |= uuidBit(AdvertisementParser.readLong(record, i + 8),
+							AdvertisementParser.readLong(record, i));
+					uuidMatched = isUuidMatched(foundUuids);
+				}
+				break;
+
+			case AdvertisementParser.TYPE_NAME_SHORT:
+			case AdvertisementParser.TYPE_NAME_COMPLETE:
+				if(!nameMatched)
+					nameMatched = startsWith(record, start, end, mNamePrefix);
+				break;
+
+			case AdvertisementParser.TYPE_MANUFACTURER_DATA:
+				if(!manufacturerMatched && end - start >= 2
+						&& AdvertisementParser.readShortUuid(record, start, 2) == mManufacturerId)
+					manufacturerMatched = matchesManufacturerData(record, start + 2, end);
+				break;
+			}
+
+			if(uuidMatched && manufacturerMatched && nameMatched)
+				return true;
+			index = end;
+		}
+		return false;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	/**
+	 * Returns bit of the UUID in filter order, or 0 if it is not in the filter
+	 */
+	private long uuidBit(long msb, long lsb) {
+		for(int i = 0; i < mUuidMsb.length; i++) {
+			if(mUuidMsb[i] == msb && mUuidLsb[i] == lsb)
+				return 1L << i;
+		}
+		return 0;
+	}
+
+	private boolean isUuidMatched(long foundUuids) {
+		if(mAllUuidBits == 0)
+			return foundUuids != 0;
+		return foundUuids == mAllUuidBits;
+	}
+
+	private boolean matchesManufacturerData(byte[] record, int start, int end) {
+		if(mManufacturerData == null)
+			return true;
+		if(end - start < mManufacturerData.length)
+			return false;
+		for(int i = 0; i < mManufacturerData.length; i++) {
+			int mask = (mManufacturerMask == null ? 0xFF : mManufacturerMask[i]);
+			if(((record[start + i] ^ mManufacturerData[i]) & mask) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] record, int start, int end, byte[] prefix) {
+		if(end - start < prefix.length)
+			return false;
+		for(int i = 0; i < prefix.length; i++) {
+			if(record[start + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	public static class Builder {
+		private final ArrayList<UUID> mUuids = new ArrayList<UUID>();
+		private int mManufacturerId = -1;
+		private byte[] mManufacturerData = null;
+		private byte[] mManufacturerMask = null;
+		private byte[] mNamePrefix = null;
+		private int mMinRssi = Integer.MIN_VALUE;
+		private boolean mMatchAllUuids = false;
+
+		/**
+		 * Accept devices advertising this service. 16 and 32 bit UUIDs must be
+		 * given as full UUIDs on the Bluetooth base UUID.
+		 * At most MAX_SERVICE_UUIDS can be added.
+		 */
+		public Builder addServiceUuid(UUID uuid) {
+			if(uuid != null && !mUuids.contains(uuid)) {
+				if(mUuids.size() >= MAX_SERVICE_UUIDS)
+					throw new IllegalArgumentException("too many service UUIDs");
+				mUuids.add(uuid);
+			}
+			return this;
+		}
+
+		/**
+		 * @param matchAll		true to accept only devices advertising every added service UUID,
+		 * 						like startLeScan(UUID[], LeScanCallback). Default is false (any one).
+		 */
+		public Builder setMatchAllServiceUuids(boolean matchAll) {
+			mMatchAllUuids = matchAll;
+			return this;
+		}
+
+		/**
+		 * Accept devices advertising manufacturer data of the company
+		 * @param id		company identifier
+		 * @param data		expected first bytes after company identifier. Can be null.
+		 * @param mask		bits of data to compare. null compares every bit.
+		 */
+		public Builder setManufacturerData(int id, byte[] data, byte[] mask) {
+			if(data != null && mask != null && mask.length != data.length)
+				throw new IllegalArgumentException("mask length must be the same as data length");
+			mManufacturerId = id & 0xFFFF;
+			mManufacturerData = (data == null ? null : data.clone());
+			mManufacturerMask = (mask == null ? null : mask.clone());
+			return this;
+		}
+
+		/**
+		 * Accept devices whose advertised (complete or shortened) name starts with prefix
+		 */
+		public Builder setNamePrefix(String prefix) {
+			mNamePrefix = (prefix == null ? null : prefix.getBytes(UTF8));
+			return this;
+		}
+
+		/**
+		 * Drop advertisements weaker than rssi (dBm)
+		 */
+		public Builder setMinRssi(int rssi) {
+			mMinRssi = rssi;
+			return this;
+		}
+
+		public AdvertisementFilter build() {
+			return new AdvertisementFilter(this);
+		}
+	}	// End of class Builder
+
+}
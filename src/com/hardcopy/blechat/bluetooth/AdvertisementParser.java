@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Parses AD structures of a raw scan record (advertising data + scan response).
+ *
+ * 		AD structure :	length(1) | AD type(1) | data(length - 1)
+ *
+ * The record is walked in place. Service UUIDs are kept as (msb, lsb) pairs and
+ * manufacturer data and name as offsets into the record, so parse() doesn't allocate.
+ * Reuse one instance on the scan callback thread. Results are valid until next parse().
+ * 16 and 32 bit UUIDs are expanded with the Bluetooth base UUID.
+ */
+public class AdvertisementParser {
+
+	// AD types
+	public static final int TYPE_FLAGS = 0x01;
+	public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+	public static final int TYPE_UUID16_COMPLETE = 0x03;
+	public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+	public static final int TYPE_UUID32_COMPLETE = 0x05;
+	public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+	public static final int TYPE_UUID128_COMPLETE = 0x07;
+	public static final int TYPE_NAME_SHORT = 0x08;
+	public static final int TYPE_NAME_COMPLETE = 0x09;
+	public static final int TYPE_TX_POWER = 0x0A;
+	public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+	public static final int MAX_UUIDS = 16;
+	public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+	// Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB
+	static final long BASE_UUID_MSB = 0x0000000000001000L;
+	static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] mRecord = null;
+	private boolean mIsMalformed = false;
+
+	// Results
+	private int mFlags = -1;
+	private final long[] mUuidMsb = new long[MAX_UUIDS];
+	private final long[] mUuidLsb = new long[MAX_UUIDS];
+	private int mUuidCount = 0;
+	private int mTxPower = TX_POWER_UNKNOWN;
+	private int mNameOffset = -1;
+	private int mNameLength = 0;
+	private boolean mIsNameComplete = false;
+	private int mManufacturerId = -1;
+	private int mManufacturerOffset = -1;
+	private int mManufacturerLength = 0;
+
+
+	public AdvertisementParser() {
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Parse a scan record. Parsing stops at the first zero length (padding)
+	 * or at a structure running past the end of the record.
+	 * @param record		scanRecord of LeScanCallback.onLeScan()
+	 * @return	boolean		false if the record is malformed. Fields parsed before the error are kept.
+	 */
+	public boolean parse(byte[] record) {
+		reset();
+		mRecord = record;
+		if(record == null)
+			return false;
+
+		int index = 0;
+		while(index < record.length) {
+			int length = record[index] & 0xFF;
+			if(length == 0)
+				break;
+			int start = index + 2;
+			int end = index + 1 + length;
+			if(end > record.length) {
+				mIsMalformed = true;
+				break;
+			}
+
+			int type = record[index + 1] & 0xFF;
+			switch(type) {
+			case TYPE_FLAGS:
+				if(start < end)
+					mFlags = record[start] & 0xFF;
+				break;
+
+			case TYPE_UUID16_INCOMPLETE:
+			case TYPE_UUID16_COMPLETE:
+				for(int i = start; i + 2 <= end; i += 2)
+					addUuid(uuidMsb(readShortUuid(record, i, 2)), BASE_UUID_LSB);
+				break;
+
+			case TYPE_UUID32_INCOMPLETE:
+			case TYPE_UUID32_COMPLETE:
+				for(int i = start; i + 4 <= end; i += 4)
+					addUuid(uuidMsb(readShortUuid(record, i, 4)), BASE_UUID_LSB);
+				break;
+
+			case TYPE_UUID128_INCOMPLETE:
+			case TYPE_UUID128_COMPLETE:
+				for(int i = start; i + 16 <= end; i += 16)
+					addUuid(readLong(record, i + 8), readLong(record, i));
+				break;
+
+			case TYPE_NAME_SHORT:
+			case TYPE_NAME_COMPLETE:
+				// Complete name wins over shortened name
+				if(mNameOffset < 0 || type == TYPE_NAME_COMPLETE) {
+					mNameOffset = start;
+					mNameLength = end - start;
+					mIsNameComplete = (type == TYPE_NAME_COMPLETE);
+				}
+				break;
+
+			case TYPE_TX_POWER:
+				if(start < end)
+					mTxPower = record[start];
+				break;
+
+			case TYPE_MANUFACTURER_DATA:
+				if(mManufacturerId < 0 && end - start >= 2) {
+					mManufacturerId = (int) readShortUuid(record, start, 2);
+					mManufacturerOffset = start + 2;
+					mManufacturerLength = end - start - 2;
+				}
+				break;
+			}
+			index = end;
+		}
+		return !mIsMalformed;
+	}
+
+	public boolean isMalformed() {
+		return mIsMalformed;
+	}
+
+	/**
+	 * Returns flags AD or -1
+	 */
+	public int getFlags() {
+		return mFlags;
+	}
+
+	public int getServiceUuidCount() {
+		return mUuidCount;
+	}
+
+	public long getServiceUuidMostSignificantBits(int index) {
+		return mUuidMsb[index];
+	}
+
+	public long getServiceUuidLeastSignificantBits(int index) {
+		return mUuidLsb[index];
+	}
+
+	/**
+	 * Makes an instance
+	 */
+	public UUID getServiceUuid(int index) {
+		return new UUID(mUuidMsb[index], mUuidLsb[index]);
+	}
+
+	public boolean hasServiceUuid(UUID uuid) {
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+		for(int i = 0; i < mUuidCount; i++) {
+			if(mUuidMsb[i] == msb && mUuidLsb[i] == lsb)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns TX power level (dBm) or TX_POWER_UNKNOWN
+	 */
+	public int getTxPower() {
+		return mTxPower;
+	}
+
+	/**
+	 * Returns company identifier of the first manufacturer data or -1
+	 */
+	public int getManufacturerId() {
+		return mManufacturerId;
+	}
+
+	/**
+	 * Returns offset of manufacturer data (after company ID) in the record or -1
+	 */
+	public int getManufacturerDataOffset() {
+		return mManufacturerOffset;
+	}
+
+	public int getManufacturerDataLength() {
+		return mManufacturerLength;
+	}
+
+	public boolean hasName() {
+		return mNameOffset >= 0;
+	}
+
+	public boolean isNameComplete() {
+		return mIsNameComplete;
+	}
+
+	/**
+	 * Returns offset of name bytes (UTF-8) in the record or -1
+	 */
+	public int getNameOffset() {
+		return mNameOffset;
+	}
+
+	public int getNameLength() {
+		return mNameLength;
+	}
+
+	/**
+	 * Returns advertised name or null. Makes an instance.
+	 */
+	public String getName() {
+		if(mNameOffset < 0)
+			return null;
+		return new String(mRecord, mNameOffset, mNameLength, UTF8);
+	}
+
+	/**
+	 * Returns the record of last parse()
+	 */
+	public byte[] getRecord() {
+		return mRecord;
+	}
+
+
+	/*****************************************************
+	 *	Package methods
+	 ******************************************************/
+
+	/**
+	 * Read little-endian unsigned 16 or 32 bit value
+	 */
+	static long readShortUuid(byte[] buffer, int offset, int size) {
+		long value = 0;
+		for(int i = size - 1; i >= 0; i--)
+			value = (value << 8) | (buffer[offset + i] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Read little-endian 64 bit value
+	 */
+	static long readLong(byte[] buffer, int offset) {
+		return readShortUuid(buffer, offset, 4) | (readShortUuid(buffer, offset + 4, 4) << 32);
+	}
+
+	/**
+	 * Returns most significant bits of a 16 or 32 bit UUID expanded with the base UUID
+	 */
+	static long uuidMsb(long shortUuid) {
+		return (shortUuid << 32) | BASE_UUID_MSB;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void reset() {
+		mRecord = null;
+		mIsMalformed = false;
+		mFlags = -1;
+		mUuidCount = 0;
+		mTxPower = TX_POWER_UNKNOWN;
+		mNameOffset = -1;
+		mNameLength = 0;
+		mIsNameComplete = false;
+		mManufacturerId = -1;
+		mManufacturerOffset = -1;
+		mManufacturerLength = 0;
+	}
+
+	private void addUuid(long msb, long lsb) {
+		if(mUuidCount < MAX_UUIDS) {
+			mUuidMsb[mUuidCount] = msb;
+			mUuidLsb[mUuidCount] = lsb;
+			mUuidCount++;
+		}
+	}
+
+}
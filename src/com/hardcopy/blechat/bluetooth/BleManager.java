@@ -1,8 +1,12 @@
 package com.hardcopy.blechat.bluetooth;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.hardcopy.blechat.utils.Logs;
 
@@ -11,6 +15,7 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
@@ -18,18 +23,16 @@ import android.os.Handler;
 
 
 
-public class BleManager {
+/**
+ * Android implementation of BleTransport.
+ * Results are sent to the handler as MESSAGE_XXX and also reported to BleTransport.Listener if set.
+ */
+public class BleManager implements BleTransport {
 
 	// Debugging
 	private static final String TAG = "BleManager";
 	
-	// Constants that indicate the current connection state
-	public static final int STATE_ERROR = -1;
-	public static final int STATE_NONE = 0;		// Initialized
-	public static final int STATE_IDLE = 1;		// Not connected
-	public static final int STATE_SCANNING = 2;	// Scanning
-	public static final int STATE_CONNECTING = 13;	// Connecting
-	public static final int STATE_CONNECTED = 16;	// Connected
+	// Connection state (STATE_XXX), MTU and scan period constants are defined in BleTransport
 	
     // Message types sent from the BluetoothManager to Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
@@ -37,18 +40,26 @@ public class BleManager {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_MTU_CHANGED = 6;
 	
-	public static final long SCAN_PERIOD = 5*1000;	// Stops scanning after a pre-defined scan period.
 	public static final long SCAN_INTERVAL = 5*60*1000;
 	
+	// Replay as fast as possible: messages handler hasn't processed yet are limited
+	private static final int REPLAY_WINDOW = 16;			// Messages between handler checkpoints
+	private static final int REPLAY_MAX_WINDOWS = 2;		// Checkpoints in flight
+	private static final long REPLAY_WAIT = 1000;		// Give up waiting for handler (ms)
+	
 	// System, Management
 	private static Context mContext = null;
 	private static BleManager mBleManager = null;		// Singleton pattern
 	private final Handler mHandler;
+	private volatile BleTransport.Listener mTransportListener = null;
 	
 	// Bluetooth
 	private final BluetoothAdapter mBluetoothAdapter;
 	private BluetoothAdapter.LeScanCallback mLeScanCallback = null;
+	private volatile AdvertisementFilter mScanFilter = null;		// Set by user
+	private volatile AdvertisementFilter mUuidFilter = null;		// Service UUIDs of current scan
 	
 	private ArrayList<BluetoothDevice> mDeviceList = new ArrayList<BluetoothDevice>();
 	private BluetoothDevice mDefaultDevice = null;
@@ -64,9 +75,16 @@ public class BleManager {
 			= new ArrayList<BluetoothGattCharacteristic>();
 	private BluetoothGattCharacteristic mDefaultChar = null;
 	
+	// Every GATT request goes through this queue
+	private final GattOperationQueue mOperationQueue = new GattOperationQueue();
+	
+	// Records raw traffic when capture mode is on
+	private volatile CaptureWriter mCapture = null;
+	
 	
 	// Parameters
 	private int mState = -1;
+	private int mMtu = DEFAULT_MTU;
 	
 	
 	/**
@@ -95,10 +113,12 @@ public class BleManager {
 		// Make sure we're not doing discovery anymore
 		if (mBluetoothAdapter != null) {
 			mState = STATE_IDLE;
-			mBluetoothAdapter.stopLeScan(mLeScanCallback);
+			mBluetoothAdapter.stopLeScan(mScanCallback);
 			disconnect();
 		}
 
+		stopCapture();
+		mOperationQueue.setGatt(null);
 		mDefaultDevice = null;
 		mBluetoothGatt = null;
 		mDefaultService = null;
@@ -124,14 +144,32 @@ public class BleManager {
 	 * This method extracts UUIDs from advertised data
 	 * Because Android native code has bugs in parsing 128bit UUID
 	 * use this method instead.
+	 * Makes UUID instances. Use AdvertisementParser in scan callback to avoid allocation.
+	 * @param scanRecord	scanRecord of LeScanCallback.onLeScan()
+	 * @return	UUID[]		16, 32 and 128 bit service UUIDs. 16 and 32 bit UUIDs are on the base UUID.
 	 */
+	public static UUID[] extractUuids(byte[] scanRecord) {
+		AdvertisementParser parser = new AdvertisementParser();
+		parser.parse(scanRecord);
+		UUID[] uuids = new UUID[parser.getServiceUuidCount()];
+		for(int i = 0; i < uuids.length; i++)
+			uuids[i] = parser.getServiceUuid(i);
+		return uuids;
+	}
 	
 	private void stopScanning() {
 		if(mState < STATE_CONNECTING) {
 			mState = STATE_IDLE;
 			mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_IDLE, 0).sendToTarget();
+			notifyStateChanged(STATE_IDLE);
 		}
-		mBluetoothAdapter.stopLeScan(mLeScanCallback);
+		mBluetoothAdapter.stopLeScan(mScanCallback);
+	}
+	
+	private void notifyStateChanged(int state) {
+		BleTransport.Listener listener = mTransportListener;
+		if(listener != null)
+			listener.onStateChanged(state);
 	}
 	
 	/**
@@ -145,7 +183,7 @@ public class BleManager {
         
 		for (BluetoothGattService gattService : gattServices) {
 			// Default service info
-			Logs.d("# GATT Service: "+gattService.toString());
+			Logs.d(TAG, "# GATT Service: {}", gattService);
 			
 			// Remember service
 			mGattServices.add(gattService);
@@ -155,7 +193,7 @@ public class BleManager {
 			for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
 				// Remember characteristic
 				mGattCharacteristics.add(gattCharacteristic);
-				Logs.d("# GATT Char: "+gattCharacteristic.toString());
+				Logs.d(TAG, "# GATT Char: {}", gattCharacteristic);
 				
 				boolean isWritable = isWritableCharacteristic(gattCharacteristic);
 				if(isWritable) {
@@ -179,6 +217,19 @@ public class BleManager {
 		return mWritableCharacteristics.size();
 	}
 	
+	/**
+	 * Find discovered characteristic
+	 * @param uuid		characteristic UUID
+	 * @return	BluetoothGattCharacteristic		null if not found
+	 */
+	private BluetoothGattCharacteristic findCharacteristic(UUID uuid) {
+		for(BluetoothGattCharacteristic chr : mGattCharacteristics) {
+			if(chr.getUuid().equals(uuid))
+				return chr;
+		}
+		return null;
+	}
+	
 	private boolean isWritableCharacteristic(BluetoothGattCharacteristic chr) {
 		if(chr == null) return false;
 		
@@ -224,6 +275,8 @@ public class BleManager {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * Request is queued and issued after previous GATT operations are finished.
+     *
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
@@ -231,11 +284,12 @@ public class BleManager {
             Logs.d("# BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        mOperationQueue.read(characteristic);
     }
     
     /**
      * Enables or disables notification on a give characteristic.
+     * Client characteristic configuration descriptor of remote is updated also.
      *
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
@@ -246,7 +300,7 @@ public class BleManager {
             Logs.d("# BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        mOperationQueue.setNotification(characteristic, enabled);
     }
 	
 	
@@ -258,23 +312,78 @@ public class BleManager {
 		mLeScanCallback = cb;
 	}
 	
+	/**
+	 * Advertisements which don't match the filter are dropped in scan callback
+	 * before the scan callback of UI and transport listener are called.
+	 * @param filter	null to receive every advertisement
+	 */
+	public void setScanFilter(AdvertisementFilter filter) {
+		mScanFilter = filter;
+	}
+	
+	@Override
+	public void setTransportListener(BleTransport.Listener listener) {
+		mTransportListener = listener;
+	}
+	
+	@Override
 	public int getState() {
 		return mState;
 	}
 	
+	/**
+	 * Set maximum number of GATT operations issued at the same time.
+	 * Only writes without response are overlapped.
+	 * @param depth		in-flight depth
+	 */
+	public void setMaxInFlightOperations(int depth) {
+		mOperationQueue.setMaxInFlight(depth);
+	}
+	
+	/**
+	 * Set time to wait for the result of a GATT operation
+	 * @param timeout	milliseconds
+	 */
+	public void setOperationTimeout(long timeout) {
+		mOperationQueue.setTimeout(timeout);
+	}
+	
+	/**
+	 * Returns GATT operation queue to check queue wait time and operation latency
+	 */
+	public GattOperationQueue getOperationQueue() {
+		return mOperationQueue;
+	}
+	
+	/**
+	 * Returns negotiated ATT MTU
+	 */
+	@Override
+	public int getMtu() {
+		return mMtu;
+	}
+	
+	/**
+	 * Returns maximum bytes which can be sent with a single write
+	 */
+	@Override
+	public int getMaxPayloadSize() {
+		return mMtu - ATT_HEADER_SIZE;
+	}
+	
 	public boolean scanLeDevice(final boolean enable) {
 		boolean isScanStarted = false;
 		if (enable) {
 			if(mState == STATE_SCANNING)
 				return false;
 			
-			if(mBluetoothAdapter.startLeScan(mLeScanCallback)) {
+			mUuidFilter = null;
+			if(mBluetoothAdapter.startLeScan(mScanCallback)) {
 				mState = STATE_SCANNING;
 				mDeviceList.clear();
 
 				// If you want to scan for only specific types of peripherals
-				// call below function instead
-				//startLeScan(UUID[], BluetoothAdapter.LeScanCallback);
+				// call scanLeDevice(boolean, UUID[]) instead
 				
 				// Stops scanning after a pre-defined scan period.
 				mHandler.postDelayed(new Runnable() {
@@ -285,12 +394,14 @@ public class BleManager {
 					}, SCAN_PERIOD);
 				
 				mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_SCANNING, 0).sendToTarget();
+				notifyStateChanged(STATE_SCANNING);
 				isScanStarted = true;
 			}
 		} else {
 			if(mState < STATE_CONNECTING) {
 				mState = STATE_IDLE;
 				mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_IDLE, 0).sendToTarget();
+				notifyStateChanged(STATE_IDLE);
 			}
 			stopScanning();
 		}
@@ -298,19 +409,29 @@ public class BleManager {
 		return isScanStarted;
 	}
 	
+	/**
+	 * Scan devices which advertise every service UUID in uuid, same as
+	 * BluetoothAdapter.startLeScan(UUID[], LeScanCallback)
+	 */
 	public boolean scanLeDevice(final boolean enable, UUID[] uuid) {
 		boolean isScanStarted = false;
 		if (enable) {
 			if(mState == STATE_SCANNING)
 				return false;
 			
-			if(mBluetoothAdapter.startLeScan(uuid, mLeScanCallback)) {
+			// Native UUID filter of startLeScan(UUID[], LeScanCallback) fails on 128bit UUIDs.
+			// Filter advertised data in scan callback instead. Like the native filter,
+			// a device must advertise every given UUID.
+			AdvertisementFilter.Builder builder = new AdvertisementFilter.Builder()
+					.setMatchAllServiceUuids(true);
+			if(uuid != null) {
+				for(UUID serviceUuid : uuid)
+					builder.addServiceUuid(serviceUuid);
+			}
+			mUuidFilter = builder.build();
+			if(mBluetoothAdapter.startLeScan(mScanCallback)) {
 				mState = STATE_SCANNING;
 				mDeviceList.clear();
-
-				// If you want to scan for only specific types of peripherals
-				// call below function instead
-				//startLeScan(UUID[], BluetoothAdapter.LeScanCallback);
 				
 				// Stops scanning after a pre-defined scan period.
 				mHandler.postDelayed(new Runnable() {
@@ -321,12 +442,14 @@ public class BleManager {
 					}, SCAN_PERIOD);
 				
 				mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_SCANNING, 0).sendToTarget();
+				notifyStateChanged(STATE_SCANNING);
 				isScanStarted = true;
 			}
 		} else {
 			if(mState < STATE_CONNECTING) {
 				mState = STATE_IDLE;
 				mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_IDLE, 0).sendToTarget();
+				notifyStateChanged(STATE_IDLE);
 			}
 			stopScanning();
 		}
@@ -334,6 +457,21 @@ public class BleManager {
 		return isScanStarted;
 	}
 	
+	@Override
+	public boolean startScan() {
+		return scanLeDevice(true);
+	}
+	
+	@Override
+	public void stopScan() {
+		scanLeDevice(false);
+	}
+	
+	@Override
+	public boolean connect(String address) {
+		return connectGatt(mContext, true, address);
+	}
+	
 	public boolean connectGatt(Context c, boolean bAutoReconnect, BluetoothDevice device) {
 		if(c == null || device == null)
 			return false;
@@ -343,10 +481,12 @@ public class BleManager {
 		mWritableCharacteristics.clear();
 		
 		mBluetoothGatt = device.connectGatt(c, bAutoReconnect, mGattCallback);
+		mOperationQueue.setGatt(mBluetoothGatt);
 		mDefaultDevice = device;
 		
 		mState = STATE_CONNECTING;
 		mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_CONNECTING, 0).sendToTarget();
+		notifyStateChanged(STATE_CONNECTING);
 		return true;
 	}
 	
@@ -374,10 +514,12 @@ public class BleManager {
 		mWritableCharacteristics.clear();
 		
 		mBluetoothGatt = device.connectGatt(c, bAutoReconnect, mGattCallback);
+		mOperationQueue.setGatt(mBluetoothGatt);
 		mDefaultDevice = device;
 		
 		mState = STATE_CONNECTING;
 		mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_CONNECTING, 0).sendToTarget();
+		notifyStateChanged(STATE_CONNECTING);
 		return true;
 	}
 	
@@ -387,6 +529,7 @@ public class BleManager {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
+    @Override
     public void disconnect() {
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Logs.d("# BluetoothAdapter not initialized");
@@ -434,11 +577,54 @@ public class BleManager {
 			}
 		}
 		
-		writableChar.setValue(data);
-		writableChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-		mBluetoothGatt.writeCharacteristic(writableChar);
 		mDefaultChar = writableChar;
-		return true;
+		boolean isQueued = mOperationQueue.write(writableChar, data, false);
+		CaptureWriter capture = mCapture;
+		if(isQueued && capture != null && data != null)
+			capture.append(CaptureWriter.EVENT_WRITE, writableChar.getUuid(), data, 0, data.length);
+		return isQueued;
+	}
+	
+	@Override
+	public boolean write(UUID characteristic, byte[] data) {
+		BluetoothGattCharacteristic chr = null;
+		if(characteristic != null) {
+			chr = findCharacteristic(characteristic);
+			if(chr == null) {
+				Logs.d(TAG, "# Write failed - Unknown characteristic: {}", characteristic);
+				return false;
+			}
+		}
+		return write(chr, data);
+	}
+	
+	@Override
+	public boolean discoverServices() {
+		BluetoothGatt gatt = mBluetoothGatt;
+		if(gatt == null || mState != STATE_CONNECTED)
+			return false;
+		mGattServices.clear();
+		mGattCharacteristics.clear();
+		mWritableCharacteristics.clear();
+		return gatt.discoverServices();
+	}
+	
+	@Override
+	public boolean setNotification(UUID characteristic, boolean enable) {
+		BluetoothGattCharacteristic chr = findCharacteristic(characteristic);
+		if(chr == null || mBluetoothGatt == null)
+			return false;
+		return mOperationQueue.setNotification(chr, enable);
+	}
+	
+	/**
+	 * Request MTU exchange. Available on Android 5.0 (API 21) or later.
+	 */
+	@Override
+	public boolean requestMtu(int mtu) {
+		if(mBluetoothGatt == null)
+			return false;
+		return mOperationQueue.requestMtu(mtu);
 	}
 	
 	public void setWritableCharacteristic(BluetoothGattCharacteristic chr) {
@@ -457,11 +643,153 @@ public class BleManager {
 		return mWritableCharacteristics;
 	}
 	
+	/**
+	 * Start capture mode. Every notification and write is recorded to the directory
+	 * until stopCapture(). Previous capture in the directory is deleted.
+	 * @param dir		capture directory
+	 * @return	boolean		false if capture file cannot be made
+	 */
+	public synchronized boolean startCapture(File dir) {
+		stopCapture();
+		CaptureWriter capture = new CaptureWriter(dir);
+		try {
+			capture.open();
+		} catch(IOException e) {
+			Logs.d(TAG, "# Cannot start capture: {}", e.getMessage());
+			return false;
+		}
+		mCapture = capture;
+		return true;
+	}
+	
+	public synchronized void stopCapture() {
+		CaptureWriter capture = mCapture;
+		mCapture = null;
+		if(capture != null)
+			capture.close();
+	}
+	
+	public boolean isCapturing() {
+		return mCapture != null;
+	}
+	
+	/**
+	 * Replay received bytes of a capture as if they were notified by remote.
+	 * Bytes are sent to handler with MESSAGE_READ, so the whole service pipeline runs.
+	 * When not in real time, received bytes are merged into slices of up to
+	 * ByteSlice.DEFAULT_CAPACITY and replay waits for handler, so main looper isn't flooded.
+	 * @param dir			capture directory
+	 * @param realTime		true to keep original timing, false to replay as fast as possible
+	 * @return	CaptureReplayer		call cancel() to stop
+	 */
+	public CaptureReplayer replayCapture(File dir, boolean realTime) {
+		final CaptureReplayer replayer = new CaptureReplayer(dir);
+		replayer.setRealTime(realTime);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(replayer.isRealTime()) {
+						replayer.replay(new CaptureReplayer.Sink() {
+							@Override
+							public void onEvent(int event, byte[] data, int length) {
+								if(event == CaptureWriter.EVENT_NOTIFICATION && length > 0)
+									mHandler.obtainMessage(MESSAGE_READ, length, 0, 
+											ByteSlice.obtain(data, 0, length)).sendToTarget();
+							}
+						});
+					} else {
+						ReplaySink sink = new ReplaySink();
+						replayer.replay(sink);
+						sink.flush();
+					}
+					Logs.d(TAG, "# Replay finished: events={}, time(ms)={}", 
+							replayer.getEventCount(), replayer.getElapsedTime() / 1000000);
+				} catch(IOException e) {
+					Logs.d(TAG, "# Replay failed: {}", e.getMessage());
+				}
+			}
+		}, "CaptureReplay").start();
+		return replayer;
+	}
+	
 	
 	/*****************************************************
 	 *	Handler, Listener, Timer, Sub classes
 	 ******************************************************/
 	
+	/**
+	 * Sends replayed bytes to handler with back-pressure. Runs on replay thread.
+	 * Consecutive notifications are merged into one slice. Every REPLAY_WINDOW messages
+	 * a checkpoint is posted, and replay waits while REPLAY_MAX_WINDOWS checkpoints are not run yet.
+	 */
+	private class ReplaySink implements CaptureReplayer.Sink {
+		private final byte[] mBuffer = new byte[ByteSlice.DEFAULT_CAPACITY];
+		private int mLength = 0;
+		private int mPostCount = 0;
+		private final Semaphore mWindows = new Semaphore(REPLAY_MAX_WINDOWS);
+		private final Runnable mCheckpoint = new Runnable() {
+			@Override
+			public void run() {
+				mWindows.release();
+			}
+		};
+		
+		@Override
+		public void onEvent(int event, byte[] data, int length) {
+			if(event != CaptureWriter.EVENT_NOTIFICATION || length < 1)
+				return;
+			if(mLength + length > mBuffer.length)
+				flush();
+			if(length > mBuffer.length) {
+				post(data, length);
+				return;
+			}
+			System.arraycopy(data, 0, mBuffer, mLength, length);
+			mLength += length;
+		}
+		
+		void flush() {
+			if(mLength > 0)
+				post(mBuffer, mLength);
+			mLength = 0;
+		}
+		
+		private void post(byte[] data, int length) {
+			mHandler.obtainMessage(MESSAGE_READ, length, 0, ByteSlice.obtain(data, 0, length)).sendToTarget();
+			if(++mPostCount % REPLAY_WINDOW != 0)
+				return;
+			try {
+				// Handler is stuck if it times out. Go on without adding a checkpoint.
+				if(mWindows.tryAcquire(REPLAY_WAIT, TimeUnit.MILLISECONDS))
+					mHandler.post(mCheckpoint);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// Forwards scan results to the scan callback of UI and to transport listener
+	private final BluetoothAdapter.LeScanCallback mScanCallback = new BluetoothAdapter.LeScanCallback() {
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			// Drop unrelated advertisements before anything is allocated
+			AdvertisementFilter filter = mUuidFilter;
+			if(filter != null && !filter.matches(scanRecord, rssi))
+				return;
+			filter = mScanFilter;
+			if(filter != null && !filter.matches(scanRecord, rssi))
+				return;
+			
+			BluetoothAdapter.LeScanCallback cb = mLeScanCallback;
+			if(cb != null)
+				cb.onLeScan(device, rssi, scanRecord);
+			BleTransport.Listener listener = mTransportListener;
+			if(listener != null)
+				listener.onDeviceFound(device.getAddress(), device.getName(), rssi, scanRecord);
+		}
+	};
+	
 	// Various callback methods defined by the BLE API.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
@@ -470,6 +798,7 @@ public class BleManager {
                 mState = STATE_CONNECTED;
                 Logs.d(TAG, "# Connected to GATT server.");
                 mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_CONNECTED, 0).sendToTarget();
+                notifyStateChanged(STATE_CONNECTED);
                 
                 gatt.discoverServices();
                 
@@ -477,6 +806,9 @@ public class BleManager {
                 mState = STATE_IDLE;
                 Logs.d(TAG, "# Disconnected from GATT server.");
                 mHandler.obtainMessage(MESSAGE_STATE_CHANGE, STATE_IDLE, 0).sendToTarget();
+                notifyStateChanged(STATE_IDLE);
+                mOperationQueue.setGatt(null);
+                mMtu = DEFAULT_MTU;
                 mBluetoothGatt = null;
         		mGattServices.clear();
                 mDefaultService = null;
@@ -492,18 +824,26 @@ public class BleManager {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
             	Logs.d(TAG, "# New GATT service discovered.");
+            	// Negotiate MTU before other requests are queued.
+            	// MTU exchange is supported on Android 5.0 or later. Queue ignores it on older platforms.
+            	mOperationQueue.requestMtu(DESIRED_MTU);
             	checkGattServices(gatt.getServices());
             } else {
-                Logs.d(TAG, "# onServicesDiscovered received: " + status);
+                Logs.d(TAG, "# onServicesDiscovered received: {}", status);
             }
+            BleTransport.Listener listener = mTransportListener;
+            if(listener != null)
+            	listener.onServicesDiscovered(status == BluetoothGatt.GATT_SUCCESS);
         }
 
         @Override
         // Result of a characteristic read operation
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mOperationQueue.onOperationCompleted(GattOperationQueue.OP_READ, characteristic, status);
+            
             if (status == BluetoothGatt.GATT_SUCCESS) {
             	// We've received data from remote
-            	Logs.d(TAG, "# Read characteristic: "+characteristic.toString());
+            	Logs.d(TAG, "# Read characteristic: {}", characteristic);
             	
             	/*
             	 * onCharacteristicChanged callback receives same message
@@ -526,20 +866,49 @@ public class BleManager {
             }
         }
         
+        @Override
+        // Result of a characteristic write operation
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mOperationQueue.onOperationCompleted(GattOperationQueue.OP_WRITE, characteristic, status);
+        }
+        
+        // Result of MTU exchange. Callback of API 21, so no @Override on API 18 build target.
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+            	Logs.d(TAG, "# MTU changed: {}", mtu);
+            	mMtu = mtu;
+            	mHandler.obtainMessage(MESSAGE_MTU_CHANGED, mtu, 0).sendToTarget();
+            	BleTransport.Listener listener = mTransportListener;
+            	if(listener != null)
+            		listener.onMtuChanged(mtu);
+            }
+            mOperationQueue.onOperationCompleted(GattOperationQueue.OP_REQUEST_MTU, null, status);
+        }
+        
+        @Override
+        // Result of a notification setting (client characteristic configuration)
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mOperationQueue.onOperationCompleted(GattOperationQueue.OP_SET_NOTIFICATION, 
+            		descriptor.getCharacteristic(), status);
+        }
+        
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         	// We've received data from remote
-        	Logs.d(TAG, "# onCharacteristicChanged: "+characteristic.toString());
+        	Logs.d(TAG, "# onCharacteristicChanged: {}", characteristic);
         	
+        	// Characteristic value can be overwritten by the next notification
+        	// before handler runs. Copy it into a pooled slice.
         	final byte[] data = characteristic.getValue();
         	if (data != null && data.length > 0) {
-        		final StringBuilder stringBuilder = new StringBuilder(data.length);
-        		//for(byte byteChar : data)
-        		//	stringBuilder.append(String.format("%02X ", byteChar));
-        		stringBuilder.append(data);
-        		Logs.d(TAG, stringBuilder.toString());
-        		
-        		mHandler.obtainMessage(MESSAGE_READ, new String(data)).sendToTarget();
+        		CaptureWriter capture = mCapture;
+        		if(capture != null)
+        			capture.append(CaptureWriter.EVENT_NOTIFICATION, characteristic.getUuid(), data, 0, data.length);
+        		mHandler.obtainMessage(MESSAGE_READ, data.length, 0, 
+        				ByteSlice.obtain(data, 0, data.length)).sendToTarget();
+        		BleTransport.Listener listener = mTransportListener;
+        		if(listener != null)
+        			listener.onNotification(characteristic.getUuid(), data, data.length);
         	}
         	
         	if(mDefaultChar == null && isWritableCharacteristic(characteristic)) {
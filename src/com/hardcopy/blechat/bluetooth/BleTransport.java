@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * BLE central operations used by the app: scan, connect, service discovery,
+ * notification, write and MTU exchange.
+ *
+ * BleManager is the Android implementation. SimulatedPeripheral implements the
+ * same operations on a plain JVM, so TransactionBuilder, TransactionReceiver and
+ * CommandParser can be driven without a phone.
+ *
+ * Only java.* types are used here. Results are reported to Listener
+ * on a thread of the transport.
+ */
+public interface BleTransport {
+
+	// Constants that indicate the current connection state
+	public static final int STATE_ERROR = -1;
+	public static final int STATE_NONE = 0;		// Initialized
+	public static final int STATE_IDLE = 1;		// Not connected
+	public static final int STATE_SCANNING = 2;	// Scanning
+	public static final int STATE_CONNECTING = 13;	// Connecting
+	public static final int STATE_CONNECTED = 16;	// Connected
+
+	// ATT MTU
+	public static final int DEFAULT_MTU = 23;		// Default ATT MTU of BLE 4.0
+	public static final int DESIRED_MTU = 247;		// Fits into a single LE data packet with data length extension
+	public static final int ATT_HEADER_SIZE = 3;	// opcode(1) + attribute handle(2)
+
+	public static final long SCAN_PERIOD = 5*1000;	// Stops scanning after a pre-defined scan period.
+
+
+	public void setTransportListener(Listener listener);
+
+	/**
+	 * Start scanning. Found devices are reported to Listener.onDeviceFound().
+	 * @return	boolean		false if scan cannot be started
+	 */
+	public boolean startScan();
+
+	public void stopScan();
+
+	/**
+	 * Connect to remote. Result is reported to Listener.onStateChanged().
+	 * @param address		device address
+	 */
+	public boolean connect(String address);
+
+	public void disconnect();
+
+	/**
+	 * Discover services of connected remote. Notifications of discovered
+	 * characteristics are enabled and a default writable characteristic is selected.
+	 */
+	public boolean discoverServices();
+
+	/**
+	 * Enable or disable notification
+	 * @param characteristic	characteristic UUID
+	 */
+	public boolean setNotification(UUID characteristic, boolean enable);
+
+	/**
+	 * Queue a write without response
+	 * @param characteristic	characteristic UUID, or null for default writable characteristic
+	 * @param data				no longer than getMaxPayloadSize()
+	 * @return	boolean		false if write cannot be queued
+	 */
+	public boolean write(UUID characteristic, byte[] data);
+
+	/**
+	 * Request MTU exchange. Result is reported to Listener.onMtuChanged().
+	 */
+	public boolean requestMtu(int mtu);
+
+	/**
+	 * Returns negotiated ATT MTU
+	 */
+	public int getMtu();
+
+	/**
+	 * Returns maximum bytes which can be sent with a single write
+	 */
+	public int getMaxPayloadSize();
+
+	/**
+	 * Returns STATE_XXX
+	 */
+	public int getState();
+
+
+	/**
+	 * Receives results of a transport.
+	 * Methods are called on a thread of the transport, not on main thread.
+	 */
+	public interface Listener {
+		public void onStateChanged(int state);
+
+		/**
+		 * @param scanRecord	raw advertising data
+		 */
+		public void onDeviceFound(String address, String name, int rssi, byte[] scanRecord);
+
+		public void onServicesDiscovered(boolean isSucceeded);
+
+		/**
+		 * @param data		notified value. Valid only during this call.
+		 * @param length	byte count
+		 */
+		public void onNotification(UUID characteristic, byte[] data, int length);
+
+		public void onMtuChanged(int mtu);
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+/**
+ * Pooled byte buffer which carries received bytes from GATT callback
+ * to service and UI without making a String for every notification.
+ *
+ * obtain() : Get a slice from pool and copy bytes into it
+ * retain() : Call this before passing the slice to another consumer
+ * recycle() : Call this when you finished using the slice
+ */
+public class ByteSlice {
+
+	public static final int DEFAULT_CAPACITY = 512;		// Maximum ATT attribute value length
+	private static final int MAX_POOL_SIZE = 64;
+
+	// Pool
+	private static final Object sPoolSync = new Object();
+	private static ByteSlice sPool = null;
+	private static int sPoolSize = 0;
+
+	private ByteSlice mNext = null;
+	private byte[] mData;
+	private int mLength = 0;
+	private int mRefCount = 0;
+
+
+	private ByteSlice(int capacity) {
+		mData = new byte[capacity];
+	}
+
+	/**
+	 * Get a slice from pool and copy bytes into it
+	 * @param src		source array
+	 * @param offset	start offset in source array
+	 * @param count		bytes to copy
+	 * @return	ByteSlice	slice with reference count 1
+	 */
+	public static ByteSlice obtain(byte[] src, int offset, int count) {
+		ByteSlice slice = null;
+		synchronized (sPoolSync) {
+			if(sPool != null) {
+				slice = sPool;
+				sPool = slice.mNext;
+				slice.mNext = null;
+				sPoolSize--;
+			}
+		}
+		if(slice == null)
+			slice = new ByteSlice(Math.max(DEFAULT_CAPACITY, count));
+		else if(slice.mData.length < count)
+			slice.mData = new byte[count];
+
+		System.arraycopy(src, offset, slice.mData, 0, count);
+		slice.mLength = count;
+		slice.mRefCount = 1;
+		return slice;
+	}
+
+	/**
+	 * Add a reference. Every retain() needs a matching recycle().
+	 */
+	public void retain() {
+		synchronized (sPoolSync) {
+			mRefCount++;
+		}
+	}
+
+	/**
+	 * Release a reference. Slice returns to the pool when nobody uses it.
+	 */
+	public void recycle() {
+		synchronized (sPoolSync) {
+			if(--mRefCount > 0)
+				return;
+			mLength = 0;
+			if(sPoolSize < MAX_POOL_SIZE) {
+				mNext = sPool;
+				sPool = this;
+				sPoolSize++;
+			}
+		}
+	}
+
+	/**
+	 * Returns backing array. Only first getLength() bytes are valid.
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Decode bytes with default charset. Call this only where a String is really needed (UI).
+	 */
+	public String decode() {
+		return new String(mData, 0, mLength);
+	}
+
+}
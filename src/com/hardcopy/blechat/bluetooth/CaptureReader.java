@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads events of a capture made by CaptureWriter, in recorded order.
+ *
+ * Segments are mapped read only one at a time. Event data is copied into
+ * one reused array, so reading doesn't allocate per event.
+ * Uses only java.* classes, so it also runs on a workstation.
+ *
+ * 		CaptureReader reader = new CaptureReader(dir);
+ * 		while(reader.next()) { reader.getData() ... }
+ * 		reader.close();
+ */
+public class CaptureReader {
+
+	private final File mDir;
+	private int mSegmentIndex;
+	private int mLastSegmentIndex;
+
+	// Current segment
+	private RandomAccessFile mFile = null;
+	private MappedByteBuffer mBuffer = null;
+
+	// Current event
+	private int mEvent = 0;
+	private long mTime = 0;
+	private long mUuidMsb = 0;
+	private long mUuidLsb = 0;
+	private final byte[] mData = new byte[CaptureWriter.MAX_DATA_LENGTH];
+	private int mLength = 0;
+
+
+	/**
+	 * @param dir		capture directory
+	 * @throws IOException	if there's no capture in the directory
+	 */
+	public CaptureReader(File dir) throws IOException {
+		mDir = dir;
+		int[] indexes = findSegments(dir);
+		if(indexes.length < 1)
+			throw new IOException("No capture in " + dir);
+		mSegmentIndex = indexes[0] - 1;
+		mLastSegmentIndex = indexes[indexes.length - 1];
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Move to the next event
+	 * @return	boolean		false at the end of capture
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while(true) {
+			if(mBuffer == null && !openNextSegment())
+				return false;
+
+			if(mBuffer.remaining() >= CaptureWriter.RECORD_HEADER_SIZE) {
+				int event = mBuffer.get();
+				if(event != 0) {
+					mLength = mBuffer.getShort() & 0xFFFF;
+					mTime = mBuffer.getLong();
+					mUuidMsb = mBuffer.getLong();
+					mUuidLsb = mBuffer.getLong();
+					if(mBuffer.remaining() < mLength)
+						throw new IOException("Broken capture segment " + mSegmentIndex);
+					mBuffer.get(mData, 0, mLength);
+					mEvent = event;
+					return true;
+				}
+			}
+			// End of segment
+			closeSegment();
+		}
+	}
+
+	public void close() {
+		closeSegment();
+		mSegmentIndex = mLastSegmentIndex;
+	}
+
+	/**
+	 * Returns CaptureWriter.EVENT_XXX
+	 */
+	public int getEvent() {
+		return mEvent;
+	}
+
+	/**
+	 * Returns monotonic time of the event (ns). Only differences are meaningful.
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * Returns characteristic UUID or null. Makes an instance.
+	 */
+	public UUID getUuid() {
+		if(mUuidMsb == 0 && mUuidLsb == 0)
+			return null;
+		return new UUID(mUuidMsb, mUuidLsb);
+	}
+
+	public long getUuidMostSignificantBits() {
+		return mUuidMsb;
+	}
+
+	public long getUuidLeastSignificantBits() {
+		return mUuidLsb;
+	}
+
+	/**
+	 * Returns reused array. Only first getLength() bytes are valid until next().
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private boolean openNextSegment() throws IOException {
+		while(mSegmentIndex < mLastSegmentIndex) {
+			mSegmentIndex++;
+			File file = CaptureWriter.getSegmentFile(mDir, mSegmentIndex);
+			if(!file.exists())
+				continue;
+
+			mFile = new RandomAccessFile(file, "r");
+			FileChannel channel = mFile.getChannel();
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte[] magic = new byte[CaptureWriter.MAGIC.length];
+			if(mBuffer.remaining() < magic.length) {
+				closeSegment();
+				continue;
+			}
+			mBuffer.get(magic);
+			if(!Arrays.equals(magic, CaptureWriter.MAGIC)) {
+				closeSegment();
+				throw new IOException("Not a capture segment: " + file);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void closeSegment() {
+		mBuffer = null;
+		if(mFile != null) {
+			try {
+				mFile.close();
+			} catch(IOException e) {}
+			mFile = null;
+		}
+	}
+
+	/**
+	 * Returns sorted segment indexes in the directory
+	 */
+	private static int[] findSegments(File dir) {
+		File[] files = dir.listFiles();
+		if(files == null)
+			return new int[0];
+		int[] indexes = new int[files.length];
+		int count = 0;
+		for(File file : files) {
+			String name = file.getName();
+			if(!name.startsWith(CaptureWriter.FILE_PREFIX) || !name.endsWith(CaptureWriter.FILE_EXT))
+				continue;
+			try {
+				indexes[count++] = Integer.parseInt(name.substring(CaptureWriter.FILE_PREFIX.length(),
+						name.length() - CaptureWriter.FILE_EXT.length()));
+			} catch(NumberFormatException e) {
+				count--;
+			}
+		}
+		indexes = Arrays.copyOf(indexes, count);
+		Arrays.sort(indexes);
+		return indexes;
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hardcopy.blechat.contents.CommandHandler;
+import com.hardcopy.blechat.contents.CommandParser;
+
+/**
+ * Feeds a capture made by CaptureWriter to a sink.
+ *
+ * Events are delivered at original speed (gaps between events are kept)
+ * or as fast as possible. PipelineSink runs received bytes through
+ * TransactionReceiver and CommandParser like the service does, so a capture from
+ * the field can be used as a throughput benchmark on a workstation:
+ * 		java ... com.hardcopy.blechat.bluetooth.CaptureReplayer <capture dir> [realtime]
+ * On the device, BleManager.replayCapture() feeds the whole service pipeline.
+ */
+public class CaptureReplayer {
+
+	private static final long SPIN_THRESHOLD = 100 * 1000;		// Busy wait for gaps shorter than this (ns)
+
+	private final File mDir;
+	private boolean mIsRealTime = false;
+	private volatile boolean mIsCancelled = false;
+
+	// Result of last replay
+	private long mEventCount = 0;
+	private long mByteCount = 0;
+	private long mElapsedTime = 0;
+
+
+	public CaptureReplayer(File dir) {
+		mDir = dir;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * @param realTime		true to keep original timing, false to replay as fast as possible
+	 */
+	public void setRealTime(boolean realTime) {
+		mIsRealTime = realTime;
+	}
+
+	public boolean isRealTime() {
+		return mIsRealTime;
+	}
+
+	public void cancel() {
+		mIsCancelled = true;
+	}
+
+	/**
+	 * Replay every event on calling thread
+	 * @param sink		receives events
+	 * @return	long	number of replayed events
+	 * @throws IOException
+	 */
+	public long replay(Sink sink) throws IOException {
+		mIsCancelled = false;
+		mEventCount = 0;
+		mByteCount = 0;
+		CaptureReader reader = new CaptureReader(mDir);
+		long start = System.nanoTime();
+		long firstTime = 0;
+		try {
+			while(!mIsCancelled && reader.next()) {
+				if(mIsRealTime) {
+					if(mEventCount == 0)
+						firstTime = reader.getTime();
+					waitUntil(start + (reader.getTime() - firstTime));
+				}
+				sink.onEvent(reader.getEvent(), reader.getData(), reader.getLength());
+				mEventCount++;
+				mByteCount += reader.getLength();
+			}
+		} finally {
+			reader.close();
+			mElapsedTime = System.nanoTime() - start;
+		}
+		return mEventCount;
+	}
+
+	public long getEventCount() {
+		return mEventCount;
+	}
+
+	public long getByteCount() {
+		return mByteCount;
+	}
+
+	/**
+	 * Returns duration of last replay (ns)
+	 */
+	public long getElapsedTime() {
+		return mElapsedTime;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void waitUntil(long deadline) {
+		while(!mIsCancelled) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				return;
+			if(remaining > SPIN_THRESHOLD)
+				LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+		}
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	public interface Sink {
+		/**
+		 * Called for each event on replay thread
+		 * @param event		CaptureWriter.EVENT_XXX
+		 * @param data		raw bytes. Valid only during this call.
+		 * @param length	byte count
+		 */
+		public void onEvent(int event, byte[] data, int length);
+	}
+
+	/**
+	 * Runs received bytes through the receive pipeline of the service:
+	 * TransactionReceiver, CommandParser and command dispatch.
+	 */
+	public static class PipelineSink implements Sink {
+		private final TransactionReceiver mReceiver;
+		private final CommandParser mParser;
+		private final Executor mExecutor;
+
+		/**
+		 * @param receiver		frame parser. Can be null.
+		 * @param parser		command parser with registered commands. Can be null.
+		 * @param executor		runs command handlers
+		 */
+		public PipelineSink(TransactionReceiver receiver, CommandParser parser, Executor executor) {
+			mReceiver = receiver;
+			mParser = parser;
+			mExecutor = executor;
+		}
+
+		@Override
+		public void onEvent(int event, byte[] data, int length) {
+			if(event != CaptureWriter.EVENT_NOTIFICATION || length < 1)
+				return;
+			if(mReceiver != null)
+				mReceiver.setByteArray(data, length);
+			if(mParser != null) {
+				mParser.setBytes(data, 0, length);
+				if(mExecutor != null)
+					mParser.dispatchCommands(mExecutor);
+			}
+		}
+	}
+
+	/**
+	 * Replay a capture through the receive pipeline and print throughput
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.out.println("Usage: CaptureReplayer <capture dir> [realtime]");
+			return;
+		}
+
+		final long[] counts = new long[2];		// frames, commands
+		TransactionReceiver receiver = new TransactionReceiver(null);
+		receiver.setOnFrameListener(new TransactionReceiver.OnFrameListener() {
+			@Override
+			public void onFrameReceived(TransactionReceiver.Frame frame) {
+				counts[0]++;
+			}
+		});
+		CommandParser parser = new CommandParser();
+		parser.registerCommand(CommandParser.COMMAND_THINGSPEAK, CommandParser.THINGSPEAK_PREFIX,
+				CommandParser.COMMAND_SUFFIX, new CommandHandler() {
+					@Override
+					public void onCommand(int command, String parameters) {
+						counts[1]++;
+					}
+				});
+		Executor direct = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+
+		CaptureReplayer replayer = new CaptureReplayer(new File(args[0]));
+		replayer.setRealTime(args.length > 1 && "realtime".equals(args[1]));
+		replayer.replay(new PipelineSink(receiver, parser, direct));
+
+		double seconds = replayer.getElapsedTime() / 1e9;
+		System.out.println("events=" + replayer.getEventCount() + ", bytes=" + replayer.getByteCount()
+				+ ", frames=" + counts[0] + ", commands=" + counts[1]
+				+ ", errors=" + receiver.getErrorCount());
+		System.out.println(String.format("elapsed=%.3f s, %.0f events/s, %.2f MB/s", seconds,
+				replayer.getEventCount() / seconds, replayer.getByteCount() / seconds / (1024 * 1024)));
+	}
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.hardcopy.blechat.utils.Logs;
+
+/**
+ * Records raw GATT traffic to memory-mapped segment files.
+ *
+ * Capture is a directory of segment files (capture_00000.bin, capture_00001.bin, ...).
+ * Each segment is mapped with a fixed size, so append() only copies bytes into memory.
+ * The next segment is mapped ahead by a background thread. When a record doesn't fit,
+ * append() switches to it and the background thread flushes the full segment,
+ * truncates it to its used size and maps another one. So the GATT callback thread never
+ * waits for file I/O. If the next segment is not ready yet, the record is dropped and counted.
+ * When there are more than maxSegments segments, the oldest one is deleted.
+ *
+ * Segment :	MAGIC(4) | record | record | ... | 0 (end of segment)
+ * Record :		event(1) | data length(2) | time(8, System.nanoTime) | UUID msb(8) | UUID lsb(8) | data
+ *
+ * Use CaptureReader to read a capture.
+ */
+public class CaptureWriter {
+
+	private static final String TAG = "CaptureWriter";
+
+	// Events
+	public static final int EVENT_NOTIFICATION = 1;		// Received from remote
+	public static final int EVENT_WRITE = 2;			// Sent to remote
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	static final byte[] MAGIC = {'B', 'C', 'P', '1'};
+	static final int RECORD_HEADER_SIZE = 1 + 2 + 8 + 8 + 8;
+	static final int MAX_DATA_LENGTH = 0xFFFF;
+	static final String FILE_PREFIX = "capture_";
+	static final String FILE_EXT = ".bin";
+
+	private final File mDir;
+	private final int mSegmentSize;
+	private final int mMaxSegments;
+
+	// Segments
+	private Segment mSegment = null;				// Being written
+	private Segment mNextSegment = null;			// Mapped ahead
+	private ExecutorService mExecutor = null;		// Maps, flushes and truncates segments
+	private boolean mIsPreparing = false;
+	private String mPrepareError = null;
+
+	// Statistics
+	private long mEventCount = 0;
+	private long mByteCount = 0;
+	private long mDroppedCount = 0;
+
+
+	/**
+	 * @param dir				capture directory. Previous capture in it is deleted by open().
+	 * @param segmentSize		size of a segment file (bytes)
+	 * @param maxSegments		number of segments to keep
+	 */
+	public CaptureWriter(File dir, int segmentSize, int maxSegments) {
+		mDir = dir;
+		mSegmentSize = Math.max(segmentSize, MAGIC.length + RECORD_HEADER_SIZE + MAX_DATA_LENGTH + 1);
+		mMaxSegments = Math.max(1, maxSegments);
+	}
+
+	public CaptureWriter(File dir) {
+		this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Delete previous capture and map the first segment
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if(mSegment != null)
+			return;
+		if(!mDir.isDirectory() && !mDir.mkdirs())
+			throw new IOException("Cannot make capture directory: " + mDir);
+		File[] files = mDir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				if(file.getName().startsWith(FILE_PREFIX))
+					file.delete();
+			}
+		}
+		mEventCount = 0;
+		mByteCount = 0;
+		mDroppedCount = 0;
+		mPrepareError = null;
+		mSegment = openSegment(0, mDir, mMaxSegments, mSegmentSize);
+		mExecutor = Executors.newSingleThreadExecutor();
+		prepareNextSegment();
+	}
+
+	/**
+	 * Append an event. Never waits for file I/O. Capture is closed when a segment can't be made.
+	 * @param event		EVENT_NOTIFICATION or EVENT_WRITE
+	 * @param uuid		characteristic UUID. Can be null.
+	 * @param data		raw bytes
+	 * @return	boolean	false if not captured
+	 */
+	public synchronized boolean append(int event, UUID uuid, byte[] data, int offset, int count) {
+		if(mSegment == null || data == null || count < 0)
+			return false;
+		if(count > MAX_DATA_LENGTH)
+			count = MAX_DATA_LENGTH;
+		long time = System.nanoTime();
+
+		// Keep one byte for end of segment mark
+		MappedByteBuffer buffer = mSegment.mBuffer;
+		if(buffer.remaining() < RECORD_HEADER_SIZE + count + 1) {
+			if(mNextSegment == null) {
+				if(mPrepareError != null) {
+					Logs.d(TAG, "# Capture stopped: {}", mPrepareError);
+					close();
+					return false;
+				}
+				// Background thread is still mapping it
+				mDroppedCount++;
+				prepareNextSegment();
+				return false;
+			}
+			retireSegment(mSegment);
+			mSegment = mNextSegment;
+			mNextSegment = null;
+			prepareNextSegment();
+			buffer = mSegment.mBuffer;
+		}
+
+		buffer.put((byte) event);
+		buffer.putShort((short) count);
+		buffer.putLong(time);
+		buffer.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+		buffer.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+		buffer.put(data, offset, count);
+		mEventCount++;
+		mByteCount += count;
+		return true;
+	}
+
+	/**
+	 * Finish current segment and stop capture. Waits until every segment is written.
+	 */
+	public void close() {
+		ExecutorService executor;
+		synchronized (this) {
+			if(mSegment == null)
+				return;
+			retireSegment(mSegment);
+			mSegment = null;
+			if(mNextSegment != null) {
+				discardSegment(mNextSegment);
+				mNextSegment = null;
+			}
+			executor = mExecutor;
+			mExecutor = null;
+			Logs.d(TAG, "# Capture closed: events={}, bytes={}", mEventCount, mByteCount);
+			if(mDroppedCount > 0)
+				Logs.d(TAG, "# Capture dropped events: {}", mDroppedCount);
+		}
+		// Wait without holding the lock. Segment being mapped ahead is discarded by the thread.
+		executor.shutdown();
+		try {
+			executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized boolean isOpened() {
+		return mSegment != null;
+	}
+
+	public File getDirectory() {
+		return mDir;
+	}
+
+	public synchronized long getEventCount() {
+		return mEventCount;
+	}
+
+	public synchronized long getByteCount() {
+		return mByteCount;
+	}
+
+	/**
+	 * Returns number of events dropped because the next segment was not ready
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Returns segment file of the index
+	 */
+	static File getSegmentFile(File dir, int index) {
+		return new File(dir, String.format("%s%05d%s", FILE_PREFIX, index, FILE_EXT));
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	/**
+	 * Map next segment on background thread. Called with the lock held.
+	 */
+	private void prepareNextSegment() {
+		if(mIsPreparing || mNextSegment != null || mExecutor == null)
+			return;
+		mIsPreparing = true;
+		final int index = mSegment.mIndex + 1;
+		final ExecutorService executor = mExecutor;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Segment segment = null;
+				String error = null;
+				try {
+					segment = openSegment(index, mDir, mMaxSegments, mSegmentSize);
+				} catch(IOException e) {
+					error = e.getMessage();
+				}
+				synchronized (CaptureWriter.this) {
+					mIsPreparing = false;
+					if(mExecutor == executor) {
+						mPrepareError = error;
+						mNextSegment = segment;
+						return;
+					}
+				}
+				// Closed meanwhile
+				if(segment != null)
+					discardSegment(segment);
+			}
+		});
+	}
+
+	/**
+	 * Write end mark, then flush and truncate the segment on background thread.
+	 * Called with the lock held.
+	 */
+	private void retireSegment(final Segment segment) {
+		final int used = segment.mBuffer.position();
+		segment.mBuffer.put((byte) 0);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					closeSegment(segment, used + 1);
+				} catch(IOException e) {
+					Logs.d(TAG, "# Cannot close capture segment: {}", e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Close and delete a segment which has no record
+	 */
+	private void discardSegment(Segment segment) {
+		try {
+			segment.mChannel.close();
+			segment.mFile.close();
+		} catch(IOException e) {}
+		getSegmentFile(mDir, segment.mIndex).delete();
+	}
+
+	private static Segment openSegment(int index, File dir, int maxSegments, int size) throws IOException {
+		// Segment being written and older ones are kept. This one is mapped ahead.
+		File old = getSegmentFile(dir, index - 1 - maxSegments);
+		if(old.exists())
+			old.delete();
+
+		Segment segment = new Segment(index);
+		segment.mFile = new RandomAccessFile(getSegmentFile(dir, index), "rw");
+		try {
+			segment.mChannel = segment.mFile.getChannel();
+			segment.mBuffer = segment.mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch(IOException e) {
+			segment.mFile.close();
+			throw e;
+		}
+		segment.mBuffer.put(MAGIC);
+		return segment;
+	}
+
+	/**
+	 * Flush mapped bytes and cut unused space
+	 */
+	private static void closeSegment(Segment segment, int size) throws IOException {
+		segment.mBuffer.force();
+		try {
+			segment.mChannel.truncate(size);
+		} finally {
+			segment.mChannel.close();
+			segment.mFile.close();
+		}
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * A mapped segment file
+	 */
+	private static class Segment {
+		final int mIndex;
+		RandomAccessFile mFile;
+		FileChannel mChannel;
+		MappedByteBuffer mBuffer;
+
+		Segment(int index) {
+			mIndex = index;
+		}
+	}
+
+}
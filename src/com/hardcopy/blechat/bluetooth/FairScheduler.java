@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Shares GATT operation slots among connections by bytes on air.
+ *
+ * At most getMaxSlots() operations of all registered queues are issued at the same time.
+ * When queues wait for a slot, the one with the smallest finish tag gets it
+ * (self-clocked fair queuing). Tag of a request is
+ * 		max(finish tag of the previous request of the queue, largest granted tag) + cost
+ * where cost is payload plus per-packet overhead. A link sending small writes gets
+ * as much radio time as a link sending full MTU writes, and an idle link doesn't save credit.
+ *
+ * Grants are delivered on the looper given to the constructor.
+ */
+public class FairScheduler implements GattOperationQueue.RadioScheduler {
+
+	public static final int DEFAULT_MAX_SLOTS = 4;
+	// L2CAP header(4) + ATT header(3) + link layer preamble, access address, header and CRC(10)
+	public static final int PACKET_OVERHEAD = 4 + BleTransport.ATT_HEADER_SIZE + 10;
+
+	private final Handler mHandler;
+	private final HashMap<GattOperationQueue, Flow> mFlows = new HashMap<GattOperationQueue, Flow>();
+	private final ArrayList<Flow> mWaitingFlows = new ArrayList<Flow>();
+	private int mMaxSlots = DEFAULT_MAX_SLOTS;
+	private int mUsedSlots = 0;
+	private long mVirtualTime = 0;		// Largest tag granted so far
+
+	// Statistics
+	private long mGrantCount = 0;
+	private long mWaitCount = 0;
+
+
+	/**
+	 * @param looper	thread to call GattOperationQueue.onSlotGranted() on
+	 */
+	public FairScheduler(Looper looper) {
+		mHandler = new Handler(looper);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Schedule operations of the queue. Also sets this scheduler to the queue.
+	 */
+	public void register(GattOperationQueue queue) {
+		synchronized(this) {
+			if(mFlows.containsKey(queue))
+				return;
+			Flow flow = new Flow(queue);
+			flow.mFinishTag = mVirtualTime;
+			mFlows.put(queue, flow);
+		}
+		queue.setRadioScheduler(this);
+	}
+
+	/**
+	 * Stop scheduling the queue. Slots it holds are given to other queues.
+	 */
+	public void unregister(GattOperationQueue queue) {
+		queue.setRadioScheduler(null);
+		synchronized(this) {
+			Flow flow = mFlows.remove(queue);
+			if(flow == null)
+				return;
+			mWaitingFlows.remove(flow);
+			mUsedSlots -= flow.mUsedSlots;
+			flow.mUsedSlots = 0;
+			grant();
+		}
+	}
+
+	/**
+	 * @param slots		operations issued at the same time over every connection
+	 */
+	public synchronized void setMaxSlots(int slots) {
+		mMaxSlots = Math.max(1, slots);
+		grant();
+	}
+
+	public synchronized int getMaxSlots() {
+		return mMaxSlots;
+	}
+
+	public synchronized int getUsedSlots() {
+		return mUsedSlots;
+	}
+
+	public synchronized int getWaitingCount() {
+		return mWaitingFlows.size();
+	}
+
+	public synchronized long getGrantCount() {
+		return mGrantCount;
+	}
+
+	/**
+	 * Returns how many requests had to wait for a slot
+	 */
+	public synchronized long getWaitCount() {
+		return mWaitCount;
+	}
+
+	@Override
+	public synchronized boolean requestSlot(GattOperationQueue queue, int size) {
+		Flow flow = mFlows.get(queue);
+		if(flow == null)
+			return true;
+
+		flow.mTag = Math.max(flow.mFinishTag, mVirtualTime) + size + PACKET_OVERHEAD;
+		if(mUsedSlots < mMaxSlots && mWaitingFlows.isEmpty()) {
+			take(flow);
+			return true;
+		}
+		mWaitCount++;
+		if(!mWaitingFlows.contains(flow))
+			mWaitingFlows.add(flow);
+		grant();
+		return false;
+	}
+
+	@Override
+	public synchronized void releaseSlot(GattOperationQueue queue) {
+		Flow flow = mFlows.get(queue);
+		if(flow == null || flow.mUsedSlots < 1)
+			return;
+		flow.mUsedSlots--;
+		mUsedSlots--;
+		grant();
+	}
+
+	@Override
+	public synchronized void cancelRequest(GattOperationQueue queue) {
+		Flow flow = mFlows.get(queue);
+		if(flow != null)
+			mWaitingFlows.remove(flow);
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	/**
+	 * Give free slots to waiting queues with the smallest tags
+	 */
+	private void grant() {
+		while(mUsedSlots < mMaxSlots && !mWaitingFlows.isEmpty()) {
+			int next = 0;
+			for(int i=1; i<mWaitingFlows.size(); i++) {
+				if(mWaitingFlows.get(i).mTag < mWaitingFlows.get(next).mTag)
+					next = i;
+			}
+			Flow flow = mWaitingFlows.remove(next);
+			take(flow);
+			// Queue is locked by the caller. Deliver on the scheduler thread.
+			mHandler.post(flow);
+		}
+	}
+
+	private void take(Flow flow) {
+		flow.mUsedSlots++;
+		flow.mFinishTag = flow.mTag;
+		mVirtualTime = Math.max(mVirtualTime, flow.mTag);
+		mUsedSlots++;
+		mGrantCount++;
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * Scheduling state of a queue. Runs as the grant callback.
+	 */
+	private static class Flow implements Runnable {
+		final GattOperationQueue mQueue;
+		long mTag;				// Finish tag of the waiting request
+		long mFinishTag;		// Finish tag of the last granted request
+		int mUsedSlots;
+
+		Flow(GattOperationQueue queue) {
+			mQueue = queue;
+		}
+
+		@Override
+		public void run() {
+			mQueue.onSlotGranted();
+		}
+	}	// End of class Flow
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.hardcopy.blechat.contents.CommandHandler;
+import com.hardcopy.blechat.utils.Logs;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Keeps GATT connections to several devices at the same time.
+ *
+ * BleManager holds a single connection. Use this class when one phone talks to
+ * several peripherals. Each device gets a GattSession with its own operation queue
+ * and receive pipeline. Operation queues of every session share radio slots
+ * through FairScheduler, so a busy link cannot starve the others.
+ *
+ * Messages are sent to the handler with MESSAGE_SESSION_XXX codes, which don't overlap
+ * BleManager.MESSAGE_XXX, so the pool can share the service handler.
+ * arg2 of every message is the session ID (GattSession.getId()).
+ * Sessions parse commands themselves. Don't feed bytes of MESSAGE_SESSION_READ
+ * to another command parser.
+ *
+ * Nothing in the app uses the pool yet. BTCTemplateService still talks to one device
+ * through BleManager. A caller owns the pool from getInstance() until release().
+ */
+public class GattConnectionPool {
+
+	// Debugging
+	private static final String TAG = "GattConnectionPool";
+
+	public static final int DEFAULT_MAX_SESSIONS = 7;
+
+	// Message types sent to Handler. arg2 is the session ID.
+	public static final int MESSAGE_SESSION_STATE_CHANGE = 101;		// arg1 : BleTransport.STATE_XXX
+	public static final int MESSAGE_SESSION_READ = 102;				// obj : ByteSlice. Recycle it.
+	public static final int MESSAGE_SESSION_MTU_CHANGED = 106;		// arg1 : MTU
+
+	// System, Management
+	private static GattConnectionPool mPool = null;		// Singleton pattern
+	private final Context mContext;
+	private final Handler mHandler;
+	private final BluetoothAdapter mBluetoothAdapter;
+
+	// Scheduling
+	private final HandlerThread mSchedulerThread;
+	private final FairScheduler mScheduler;
+	private final ExecutorService mCommandExecutor;
+
+	// Sessions
+	private final ArrayList<GattSession> mSessions = new ArrayList<GattSession>();
+	private final ArrayList<Command> mCommands = new ArrayList<Command>();
+	private int mMaxSessions = DEFAULT_MAX_SESSIONS;
+	private int mNextId = 1;
+
+
+	/**
+	 * @param context	application context
+	 * @param handler	receives MESSAGE_SESSION_XXX of every session
+	 */
+	private GattConnectionPool(Context context, Handler handler) {
+		mContext = context;
+		mHandler = handler;
+		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+
+		mSchedulerThread = new HandlerThread("GattScheduler");
+		mSchedulerThread.start();
+		mScheduler = new FairScheduler(mSchedulerThread.getLooper());
+		// Single thread keeps command order of each link
+		mCommandExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	public synchronized static GattConnectionPool getInstance(Context c, Handler h) {
+		if(mPool == null)
+			mPool = new GattConnectionPool(c, h);
+		return mPool;
+	}
+
+	/**
+	 * Close every session and stop worker threads. Next getInstance() makes a new pool.
+	 */
+	public void release() {
+		synchronized(GattConnectionPool.class) {
+			if(mPool == this)
+				mPool = null;
+		}
+		disconnectAll();
+		mCommandExecutor.shutdownNow();
+		mSchedulerThread.quit();
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * @param count		number of connections kept at the same time
+	 */
+	public synchronized void setMaxSessions(int count) {
+		mMaxSessions = Math.max(1, count);
+	}
+
+	public synchronized int getMaxSessions() {
+		return mMaxSessions;
+	}
+
+	/**
+	 * Set how many GATT operations of all sessions are issued at the same time
+	 */
+	public void setMaxRadioSlots(int slots) {
+		mScheduler.setMaxSlots(slots);
+	}
+
+	public FairScheduler getScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * Register a command on every current and future session
+	 */
+	public synchronized void registerCommand(int command, String prefix, String suffix, CommandHandler handler) {
+		mCommands.add(new Command(command, prefix, suffix, handler));
+		for(GattSession session : mSessions)
+			session.getCommandParser().registerCommand(command, prefix, suffix, handler);
+	}
+
+	/**
+	 * Connect to a device. Existing session of the device is reused.
+	 * @param address			device address
+	 * @param autoReconnect		reconnect when the link is lost
+	 * @return	GattSession		null if address is invalid or the pool is full
+	 */
+	public GattSession connect(String address, boolean autoReconnect) {
+		if(mBluetoothAdapter == null || address == null || !BluetoothAdapter.checkBluetoothAddress(address))
+			return null;
+
+		GattSession session;
+		synchronized(this) {
+			session = findSession(address);
+			if(session == null) {
+				if(mSessions.size() >= mMaxSessions) {
+					Logs.d(TAG, "# Cannot connect - Pool is full: {}", mSessions.size());
+					return null;
+				}
+				BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+				session = new GattSession(mNextId++, device, mHandler, mCommandExecutor);
+				for(Command cmd : mCommands)
+					session.getCommandParser().registerCommand(cmd.mCommand, cmd.mPrefix, cmd.mSuffix, cmd.mHandler);
+				mSessions.add(session);
+			}
+		}
+		mScheduler.register(session.getOperationQueue());
+
+		if(!session.connect(mContext, autoReconnect)) {
+			Logs.d(TAG, "# Cannot connect: {}", address);
+			remove(session);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Disconnect the device and remove its session
+	 */
+	public void disconnect(String address) {
+		GattSession session;
+		synchronized(this) {
+			session = findSession(address);
+		}
+		if(session != null)
+			remove(session);
+	}
+
+	public void disconnectAll() {
+		ArrayList<GattSession> sessions = getSessions();
+		for(GattSession session : sessions)
+			remove(session);
+	}
+
+	public synchronized GattSession getSession(String address) {
+		return findSession(address);
+	}
+
+	/**
+	 * @param id		GattSession.getId(), arg2 of messages
+	 */
+	public synchronized GattSession getSession(int id) {
+		for(GattSession session : mSessions) {
+			if(session.getId() == id)
+				return session;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns copy of session list
+	 */
+	public synchronized ArrayList<GattSession> getSessions() {
+		return new ArrayList<GattSession>(mSessions);
+	}
+
+	public synchronized int getSessionCount() {
+		return mSessions.size();
+	}
+
+	/**
+	 * Write to default writable characteristic of the device
+	 * @return	boolean		false if the device is not connected or write cannot be queued
+	 */
+	public boolean write(String address, byte[] data) {
+		GattSession session = getSession(address);
+		return (session != null && session.write(null, data));
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private GattSession findSession(String address) {
+		for(GattSession session : mSessions) {
+			if(session.getAddress().equals(address))
+				return session;
+		}
+		return null;
+	}
+
+	private void remove(GattSession session) {
+		synchronized(this) {
+			mSessions.remove(session);
+		}
+		mScheduler.unregister(session.getOperationQueue());
+		session.close();
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * Command registered on every session
+	 */
+	private static class Command {
+		final int mCommand;
+		final String mPrefix;
+		final String mSuffix;
+		final CommandHandler mHandler;
+
+		Command(int command, String prefix, String suffix, CommandHandler handler) {
+			mCommand = command;
+			mPrefix = prefix;
+			mSuffix = suffix;
+			mHandler = handler;
+		}
+	}	// End of class Command
+
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.UUID;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Schedules GATT operations one after another.
+ * Android BLE stack silently drops an operation issued while another one is pending,
+ * so every read, write and notification request goes through this queue
+ * and the next one starts only when the callback of the previous one arrives (or it times out).
+ *
+ * Write without response operations can be pipelined up to the in-flight depth.
+ * Acknowledged operations are always issued alone.
+ * An operation the stack refuses (e.g. still busy after a timeout) stays at the head
+ * of the queue and is issued again after RETRY_DELAY, up to MAX_RETRIES times.
+ *
+ * When a RadioScheduler is set, every operation also needs a slot from the scheduler,
+ * so queues of several connections share the radio.
+ */
+public class GattOperationQueue {
+
+	// Debugging
+	private static final String TAG = "GattOperationQueue";
+
+	// Operation types
+	public static final int OP_READ = 1;
+	public static final int OP_WRITE = 2;
+	public static final int OP_WRITE_NO_RESPONSE = 3;
+	public static final int OP_SET_NOTIFICATION = 4;
+	public static final int OP_REQUEST_MTU = 5;
+
+	// Result of issuing an operation
+	private static final int EXEC_REJECTED = 0;		// Stack refused the request
+	private static final int EXEC_ISSUED = 1;		// Waiting for callback
+	private static final int EXEC_FINISHED = 2;		// Nothing to wait for
+
+	public static final long DEFAULT_TIMEOUT = 3*1000;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+	public static final long RETRY_DELAY = 100;		// Wait before issuing a rejected operation again (ms)
+	public static final int MAX_RETRIES = 10;
+
+	// Client characteristic configuration descriptor
+	public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+			UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+	// BluetoothGatt.requestMtu() exists on Android 5.0 (API 21) or later.
+	// Project builds against API 18, so it is called through reflection.
+	private static final Method mRequestMtuMethod = findRequestMtuMethod();
+
+	// System
+	private final Handler mTimeoutHandler;
+	private BluetoothGatt mBluetoothGatt = null;
+	private RadioScheduler mScheduler = null;
+	private boolean mIsWaitingSlot = false;		// Requested a slot and waiting for onSlotGranted()
+	private int mGrantedSlots = 0;				// Granted but not used yet
+	private boolean mIsRetryScheduled = false;	// Head operation was rejected and waits for mRetryRunner
+
+	// Queue
+	private final LinkedList<GattOperation> mPendingOps = new LinkedList<GattOperation>();
+	private final ArrayList<GattOperation> mInFlightOps = new ArrayList<GattOperation>();
+
+	// Parameters
+	private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private long mTimeout = DEFAULT_TIMEOUT;
+
+	// Statistics
+	private long mCompletedCount = 0;
+	private long mFailedCount = 0;
+	private long mTimeoutCount = 0;
+	private long mTotalWaitTime = 0;
+	private long mMaxWaitTime = 0;
+	private long mTotalLatency = 0;
+	private long mMaxLatency = 0;
+
+
+	public GattOperationQueue() {
+		mTimeoutHandler = new Handler(Looper.getMainLooper());
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Attach GATT instance. Pending operations of previous connection are discarded.
+	 * @param gatt		connected GATT, or null when disconnected
+	 */
+	public synchronized void setGatt(BluetoothGatt gatt) {
+		clear();
+		mBluetoothGatt = gatt;
+	}
+
+	/**
+	 * Discard every pending and in-flight operation
+	 */
+	public synchronized void clear() {
+		mPendingOps.clear();
+		if(mScheduler != null) {
+			for(int i=0; i<mInFlightOps.size(); i++)
+				mScheduler.releaseSlot(this);
+			if(mIsWaitingSlot)
+				mScheduler.cancelRequest(this);
+		}
+		mIsWaitingSlot = false;
+		releaseGrantedSlots();
+		mInFlightOps.clear();
+		mTimeoutHandler.removeCallbacks(mTimeoutChecker);
+		mTimeoutHandler.removeCallbacks(mRetryRunner);
+		mIsRetryScheduled = false;
+	}
+
+	/**
+	 * Share the radio with other queues. Call this before any operation is queued.
+	 * @param scheduler		slot scheduler, or null to issue operations without asking
+	 */
+	public synchronized void setRadioScheduler(RadioScheduler scheduler) {
+		clear();
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * Called by RadioScheduler when a slot requested by this queue is available
+	 */
+	public synchronized void onSlotGranted() {
+		mIsWaitingSlot = false;
+		mGrantedSlots++;
+		drain();
+		// Don't keep a slot other queues can use
+		releaseGrantedSlots();
+	}
+
+	/**
+	 * Set maximum number of operations issued to the stack at the same time.
+	 * Only write without response operations are overlapped.
+	 * @param depth		in-flight depth (1 or larger)
+	 */
+	public synchronized void setMaxInFlight(int depth) {
+		mMaxInFlight = (depth < 1 ? 1 : depth);
+		drain();
+	}
+
+	public synchronized int getMaxInFlight() {
+		return mMaxInFlight;
+	}
+
+	/**
+	 * Set time to wait for the callback of an operation
+	 * @param timeout		timeout in milliseconds
+	 */
+	public synchronized void setTimeout(long timeout) {
+		mTimeout = (timeout < 1 ? DEFAULT_TIMEOUT : timeout);
+	}
+
+	public synchronized long getTimeout() {
+		return mTimeout;
+	}
+
+	public boolean read(BluetoothGattCharacteristic chr) {
+		return enqueue(new GattOperation(OP_READ, chr, null));
+	}
+
+	public boolean write(BluetoothGattCharacteristic chr, byte[] data, boolean withResponse) {
+		return enqueue(new GattOperation(withResponse ? OP_WRITE : OP_WRITE_NO_RESPONSE, chr, data));
+	}
+
+	/**
+	 * Returns true if the platform supports MTU exchange (Android 5.0, API 21 or later)
+	 */
+	public static boolean isMtuRequestSupported() {
+		return mRequestMtuMethod != null;
+	}
+
+	/**
+	 * Request MTU exchange. Available on Android 5.0 (API 21) or later.
+	 * Result arrives at onMtuChanged() of BluetoothGattCallback.
+	 * @param mtu		desired MTU size
+	 * @return	boolean		false if not supported on this platform
+	 */
+	public boolean requestMtu(int mtu) {
+		if(!isMtuRequestSupported())
+			return false;
+		GattOperation op = new GattOperation(OP_REQUEST_MTU, null, null);
+		op.mArg = mtu;
+		return enqueue(op);
+	}
+
+	public boolean setNotification(BluetoothGattCharacteristic chr, boolean enable) {
+		return enqueue(new GattOperation(OP_SET_NOTIFICATION, chr,
+				enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+						: BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
+	}
+
+	/**
+	 * Called by GATT callback when an operation is finished.
+	 * @param type		operation type
+	 * @param chr		characteristic which the operation acted on
+	 * @param status	GATT status
+	 */
+	public synchronized void onOperationCompleted(int type, BluetoothGattCharacteristic chr, int status) {
+		GattOperation op = null;
+		for(int i=0; i<mInFlightOps.size(); i++) {
+			GattOperation candidate = mInFlightOps.get(i);
+			if(candidate.matches(type, chr)) {
+				op = candidate;
+				mInFlightOps.remove(i);
+				break;
+			}
+		}
+		if(op == null) {
+			// Operation is already timed out or not issued by this queue
+			return;
+		}
+		releaseSlot();
+
+		long latency = SystemClock.elapsedRealtime() - op.mStartTime;
+		mTotalLatency += latency;
+		if(latency > mMaxLatency)
+			mMaxLatency = latency;
+
+		if(status == BluetoothGatt.GATT_SUCCESS)
+			mCompletedCount++;
+		else
+			mFailedCount++;
+
+		drain();
+	}
+
+	public synchronized int getPendingCount() {
+		return mPendingOps.size();
+	}
+
+	public synchronized int getInFlightCount() {
+		return mInFlightOps.size();
+	}
+
+	public synchronized long getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	public synchronized long getFailedCount() {
+		return mFailedCount;
+	}
+
+	public synchronized long getTimeoutCount() {
+		return mTimeoutCount;
+	}
+
+	/**
+	 * Average time operations spent in the queue before issued
+	 * @return	long		milliseconds
+	 */
+	public synchronized long getAverageWaitTime() {
+		long issued = mCompletedCount + mFailedCount + mTimeoutCount + mInFlightOps.size();
+		return (issued > 0 ? mTotalWaitTime / issued : 0);
+	}
+
+	public synchronized long getMaxWaitTime() {
+		return mMaxWaitTime;
+	}
+
+	/**
+	 * Average time from issuing an operation to its callback
+	 * @return	long		milliseconds
+	 */
+	public synchronized long getAverageLatency() {
+		long finished = mCompletedCount + mFailedCount;
+		return (finished > 0 ? mTotalLatency / finished : 0);
+	}
+
+	public synchronized long getMaxLatency() {
+		return mMaxLatency;
+	}
+
+	public synchronized void resetStatistics() {
+		mCompletedCount = 0;
+		mFailedCount = 0;
+		mTimeoutCount = 0;
+		mTotalWaitTime = 0;
+		mMaxWaitTime = 0;
+		mTotalLatency = 0;
+		mMaxLatency = 0;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private synchronized boolean enqueue(GattOperation op) {
+		if(mBluetoothGatt == null || (op.mChar == null && op.mType != OP_REQUEST_MTU)) {
+			Logs.d(TAG, "# BluetoothGatt not initialized");
+			return false;
+		}
+		op.mEnqueueTime = SystemClock.elapsedRealtime();
+		mPendingOps.add(op);
+		drain();
+		return true;
+	}
+
+	/**
+	 * Issue pending operations while in-flight depth allows
+	 */
+	private void drain() {
+		while(!mPendingOps.isEmpty() && mBluetoothGatt != null && !mIsRetryScheduled) {
+			GattOperation op = mPendingOps.getFirst();
+
+			if(!mInFlightOps.isEmpty()) {
+				// Only writes without response can overlap each other
+				if(op.mType != OP_WRITE_NO_RESPONSE
+						|| mInFlightOps.get(0).mType != OP_WRITE_NO_RESPONSE
+						|| mInFlightOps.size() >= mMaxInFlight)
+					break;
+			}
+			if(!acquireSlot(op))
+				break;
+
+			mPendingOps.removeFirst();
+			op.mStartTime = SystemClock.elapsedRealtime();
+
+			int result = execute(op);
+			if(result != EXEC_REJECTED) {
+				long wait = op.mStartTime - op.mEnqueueTime;
+				mTotalWaitTime += wait;
+				if(wait > mMaxWaitTime)
+					mMaxWaitTime = wait;
+
+				if(result == EXEC_ISSUED) {
+					mInFlightOps.add(op);
+					scheduleTimeoutCheck();
+				} else {
+					mCompletedCount++;
+					releaseSlot();
+				}
+			} else if(!mInFlightOps.isEmpty()) {
+				// Stack is busy. Retry when the next callback arrives.
+				mPendingOps.addFirst(op);
+				releaseSlot();
+				break;
+			} else if(op.mRetryCount < MAX_RETRIES) {
+				// Stack may still be busy with a timed out operation. Keep the order and try again later.
+				op.mRetryCount++;
+				mPendingOps.addFirst(op);
+				releaseSlot();
+				mIsRetryScheduled = true;
+				mTimeoutHandler.postDelayed(mRetryRunner, RETRY_DELAY);
+				break;
+			} else {
+				Logs.d(TAG, "# Operation failed to start: type={}", op.mType);
+				mFailedCount++;
+				releaseSlot();
+			}
+		}
+	}
+
+	/**
+	 * Get a slot from the scheduler to issue the operation
+	 * @return	boolean		false if the queue has to wait for onSlotGranted()
+	 */
+	private boolean acquireSlot(GattOperation op) {
+		if(mScheduler == null)
+			return true;
+		if(mGrantedSlots > 0) {
+			mGrantedSlots--;
+			return true;
+		}
+		if(mIsWaitingSlot)
+			return false;
+		if(mScheduler.requestSlot(this, op.getSize()))
+			return true;
+		mIsWaitingSlot = true;
+		return false;
+	}
+
+	private void releaseSlot() {
+		if(mScheduler != null)
+			mScheduler.releaseSlot(this);
+	}
+
+	private void releaseGrantedSlots() {
+		while(mGrantedSlots > 0) {
+			mGrantedSlots--;
+			releaseSlot();
+		}
+	}
+
+	private int execute(GattOperation op) {
+		boolean isIssued = false;
+		switch(op.mType) {
+		case OP_READ:
+			isIssued = mBluetoothGatt.readCharacteristic(op.mChar);
+			break;
+
+		case OP_WRITE:
+		case OP_WRITE_NO_RESPONSE:
+			op.mChar.setValue(op.mData);
+			op.mChar.setWriteType(op.mType == OP_WRITE ?
+					BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+					: BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+			isIssued = mBluetoothGatt.writeCharacteristic(op.mChar);
+			break;
+
+		case OP_SET_NOTIFICATION:
+			boolean enable = (op.mData == BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+			if(!mBluetoothGatt.setCharacteristicNotification(op.mChar, enable))
+				return EXEC_REJECTED;
+			BluetoothGattDescriptor descriptor = op.mChar.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+			if(descriptor == null) {
+				// Nothing to write on remote
+				return EXEC_FINISHED;
+			}
+			descriptor.setValue(op.mData);
+			isIssued = mBluetoothGatt.writeDescriptor(descriptor);
+			break;
+
+		case OP_REQUEST_MTU:
+			try {
+				isIssued = (Boolean) mRequestMtuMethod.invoke(mBluetoothGatt, op.mArg);
+			} catch(Exception e) {
+				Logs.d(TAG, "# Cannot request MTU: {}", e);
+			}
+			break;
+		}
+		return (isIssued ? EXEC_ISSUED : EXEC_REJECTED);
+	}
+
+	private static Method findRequestMtuMethod() {
+		try {
+			return BluetoothGatt.class.getMethod("requestMtu", int.class);
+		} catch(NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private void scheduleTimeoutCheck() {
+		mTimeoutHandler.removeCallbacks(mTimeoutChecker);
+		if(mInFlightOps.isEmpty())
+			return;
+
+		long earliest = Long.MAX_VALUE;
+		for(GattOperation op : mInFlightOps) {
+			if(op.mStartTime < earliest)
+				earliest = op.mStartTime;
+		}
+		long delay = earliest + mTimeout - SystemClock.elapsedRealtime();
+		mTimeoutHandler.postDelayed(mTimeoutChecker, delay > 0 ? delay : 0);
+	}
+
+
+	/*****************************************************
+	 *	Handler, Listener, Timer, Sub classes
+	 ******************************************************/
+
+	private final Runnable mTimeoutChecker = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(GattOperationQueue.this) {
+				long now = SystemClock.elapsedRealtime();
+				for(int i = mInFlightOps.size() - 1; i >= 0; i--) {
+					GattOperation op = mInFlightOps.get(i);
+					if(now - op.mStartTime >= mTimeout) {
+						Logs.d(TAG, "# Operation timed out: type={}", op.mType);
+						mInFlightOps.remove(i);
+						mTimeoutCount++;
+						releaseSlot();
+					}
+				}
+				drain();
+				scheduleTimeoutCheck();
+			}
+		}
+	};
+
+	private final Runnable mRetryRunner = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(GattOperationQueue.this) {
+				mIsRetryScheduled = false;
+				drain();
+			}
+		}
+	};
+
+	/**
+	 * Shares radio time among operation queues of several connections.
+	 * A queue asks for a slot before issuing an operation and gives it back when the operation ends.
+	 * Scheduler methods are called with the queue locked, so a scheduler must not call
+	 * onSlotGranted() from them. Grants are delivered later on another thread.
+	 */
+	public interface RadioScheduler {
+		/**
+		 * @param queue		requesting queue. Only one request of a queue waits at a time.
+		 * @param size		payload bytes of the operation
+		 * @return	boolean		true if granted now. Otherwise queue.onSlotGranted() is called later.
+		 */
+		public boolean requestSlot(GattOperationQueue queue, int size);
+
+		public void releaseSlot(GattOperationQueue queue);
+
+		/**
+		 * Withdraw a waiting request. A grant already on its way is still delivered.
+		 */
+		public void cancelRequest(GattOperationQueue queue);
+	}
+
+	/**
+	 * Single GATT request
+	 */
+	private static class GattOperation {
+		final int mType;
+		final BluetoothGattCharacteristic mChar;
+		final byte[] mData;
+		int mArg;
+		int mRetryCount = 0;
+		long mEnqueueTime;
+		long mStartTime;
+
+		GattOperation(int type, BluetoothGattCharacteristic chr, byte[] data) {
+			mType = type;
+			mChar = chr;
+			mData = data;
+		}
+
+		/**
+		 * Returns bytes sent with this operation
+		 */
+		int getSize() {
+			return (mType == OP_WRITE || mType == OP_WRITE_NO_RESPONSE) && mData != null ? mData.length : 0;
+		}
+
+		boolean matches(int type, BluetoothGattCharacteristic chr) {
+			if(type == OP_REQUEST_MTU)
+				return mType == OP_REQUEST_MTU;
+			if(mChar != chr)
+				return false;
+			if(type == OP_WRITE || type == OP_WRITE_NO_RESPONSE)
+				return (mType == OP_WRITE || mType == OP_WRITE_NO_RESPONSE);
+			return mType == type;
+		}
+	}	// End of class GattOperation
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import com.hardcopy.blechat.contents.CommandParser;
+import com.hardcopy.blechat.utils.Logs;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * One GATT connection of GattConnectionPool.
+ *
+ * Each session has its own GATT instance, characteristic tables, operation queue
+ * and receive pipeline (TransactionReceiver and CommandParser), so links don't
+ * share reassembly or parser state.
+ * Messages are sent to the handler with GattConnectionPool.MESSAGE_SESSION_XXX codes
+ * and the session ID in arg2.
+ */
+public class GattSession {
+
+	// Debugging
+	private static final String TAG = "GattSession";
+
+	// System
+	private final int mId;
+	private final BluetoothDevice mDevice;
+	private final Handler mHandler;
+	private BluetoothGatt mBluetoothGatt = null;
+
+	// GATT tables
+	private final ArrayList<BluetoothGattService> mGattServices
+			= new ArrayList<BluetoothGattService>();
+	private final ArrayList<BluetoothGattCharacteristic> mGattCharacteristics
+			= new ArrayList<BluetoothGattCharacteristic>();
+	private final ArrayList<BluetoothGattCharacteristic> mWritableCharacteristics
+			= new ArrayList<BluetoothGattCharacteristic>();
+	private BluetoothGattCharacteristic mDefaultChar = null;
+
+	// Every GATT request of this link goes through this queue
+	private final GattOperationQueue mOperationQueue = new GattOperationQueue();
+
+	// Receive pipeline
+	private final TransactionReceiver mTransactionReceiver;
+	private final CommandParser mCommandParser = new CommandParser();
+	private final Executor mCommandExecutor;
+
+	// Parameters
+	private volatile int mState = BleTransport.STATE_IDLE;
+	private volatile int mMtu = BleTransport.DEFAULT_MTU;
+
+	// Statistics
+	private long mNotificationCount = 0;
+	private long mReceivedBytes = 0;
+
+
+	/**
+	 * @param id			session ID. Sent in arg2 of every message.
+	 * @param device		remote device
+	 * @param h				receives GattConnectionPool.MESSAGE_SESSION_XXX
+	 * @param executor		runs command handlers found in received stream
+	 */
+	GattSession(int id, BluetoothDevice device, Handler h, Executor executor) {
+		mId = id;
+		mDevice = device;
+		mHandler = h;
+		mTransactionReceiver = new TransactionReceiver(h);
+		mCommandExecutor = executor;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	public int getId() {
+		return mId;
+	}
+
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	public String getAddress() {
+		return mDevice.getAddress();
+	}
+
+	/**
+	 * Returns BleTransport.STATE_XXX
+	 */
+	public int getState() {
+		return mState;
+	}
+
+	public int getMtu() {
+		return mMtu;
+	}
+
+	public int getMaxPayloadSize() {
+		return mMtu - BleTransport.ATT_HEADER_SIZE;
+	}
+
+	public GattOperationQueue getOperationQueue() {
+		return mOperationQueue;
+	}
+
+	/**
+	 * Returns frame parser of this link. Set a frame listener to get frames.
+	 */
+	public TransactionReceiver getTransactionReceiver() {
+		return mTransactionReceiver;
+	}
+
+	/**
+	 * Returns command parser of this link. Register commands to handle.
+	 */
+	public CommandParser getCommandParser() {
+		return mCommandParser;
+	}
+
+	public synchronized ArrayList<BluetoothGattService> getServices() {
+		return new ArrayList<BluetoothGattService>(mGattServices);
+	}
+
+	public synchronized ArrayList<BluetoothGattCharacteristic> getCharacteristics() {
+		return new ArrayList<BluetoothGattCharacteristic>(mGattCharacteristics);
+	}
+
+	public synchronized long getNotificationCount() {
+		return mNotificationCount;
+	}
+
+	public synchronized long getReceivedBytes() {
+		return mReceivedBytes;
+	}
+
+	/**
+	 * Write to default writable characteristic or the characteristic of given UUID
+	 * @param uuid		characteristic UUID, or null for default characteristic
+	 * @param data		no longer than getMaxPayloadSize()
+	 * @return	boolean		false if write cannot be queued
+	 */
+	public boolean write(UUID uuid, byte[] data) {
+		BluetoothGattCharacteristic chr;
+		synchronized(this) {
+			if(mBluetoothGatt == null || mState != BleTransport.STATE_CONNECTED) {
+				Logs.d(TAG, "# Session {} is not connected", mId);
+				return false;
+			}
+			chr = (uuid == null ? mDefaultChar : findCharacteristic(uuid));
+			if(chr == null && uuid == null && !mWritableCharacteristics.isEmpty())
+				chr = mWritableCharacteristics.get(0);
+		}
+		if(chr == null || !isWritable(chr)) {
+			Logs.d(TAG, "# Write failed - No available characteristic: {}", uuid);
+			return false;
+		}
+		return mOperationQueue.write(chr, data, false);
+	}
+
+	/**
+	 * Called by GattConnectionPool
+	 */
+	synchronized boolean connect(Context c, boolean autoReconnect) {
+		if(mState >= BleTransport.STATE_CONNECTING)
+			return true;
+		resetLink();
+		if(mBluetoothGatt != null && mBluetoothGatt.connect()) {
+			setState(BleTransport.STATE_CONNECTING);
+			return true;
+		}
+		mBluetoothGatt = mDevice.connectGatt(c, autoReconnect, mGattCallback);
+		if(mBluetoothGatt == null)
+			return false;
+		mOperationQueue.setGatt(mBluetoothGatt);
+		setState(BleTransport.STATE_CONNECTING);
+		return true;
+	}
+
+	/**
+	 * Disconnect and release GATT client. Android has a limited number of GATT clients,
+	 * so a session removed from the pool must be closed.
+	 */
+	synchronized void close() {
+		mOperationQueue.setGatt(null);
+		if(mBluetoothGatt != null) {
+			mBluetoothGatt.disconnect();
+			mBluetoothGatt.close();
+			mBluetoothGatt = null;
+		}
+		resetLink();
+		if(mState != BleTransport.STATE_IDLE)
+			setState(BleTransport.STATE_IDLE);
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void setState(int state) {
+		mState = state;
+		mHandler.obtainMessage(GattConnectionPool.MESSAGE_SESSION_STATE_CHANGE, state, mId).sendToTarget();
+	}
+
+	private void clearTables() {
+		mGattServices.clear();
+		mGattCharacteristics.clear();
+		mWritableCharacteristics.clear();
+		mDefaultChar = null;
+	}
+
+	/**
+	 * Forget everything about previous connection
+	 */
+	private void resetLink() {
+		clearTables();
+		mMtu = BleTransport.DEFAULT_MTU;
+		mTransactionReceiver.reset();
+		mCommandParser.resetParser();
+	}
+
+	/**
+	 * Remember services and characteristics. Readable ones are read,
+	 * notifications are enabled, and a default writable characteristic is selected.
+	 */
+	private synchronized void checkGattServices(List<BluetoothGattService> gattServices) {
+		clearTables();
+		for(BluetoothGattService gattService : gattServices) {
+			mGattServices.add(gattService);
+			for(BluetoothGattCharacteristic chr : gattService.getCharacteristics()) {
+				mGattCharacteristics.add(chr);
+				boolean isWritable = isWritable(chr);
+				if(isWritable)
+					mWritableCharacteristics.add(chr);
+
+				int properties = chr.getProperties();
+				boolean isReadable = (properties & BluetoothGattCharacteristic.PROPERTY_READ) > 0;
+				if(isReadable)
+					mOperationQueue.read(chr);
+				if((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+					mOperationQueue.setNotification(chr, true);
+					if(isWritable && isReadable)
+						mDefaultChar = chr;
+				}
+			}
+		}
+		Logs.d(TAG, "# Session {} services discovered: characteristics={}", mId, mGattCharacteristics.size());
+	}
+
+	private BluetoothGattCharacteristic findCharacteristic(UUID uuid) {
+		for(BluetoothGattCharacteristic chr : mGattCharacteristics) {
+			if(chr.getUuid().equals(uuid))
+				return chr;
+		}
+		return null;
+	}
+
+	private static boolean isWritable(BluetoothGattCharacteristic chr) {
+		return (chr.getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE
+				| BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0;
+	}
+
+
+	/*****************************************************
+	 *	Handler, Listener, Timer, Sub classes
+	 ******************************************************/
+
+	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			if(newState == BluetoothProfile.STATE_CONNECTED) {
+				Logs.d(TAG, "# Session {} connected", mId);
+				setState(BleTransport.STATE_CONNECTED);
+				gatt.discoverServices();
+			} else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
+				Logs.d(TAG, "# Session {} disconnected", mId);
+				// Keep GATT instance. Auto reconnect uses it.
+				mOperationQueue.clear();
+				synchronized(GattSession.this) {
+					resetLink();
+				}
+				setState(BleTransport.STATE_IDLE);
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+			if(status != BluetoothGatt.GATT_SUCCESS) {
+				Logs.d(TAG, "# Session {} discovery failed: {}", mId, status);
+				return;
+			}
+			// Negotiate MTU before other requests are queued. Ignored before Android 5.0.
+			mOperationQueue.requestMtu(BleTransport.DESIRED_MTU);
+			checkGattServices(gatt.getServices());
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			mOperationQueue.onOperationCompleted(GattOperationQueue.OP_READ, characteristic, status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			mOperationQueue.onOperationCompleted(GattOperationQueue.OP_WRITE, characteristic, status);
+		}
+
+		// Callback of API 21. No @Override on API 18 build target.
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			if(status == BluetoothGatt.GATT_SUCCESS) {
+				Logs.d(TAG, "# Session {} MTU changed: {}", mId, mtu);
+				mMtu = mtu;
+				mHandler.obtainMessage(GattConnectionPool.MESSAGE_SESSION_MTU_CHANGED, mtu, mId).sendToTarget();
+			}
+			mOperationQueue.onOperationCompleted(GattOperationQueue.OP_REQUEST_MTU, null, status);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			mOperationQueue.onOperationCompleted(GattOperationQueue.OP_SET_NOTIFICATION,
+					descriptor.getCharacteristic(), status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+			final byte[] data = characteristic.getValue();
+			if(data == null || data.length < 1)
+				return;
+			synchronized(GattSession.this) {
+				mNotificationCount++;
+				mReceivedBytes += data.length;
+			}
+			// Parse on callback thread. Value can be overwritten by the next notification.
+			mTransactionReceiver.setByteArray(data, data.length);
+			mCommandParser.setBytes(data, 0, data.length);
+			if(mCommandExecutor != null)
+				mCommandParser.dispatchCommands(mCommandExecutor);
+			// Commands are handled above. Handler gets the bytes only to show them.
+			mHandler.obtainMessage(GattConnectionPool.MESSAGE_SESSION_READ, data.length, mId,
+					ByteSlice.obtain(data, 0, data.length)).sendToTarget();
+		}
+	};
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Collects scan results by device address.
+ *
+ * A device may advertise many times per second, and every advertisement is a scan callback.
+ * The aggregator keeps one entry per address with smoothed RSSI, last seen time and
+ * advertisement count, and reports only changed and removed entries to the listener
+ * on main thread, at most once per UPDATE_INTERVAL.
+ *
+ * Entries are kept in least recently seen order up to MAX_DEVICES, and the aggregator is
+ * a process-wide singleton. So devices found by previous scans can be shown as soon as
+ * a device list opens, before the first advertisement arrives.
+ */
+public class ScanAggregator {
+
+	public static final long UPDATE_INTERVAL = 250;		// Minimum time between listener calls (ms)
+	public static final int MAX_DEVICES = 64;
+	public static final float RSSI_SMOOTHING = 0.25f;	// Weight of a new sample
+
+	private static ScanAggregator mAggregator = null;		// Singleton pattern
+
+	private final Handler mHandler;
+	private OnScanUpdateListener mListener = null;
+
+	// Devices in least recently seen order
+	private final LinkedHashMap<String, ScannedDevice> mDevices
+			= new LinkedHashMap<String, ScannedDevice>(MAX_DEVICES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ScannedDevice> eldest) {
+			if(size() <= MAX_DEVICES)
+				return false;
+			// Random addresses of privacy enabled devices must not pile up
+			onDeviceRemoved(eldest.getValue());
+			return true;
+		}
+	};
+	private final ArrayList<ScannedDevice> mChangedDevices = new ArrayList<ScannedDevice>();
+	private final ArrayList<String> mRemovedAddresses = new ArrayList<String>();		// Kept only while listener is set
+	private boolean mIsUpdateScheduled = false;
+	private long mLastUpdateTime = 0;
+
+	// Statistics
+	private long mAdvertisementCount = 0;
+	private long mUpdateCount = 0;
+
+
+	private ScanAggregator() {
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	public synchronized static ScanAggregator getInstance() {
+		if(mAggregator == null)
+			mAggregator = new ScanAggregator();
+		return mAggregator;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Set listener which receives changed devices on main thread
+	 * @param listener		null to stop updates
+	 */
+	public synchronized void setOnScanUpdateListener(OnScanUpdateListener listener) {
+		mListener = listener;
+		// New listener starts from getRecentDevices()
+		mRemovedAddresses.clear();
+		if(!mChangedDevices.isEmpty())
+			scheduleUpdate(SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Add an advertisement. Can be called on any thread.
+	 * @param address		device address
+	 * @param name			device name. Can be null.
+	 * @param rssi			received signal strength (dBm)
+	 */
+	public synchronized void onDeviceFound(String address, String name, int rssi) {
+		if(address == null)
+			return;
+		mAdvertisementCount++;
+		long now = SystemClock.elapsedRealtime();
+
+		ScannedDevice device = mDevices.get(address);
+		if(device == null) {
+			device = new ScannedDevice(address);
+			device.mRssi = rssi;
+			mDevices.put(address, device);
+		} else {
+			device.mRssi += (rssi - device.mRssi) * RSSI_SMOOTHING;
+		}
+		if(name != null)
+			device.mName = name;
+		device.mLastSeen = now;
+		device.mCount++;
+
+		if(!device.mIsChanged) {
+			device.mIsChanged = true;
+			mChangedDevices.add(device);
+		}
+		scheduleUpdate(now);
+	}
+
+	/**
+	 * Returns true if the address is kept with a name. Use this to look for the name
+	 * only until one is found.
+	 */
+	public synchronized boolean hasName(String address) {
+		ScannedDevice device = mDevices.get(address);
+		return device != null && device.mName != null;
+	}
+
+	/**
+	 * Returns copies of known devices, most recently seen first
+	 */
+	public synchronized ArrayList<ScannedDevice> getRecentDevices() {
+		ArrayList<ScannedDevice> devices = new ArrayList<ScannedDevice>(mDevices.size());
+		for(ScannedDevice device : mDevices.values())
+			devices.add(0, device.copy());
+		return devices;
+	}
+
+	/**
+	 * Forget devices not seen for the given time
+	 * @param age		milliseconds
+	 */
+	public synchronized void removeOlderThan(long age) {
+		long now = SystemClock.elapsedRealtime();
+		Iterator<ScannedDevice> it = mDevices.values().iterator();
+		while(it.hasNext()) {
+			ScannedDevice device = it.next();
+			if(now - device.mLastSeen > age) {
+				it.remove();
+				onDeviceRemoved(device);
+			}
+		}
+	}
+
+	public synchronized long getAdvertisementCount() {
+		return mAdvertisementCount;
+	}
+
+	/**
+	 * Returns how many times the listener is called
+	 */
+	public synchronized long getUpdateCount() {
+		return mUpdateCount;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void onDeviceRemoved(ScannedDevice device) {
+		if(device.mIsChanged) {
+			device.mIsChanged = false;
+			mChangedDevices.remove(device);
+		}
+		if(mListener != null) {
+			mRemovedAddresses.add(device.mAddress);
+			scheduleUpdate(SystemClock.elapsedRealtime());
+		}
+	}
+
+	private void scheduleUpdate(long now) {
+		if(mIsUpdateScheduled || mListener == null)
+			return;
+		mIsUpdateScheduled = true;
+		long delay = mLastUpdateTime + UPDATE_INTERVAL - now;
+		mHandler.postDelayed(mUpdater, delay > 0 ? delay : 0);
+	}
+
+
+	/*****************************************************
+	 *	Handler, Listener, Timer, Sub classes
+	 ******************************************************/
+
+	private final Runnable mUpdater = new Runnable() {
+		@Override
+		public void run() {
+			OnScanUpdateListener listener;
+			ArrayList<ScannedDevice> changed;
+			ArrayList<String> removed;
+			synchronized(ScanAggregator.this) {
+				mIsUpdateScheduled = false;
+				mLastUpdateTime = SystemClock.elapsedRealtime();
+				listener = mListener;
+				if(listener == null || (mChangedDevices.isEmpty() && mRemovedAddresses.isEmpty()))
+					return;
+				changed = new ArrayList<ScannedDevice>(mChangedDevices.size());
+				for(ScannedDevice device : mChangedDevices) {
+					device.mIsChanged = false;
+					changed.add(device.copy());
+				}
+				mChangedDevices.clear();
+				removed = new ArrayList<String>(mRemovedAddresses);
+				mRemovedAddresses.clear();
+				mUpdateCount++;
+			}
+			listener.onScanUpdate(changed, removed);
+		}
+	};
+
+	public interface OnScanUpdateListener {
+		/**
+		 * Called on main thread
+		 * @param changed		copies of devices added or updated since the last call
+		 * @param removed		addresses the aggregator forgot since the last call.
+		 * 						Apply them before changed. An address can be in both.
+		 */
+		public void onScanUpdate(ArrayList<ScannedDevice> changed, ArrayList<String> removed);
+	}
+
+	/**
+	 * Aggregated scan results of a device
+	 */
+	public static class ScannedDevice {
+		private final String mAddress;
+		private String mName = null;
+		private float mRssi;
+		private long mLastSeen;
+		private int mCount;
+		private boolean mIsChanged = false;
+
+		ScannedDevice(String address) {
+			mAddress = address;
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		/**
+		 * Returns advertised name or null
+		 */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * Returns smoothed RSSI (dBm)
+		 */
+		public int getRssi() {
+			return Math.round(mRssi);
+		}
+
+		/**
+		 * Returns SystemClock.elapsedRealtime() of the last advertisement
+		 */
+		public long getLastSeen() {
+			return mLastSeen;
+		}
+
+		/**
+		 * Returns number of advertisements received
+		 */
+		public int getCount() {
+			return mCount;
+		}
+
+		ScannedDevice copy() {
+			ScannedDevice device = new ScannedDevice(mAddress);
+			device.mName = mName;
+			device.mRssi = mRssi;
+			device.mLastSeen = mLastSeen;
+			device.mCount = mCount;
+			return device;
+		}
+	}	// End of class ScannedDevice
+
+}
@@ -0,0 +1,819 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hardcopy.blechat.contents.CommandHandler;
+import com.hardcopy.blechat.contents.CommandParser;
+import com.hardcopy.blechat.utils.Logs;
+
+/**
+ * BleTransport connected to a simulated peripheral. Runs on a plain JVM.
+ *
+ * The peripheral has one service with a notify characteristic (TX) and a write characteristic (RX).
+ * Packets move only at connection events. Each event carries up to getPacketsPerEvent() packets
+ * in each direction and is delivered after the configured latency.
+ * Event times are shifted by a random jitter.
+ * A lost packet is retransmitted at the next connection event like the link layer does,
+ * or discarded when setDropLostPackets(true) is set.
+ *
+ * Peripheral side is driven with sendNotification() and PeripheralCallback.
+ * Every callback runs on the single simulator thread, in time order.
+ *
+ * 		java ... com.hardcopy.blechat.bluetooth.SimulatedPeripheral [seconds] [interval(us)] [loss rate] [frame|text]
+ * runs a load test through the receive pipeline and prints throughput.
+ */
+public class SimulatedPeripheral implements BleTransport {
+
+	// Debugging
+	private static final String TAG = "SimulatedPeripheral";
+
+	public static final String DEFAULT_ADDRESS = "5A:00:00:00:00:01";
+	public static final String DEFAULT_NAME = "Simulated peripheral";
+
+	// Same layout as Nordic UART service
+	public static final UUID SERVICE_UUID = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+	public static final UUID RX_CHARACTERISTIC = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");	// Central writes
+	public static final UUID TX_CHARACTERISTIC = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");	// Peripheral notifies
+
+	public static final int DEFAULT_MAX_MTU = DESIRED_MTU;
+	public static final long DEFAULT_CONNECTION_INTERVAL = 30 * 1000;	// us
+	public static final int DEFAULT_PACKETS_PER_EVENT = 4;
+	public static final int MAX_QUEUED_PACKETS = 1024;		// Per direction. Write fails when full.
+
+	private static final long ADVERTISING_INTERVAL = 100 * 1000 * 1000;		// ns
+	private static final int DISCOVERY_EVENTS = 4;		// Connection events to discover services
+	private static final int MTU_EXCHANGE_EVENTS = 2;	// Connection events to exchange MTU
+
+	// Simulator actions
+	private static final int ACTION_STATE_CHANGED = 1;
+	private static final int ACTION_ADVERTISE = 2;
+	private static final int ACTION_SCAN_TIMEOUT = 3;
+	private static final int ACTION_CONNECTED = 4;
+	private static final int ACTION_CONNECTION_EVENT = 5;
+	private static final int ACTION_SERVICES_DISCOVERED = 6;
+	private static final int ACTION_NOTIFICATION_SET = 7;
+	private static final int ACTION_MTU_CHANGED = 8;
+	private static final int ACTION_DELIVER_NOTIFICATION = 9;
+	private static final int ACTION_DELIVER_WRITE = 10;
+
+	// Peripheral
+	private final String mAddress;
+	private final String mName;
+	private final byte[] mScanRecord;
+
+	// Link parameters
+	private int mMaxMtu = DEFAULT_MAX_MTU;
+	private long mInterval = DEFAULT_CONNECTION_INTERVAL * 1000;		// ns
+	private long mLatency = 0;		// ns
+	private long mJitter = 0;		// ns
+	private double mLossRate = 0;
+	private int mPacketsPerEvent = DEFAULT_PACKETS_PER_EVENT;
+	private boolean mDropLostPackets = false;
+	private final Random mRandom = new Random();
+
+	// Listeners
+	private volatile BleTransport.Listener mListener = null;
+	private volatile PeripheralCallback mPeripheralCallback = null;
+
+	// Connection. Tasks of a previous connection are ignored by comparing mConnectionId.
+	private int mState = STATE_NONE;
+	private int mMtu = DEFAULT_MTU;
+	private int mConnectionId = 0;
+	private int mScanId = 0;
+	private boolean mIsDiscovered = false;
+	private boolean mIsNotifying = false;
+
+	// Simulator. Tasks run in time order, tasks of the same time in scheduled order.
+	private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>(64, new Comparator<Task>() {
+		@Override
+		public int compare(Task a, Task b) {
+			if(a.mTime != b.mTime)
+				return (a.mTime - b.mTime < 0 ? -1 : 1);
+			return (a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1));
+		}
+	});
+	private final ArrayDeque<Task> mDownlink = new ArrayDeque<Task>();		// Notifications waiting for a connection event
+	private final ArrayDeque<Task> mUplink = new ArrayDeque<Task>();		// Writes waiting for a connection event
+	private final ArrayDeque<Task> mFreeTasks = new ArrayDeque<Task>();
+	private long mSequence = 0;
+	private Thread mThread = null;
+	private boolean mIsRunning = false;
+
+	// Statistics
+	private long mEventCount = 0;
+	private long mDeliveredCount = 0;
+	private long mLostCount = 0;
+	private long mDroppedCount = 0;
+	private long mRejectedCount = 0;
+
+
+	public SimulatedPeripheral(String address, String name) {
+		mAddress = address;
+		mName = name;
+		mScanRecord = makeScanRecord(name);
+	}
+
+	public SimulatedPeripheral() {
+		this(DEFAULT_ADDRESS, DEFAULT_NAME);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Largest ATT MTU the peripheral accepts
+	 */
+	public synchronized void setMaxMtu(int mtu) {
+		mMaxMtu = Math.max(DEFAULT_MTU, mtu);
+	}
+
+	/**
+	 * @param interval		connection interval (us). BLE allows 7500 to 4000000.
+	 */
+	public synchronized void setConnectionInterval(long interval) {
+		mInterval = Math.max(1, interval) * 1000;
+	}
+
+	/**
+	 * @param latency		delay from a connection event to delivery of its packets (us)
+	 */
+	public synchronized void setLatency(long latency) {
+		mLatency = Math.max(0, latency) * 1000;
+	}
+
+	/**
+	 * @param jitter		maximum random delay added to each connection event (us)
+	 */
+	public synchronized void setJitter(long jitter) {
+		mJitter = Math.max(0, jitter) * 1000;
+	}
+
+	/**
+	 * @param rate		probability that a packet is lost (0.0 ~ 1.0)
+	 */
+	public synchronized void setPacketLoss(double rate) {
+		mLossRate = Math.min(1.0, Math.max(0.0, rate));
+	}
+
+	/**
+	 * @param count		packets per direction in one connection event
+	 */
+	public synchronized void setPacketsPerEvent(int count) {
+		mPacketsPerEvent = Math.max(1, count);
+	}
+
+	public synchronized int getPacketsPerEvent() {
+		return mPacketsPerEvent;
+	}
+
+	/**
+	 * @param drop		true to discard lost packets instead of retransmitting them.
+	 * 					Use this to exercise error recovery of the receive pipeline.
+	 */
+	public synchronized void setDropLostPackets(boolean drop) {
+		mDropLostPackets = drop;
+	}
+
+	/**
+	 * Make jitter and packet loss reproducible
+	 */
+	public synchronized void setSeed(long seed) {
+		mRandom.setSeed(seed);
+	}
+
+	public void setPeripheralCallback(PeripheralCallback cb) {
+		mPeripheralCallback = cb;
+	}
+
+	/**
+	 * Stop simulator thread. Connection is closed without callback.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized(this) {
+			mIsRunning = false;
+			mConnectionId++;
+			mScanId++;
+			mState = STATE_IDLE;
+			clearLink();
+			while(!mTasks.isEmpty())
+				recycleTask(mTasks.poll());
+			thread = mThread;
+			mThread = null;
+		}
+		if(thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join(1000);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queue a notification from peripheral to central
+	 * @return	boolean		false if not connected, notification is disabled,
+	 * 						data is longer than maximum payload or queue is full
+	 */
+	public synchronized boolean sendNotification(byte[] data, int offset, int length) {
+		if(mState != STATE_CONNECTED || !mIsNotifying || length > mMtu - ATT_HEADER_SIZE
+				|| mDownlink.size() >= MAX_QUEUED_PACKETS) {
+			mRejectedCount++;
+			return false;
+		}
+		mDownlink.add(obtainPacket(ACTION_DELIVER_NOTIFICATION, data, offset, length));
+		return true;
+	}
+
+	/**
+	 * Returns notifications waiting for a connection event
+	 */
+	public synchronized int getQueuedNotificationCount() {
+		return mDownlink.size();
+	}
+
+	public synchronized long getConnectionEventCount() {
+		return mEventCount;
+	}
+
+	/**
+	 * Returns packets delivered in both directions
+	 */
+	public synchronized long getDeliveredCount() {
+		return mDeliveredCount;
+	}
+
+	/**
+	 * Returns lost transmissions. Retransmitted packets are counted again.
+	 */
+	public synchronized long getLostCount() {
+		return mLostCount;
+	}
+
+	/**
+	 * Returns lost packets discarded in drop mode
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Returns writes and notifications refused because of state, size or full queue
+	 */
+	public synchronized long getRejectedCount() {
+		return mRejectedCount;
+	}
+
+
+	/*****************************************************
+	 *	BleTransport methods
+	 ******************************************************/
+
+	@Override
+	public void setTransportListener(BleTransport.Listener listener) {
+		mListener = listener;
+	}
+
+	@Override
+	public synchronized boolean startScan() {
+		if(mState == STATE_SCANNING || mState >= STATE_CONNECTING)
+			return false;
+		setState(STATE_SCANNING);
+		mScanId++;
+		long now = System.nanoTime();
+		schedule(now + (long) (mRandom.nextDouble() * ADVERTISING_INTERVAL), ACTION_ADVERTISE, mScanId);
+		schedule(now + SCAN_PERIOD * 1000 * 1000, ACTION_SCAN_TIMEOUT, mScanId);
+		return true;
+	}
+
+	@Override
+	public synchronized void stopScan() {
+		if(mState != STATE_SCANNING)
+			return;
+		mScanId++;
+		setState(STATE_IDLE);
+	}
+
+	@Override
+	public synchronized boolean connect(String address) {
+		if(address == null || !address.equals(mAddress) || mState >= STATE_CONNECTING)
+			return false;
+		mScanId++;
+		mConnectionId++;
+		setState(STATE_CONNECTING);
+		schedule(System.nanoTime() + mInterval + mLatency, ACTION_CONNECTED, mConnectionId);
+		return true;
+	}
+
+	@Override
+	public synchronized void disconnect() {
+		if(mState < STATE_CONNECTING)
+			return;
+		mConnectionId++;
+		clearLink();
+		setState(STATE_IDLE);
+	}
+
+	@Override
+	public synchronized boolean discoverServices() {
+		if(mState != STATE_CONNECTED)
+			return false;
+		schedule(System.nanoTime() + DISCOVERY_EVENTS * mInterval + mLatency,
+				ACTION_SERVICES_DISCOVERED, mConnectionId);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean setNotification(UUID characteristic, boolean enable) {
+		if(mState != STATE_CONNECTED || !mIsDiscovered || !TX_CHARACTERISTIC.equals(characteristic))
+			return false;
+		Task task = schedule(System.nanoTime() + mInterval + mLatency, ACTION_NOTIFICATION_SET, mConnectionId);
+		task.mArg = (enable ? 1 : 0);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean write(UUID characteristic, byte[] data) {
+		if(mState != STATE_CONNECTED || !mIsDiscovered || data == null
+				|| (characteristic != null && !RX_CHARACTERISTIC.equals(characteristic))
+				|| data.length > mMtu - ATT_HEADER_SIZE
+				|| mUplink.size() >= MAX_QUEUED_PACKETS) {
+			mRejectedCount++;
+			return false;
+		}
+		mUplink.add(obtainPacket(ACTION_DELIVER_WRITE, data, 0, data.length));
+		return true;
+	}
+
+	@Override
+	public synchronized boolean requestMtu(int mtu) {
+		if(mState != STATE_CONNECTED)
+			return false;
+		Task task = schedule(System.nanoTime() + MTU_EXCHANGE_EVENTS * mInterval + mLatency,
+				ACTION_MTU_CHANGED, mConnectionId);
+		task.mArg = Math.max(DEFAULT_MTU, Math.min(mtu, mMaxMtu));
+		return true;
+	}
+
+	@Override
+	public synchronized int getMtu() {
+		return mMtu;
+	}
+
+	@Override
+	public synchronized int getMaxPayloadSize() {
+		return mMtu - ATT_HEADER_SIZE;
+	}
+
+	@Override
+	public synchronized int getState() {
+		return mState;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	/**
+	 * Change state and report it on simulator thread
+	 */
+	private void setState(int state) {
+		mState = state;
+		Task task = schedule(System.nanoTime(), ACTION_STATE_CHANGED, 0);
+		task.mArg = state;
+	}
+
+	/**
+	 * Add a task and wake up simulator thread. Thread is started on first use.
+	 * @param id		connection or scan ID the task belongs to
+	 */
+	private Task schedule(long time, int action, int id) {
+		Task task = obtainTask(action);
+		task.mTime = time;
+		task.mId = id;
+		task.mSequence = mSequence++;
+		mTasks.add(task);
+
+		if(mThread == null) {
+			mIsRunning = true;
+			mThread = new Thread(mSimulator, "SimulatedPeripheral");
+			mThread.setDaemon(true);
+			mThread.start();
+		} else if(mTasks.peek() == task) {
+			LockSupport.unpark(mThread);
+		}
+		return task;
+	}
+
+	/**
+	 * Update simulator state for a task. Called with lock held.
+	 * @return	boolean		true if the task has a callback to dispatch
+	 */
+	private boolean execute(Task task, long now) {
+		switch(task.mAction) {
+		case ACTION_STATE_CHANGED:
+			return true;
+
+		case ACTION_ADVERTISE:
+			if(task.mId != mScanId || mState != STATE_SCANNING)
+				return false;
+			schedule(task.mTime + ADVERTISING_INTERVAL, ACTION_ADVERTISE, mScanId);
+			task.mArg = -50 - mRandom.nextInt(40);		// RSSI
+			return true;
+
+		case ACTION_SCAN_TIMEOUT:
+			if(task.mId == mScanId && mState == STATE_SCANNING) {
+				mScanId++;
+				setState(STATE_IDLE);
+			}
+			return false;
+
+		case ACTION_CONNECTED:
+			if(task.mId != mConnectionId || mState != STATE_CONNECTING)
+				return false;
+			mMtu = DEFAULT_MTU;
+			mIsDiscovered = false;
+			mIsNotifying = false;
+			setState(STATE_CONNECTED);
+			schedule(now + mInterval, ACTION_CONNECTION_EVENT, mConnectionId);
+			return false;
+
+		case ACTION_CONNECTION_EVENT:
+			if(task.mId != mConnectionId || mState != STATE_CONNECTED)
+				return false;
+			mEventCount++;
+			transmit(mDownlink, now);
+			transmit(mUplink, now);
+			long jitter = (mJitter > 0 ? (long) (mRandom.nextDouble() * mJitter) : 0);
+			schedule(now + mInterval + jitter, ACTION_CONNECTION_EVENT, mConnectionId);
+			return false;
+
+		case ACTION_SERVICES_DISCOVERED:
+			if(task.mId != mConnectionId || mState != STATE_CONNECTED)
+				return false;
+			// Discovery enables notification like BleManager does
+			mIsDiscovered = true;
+			mIsNotifying = true;
+			return true;
+
+		case ACTION_NOTIFICATION_SET:
+			if(task.mId == mConnectionId && mState == STATE_CONNECTED)
+				mIsNotifying = (task.mArg != 0);
+			return false;
+
+		case ACTION_MTU_CHANGED:
+			if(task.mId != mConnectionId || mState != STATE_CONNECTED)
+				return false;
+			mMtu = task.mArg;
+			return true;
+
+		case ACTION_DELIVER_NOTIFICATION:
+		case ACTION_DELIVER_WRITE:
+			if(task.mId != mConnectionId || mState != STATE_CONNECTED)
+				return false;
+			mDeliveredCount++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Send queued packets of one direction at a connection event.
+	 * Packets are kept in order, so a lost packet blocks the rest until it's retransmitted.
+	 */
+	private void transmit(ArrayDeque<Task> queue, long now) {
+		for(int i = 0; i < mPacketsPerEvent && !queue.isEmpty(); i++) {
+			if(mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+				mLostCount++;
+				if(!mDropLostPackets)
+					break;
+				mDroppedCount++;
+				recycleTask(queue.poll());
+				continue;
+			}
+			Task packet = queue.poll();
+			packet.mTime = now + mLatency;
+			packet.mId = mConnectionId;
+			packet.mSequence = mSequence++;
+			mTasks.add(packet);
+		}
+	}
+
+	/**
+	 * Call listeners for a task. Called on simulator thread without lock.
+	 */
+	private void dispatch(Task task) {
+		BleTransport.Listener listener = mListener;
+		switch(task.mAction) {
+		case ACTION_STATE_CHANGED:
+			if(listener != null)
+				listener.onStateChanged(task.mArg);
+			break;
+
+		case ACTION_ADVERTISE:
+			if(listener != null)
+				listener.onDeviceFound(mAddress, mName, task.mArg, mScanRecord);
+			break;
+
+		case ACTION_SERVICES_DISCOVERED:
+			if(listener != null)
+				listener.onServicesDiscovered(true);
+			break;
+
+		case ACTION_MTU_CHANGED:
+			if(listener != null)
+				listener.onMtuChanged(task.mArg);
+			break;
+
+		case ACTION_DELIVER_NOTIFICATION:
+			if(listener != null)
+				listener.onNotification(TX_CHARACTERISTIC, task.mData, task.mLength);
+			break;
+
+		case ACTION_DELIVER_WRITE:
+			PeripheralCallback cb = mPeripheralCallback;
+			if(cb != null)
+				cb.onWriteReceived(RX_CHARACTERISTIC, task.mData, task.mLength);
+			break;
+		}
+	}
+
+	private void clearLink() {
+		while(!mDownlink.isEmpty())
+			recycleTask(mDownlink.poll());
+		while(!mUplink.isEmpty())
+			recycleTask(mUplink.poll());
+		mMtu = DEFAULT_MTU;
+		mIsDiscovered = false;
+		mIsNotifying = false;
+	}
+
+	private Task obtainTask(int action) {
+		Task task = mFreeTasks.poll();
+		if(task == null)
+			task = new Task();
+		task.mAction = action;
+		task.mArg = 0;
+		task.mLength = 0;
+		return task;
+	}
+
+	private Task obtainPacket(int action, byte[] data, int offset, int length) {
+		Task task = obtainTask(action);
+		if(task.mData == null || task.mData.length < length)
+			task.mData = new byte[Math.max(length, DEFAULT_MTU)];
+		System.arraycopy(data, offset, task.mData, 0, length);
+		task.mLength = length;
+		return task;
+	}
+
+	private void recycleTask(Task task) {
+		if(mFreeTasks.size() < MAX_QUEUED_PACKETS)
+			mFreeTasks.add(task);
+	}
+
+	/**
+	 * Advertising data with flags and complete local name
+	 */
+	private static byte[] makeScanRecord(String name) {
+		byte[] nameBytes = (name == null ? new byte[0] : name.getBytes());
+		int nameLength = Math.min(nameBytes.length, 31 - 3 - 2);
+		byte[] record = new byte[3 + 2 + nameLength];
+		record[0] = 2;				// Length
+		record[1] = 0x01;			// Flags
+		record[2] = 0x06;			// LE general discoverable, BR/EDR not supported
+		record[3] = (byte) (nameLength + 1);
+		record[4] = 0x09;			// Complete local name
+		System.arraycopy(nameBytes, 0, record, 5, nameLength);
+		return record;
+	}
+
+
+	/*****************************************************
+	 *	Handler, Listener, Timer, Sub classes
+	 ******************************************************/
+
+	private final Runnable mSimulator = new Runnable() {
+		@Override
+		public void run() {
+			while(true) {
+				Task task = null;
+				long delay = 0;
+				synchronized(SimulatedPeripheral.this) {
+					if(!mIsRunning)
+						return;
+					long now = System.nanoTime();
+					Task head = mTasks.peek();
+					if(head == null) {
+						delay = -1;
+					} else if(head.mTime - now > 0) {
+						delay = head.mTime - now;
+					} else {
+						task = mTasks.poll();
+						if(!execute(task, now)) {
+							recycleTask(task);
+							continue;
+						}
+					}
+				}
+
+				if(task == null) {
+					if(delay < 0)
+						LockSupport.park(this);
+					else
+						LockSupport.parkNanos(this, delay);
+					continue;
+				}
+
+				try {
+					dispatch(task);
+				} catch(RuntimeException e) {
+					Logs.e(TAG, "# Listener failed: {}", e);
+				}
+				synchronized(SimulatedPeripheral.this) {
+					recycleTask(task);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Peripheral side of the simulator
+	 */
+	public interface PeripheralCallback {
+		/**
+		 * Called on simulator thread when a write of central arrives
+		 * @param data		written value. Valid only during this call.
+		 */
+		public void onWriteReceived(UUID characteristic, byte[] data, int length);
+	}
+
+	/**
+	 * Scheduled simulator action. Also carries a packet while it waits for a connection event.
+	 */
+	private static class Task {
+		long mTime;				// System.nanoTime() to run
+		long mSequence;
+		int mAction;
+		int mId;
+		int mArg;
+		byte[] mData;
+		int mLength;
+	}	// End of class Task
+
+
+	/**
+	 * Load test. Peripheral streams commands as fast as the link allows and echoes writes back.
+	 * Notifications run through TransactionReceiver and CommandParser like the service does.
+	 * Frame mode (default) streams [FC][command][length][data][crc8][FD] frames and central
+	 * writes frames with TransactionBuilder. Text mode streams and writes raw command text.
+	 * Exits with status 1 when frame mode parses no frame.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		long seconds = (args.length > 0 ? Long.parseLong(args[0]) : 10);
+		long interval = (args.length > 1 ? Long.parseLong(args[1]) : 7500);
+		double loss = (args.length > 2 ? Double.parseDouble(args[2]) : 0.01);
+		boolean isFrameMode = !(args.length > 3 && args[3].equals("text"));
+		Logs.mIsEnabled = false;
+
+		final SimulatedPeripheral peripheral = new SimulatedPeripheral();
+		peripheral.setConnectionInterval(interval);
+		peripheral.setLatency(interval / 2);
+		peripheral.setJitter(interval / 10);
+		peripheral.setPacketLoss(loss);
+		peripheral.setSeed(1);
+
+		final long[] counts = new long[3];		// frames, commands, bytes
+		TransactionReceiver receiver = new TransactionReceiver(null);
+		receiver.setOnFrameListener(new TransactionReceiver.OnFrameListener() {
+			@Override
+			public void onFrameReceived(TransactionReceiver.Frame frame) {
+				counts[0]++;
+			}
+		});
+		CommandParser parser = new CommandParser();
+		parser.registerCommand(CommandParser.COMMAND_THINGSPEAK, CommandParser.THINGSPEAK_PREFIX,
+				CommandParser.COMMAND_SUFFIX, new CommandHandler() {
+					@Override
+					public void onCommand(int command, String parameters) {
+						counts[1]++;
+					}
+				});
+		final CaptureReplayer.PipelineSink sink = new CaptureReplayer.PipelineSink(receiver, parser, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+
+		peripheral.setPeripheralCallback(new PeripheralCallback() {
+			@Override
+			public void onWriteReceived(UUID characteristic, byte[] data, int length) {
+				peripheral.sendNotification(data, 0, length);
+			}
+		});
+		peripheral.setTransportListener(new BleTransport.Listener() {
+			@Override
+			public void onStateChanged(int state) {
+				if(state == STATE_CONNECTED)
+					peripheral.discoverServices();
+			}
+			@Override
+			public void onDeviceFound(String address, String name, int rssi, byte[] scanRecord) {
+				peripheral.stopScan();
+				peripheral.connect(address);
+			}
+			@Override
+			public void onServicesDiscovered(boolean isSucceeded) {
+				peripheral.requestMtu(DESIRED_MTU);
+			}
+			@Override
+			public void onNotification(UUID characteristic, byte[] data, int length) {
+				counts[2] += length;
+				sink.onEvent(CaptureWriter.EVENT_NOTIFICATION, data, length);
+			}
+			@Override
+			public void onMtuChanged(int mtu) {
+				// Sender below waits for the new MTU
+			}
+		});
+
+		peripheral.startScan();
+		while(peripheral.getState() != STATE_CONNECTED || peripheral.getMtu() == DEFAULT_MTU)
+			Thread.sleep(10);
+
+		// Fill the link from this thread
+		byte[] command = (CommandParser.THINGSPEAK_PREFIX + "field1=25&field2=60" + CommandParser.COMMAND_SUFFIX).getBytes();
+		byte[] unit = command;
+		int chunkSize = peripheral.getMaxPayloadSize();
+		TransactionBuilder.Transaction transaction = null;
+		if(isFrameMode) {
+			// Whole frames per notification, so an echoed frame never lands inside another frame
+			unit = TransactionBuilder.makeFrame(CommandParser.COMMAND_THINGSPEAK, command, 0, command.length);
+			chunkSize = Math.max(1, chunkSize / unit.length) * unit.length;
+			transaction = new TransactionBuilder(peripheral, null).makeTransaction();
+		}
+		byte[] chunk = new byte[chunkSize];
+		for(int i = 0; i < chunk.length; i++)
+			chunk[i] = unit[i % unit.length];
+		long start = System.nanoTime();
+		long end = start + seconds * 1000 * 1000 * 1000;
+		long sent = 0;
+		while(System.nanoTime() < end) {
+			if(!peripheral.sendNotification(chunk, 0, chunk.length)) {
+				LockSupport.parkNanos(interval * 1000 / 4);
+				continue;
+			}
+			if(++sent % 16 != 0)
+				continue;
+			if(transaction != null) {
+				transaction.begin();
+				transaction.setFrame(CommandParser.COMMAND_THINGSPEAK, command);
+				transaction.settingFinished();
+				transaction.sendTransaction();
+			} else {
+				peripheral.write(null, command);
+			}
+		}
+		int mtu = peripheral.getMtu();
+		peripheral.close();
+
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.println("mtu=" + mtu + ", events=" + peripheral.getConnectionEventCount()
+				+ ", delivered=" + peripheral.getDeliveredCount() + ", lost=" + peripheral.getLostCount()
+				+ ", frames=" + counts[0] + ", commands=" + counts[1] + ", errors=" + receiver.getErrorCount());
+		System.out.println(String.format("elapsed=%.3f s, %.0f packets/s, %.2f KB/s", elapsed,
+				peripheral.getDeliveredCount() / elapsed, counts[2] / elapsed / 1024));
+		if(isFrameMode && counts[0] == 0) {
+			System.out.println("FAILED: no frame parsed");
+			System.exit(1);
+		}
+	}
+
+}
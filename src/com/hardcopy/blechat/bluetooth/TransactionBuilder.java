@@ -16,6 +16,8 @@
 
 package com.hardcopy.blechat.bluetooth;
 
+import java.util.Arrays;
+
 import com.hardcopy.blechat.utils.Constants;
 
 import android.os.Handler;
@@ -30,16 +32,24 @@ import android.util.Log;
  * settingFinished() : Every data is ready.
  * sendTransaction() : Send to remote
  * 
+ * Packet larger than the maximum payload of current MTU is split into fragments.
+ * TransactionReceiver on the other side parses the byte stream, so no fragment header is needed.
+ * setFrame() sends a binary frame in the format TransactionReceiver parses.
+ * 
  */
 public class TransactionBuilder {
 	
 	private static final String TAG = "TransactionBuilder";
 	
-	private BleManager mBleManager = null;
+	private BleTransport mTransport = null;
 	private Handler mHandler = null;
 	
-	public TransactionBuilder(BleManager bm, Handler errorHandler) {
-		mBleManager = bm;
+	/**
+	 * @param transport		BleManager, or SimulatedPeripheral on a workstation
+	 * @param errorHandler	receives error messages. Can be null.
+	 */
+	public TransactionBuilder(BleTransport transport, Handler errorHandler) {
+		mTransport = transport;
 		mHandler = errorHandler;
 	}
 	
@@ -47,10 +57,30 @@ public class TransactionBuilder {
 		return new Transaction();
 	}
 	
+	/**
+	 * Make a binary frame : [START 0xFC][COMMAND][LENGTH][DATA x LENGTH][CRC][END 0xFD]
+	 * @param command		command byte
+	 * @param data			data bytes. Can be null.
+	 * @param offset		start offset in data
+	 * @param length		number of bytes. TransactionReceiver.MAX_DATA_LENGTH at most.
+	 * @return	byte[]		frame, or null if data is too long
+	 */
+	public static byte[] makeFrame(int command, byte[] data, int offset, int length) {
+		if(length < 0 || length > TransactionReceiver.MAX_DATA_LENGTH)
+			return null;
+		byte[] frame = new byte[length + 5];
+		frame[0] = TransactionReceiver.START_BYTE;
+		frame[1] = (byte) command;
+		frame[2] = (byte) length;
+		if(length > 0)
+			System.arraycopy(data, offset, frame, 3, length);
+		frame[length + 3] = (byte) TransactionReceiver.crc8(frame, 1, length + 2);
+		frame[length + 4] = TransactionReceiver.END_BYTE;
+		return frame;
+	}
+	
 	public class Transaction {
 		
-		public static final int MAX_MESSAGE_LENGTH = 16;
-		
 		// Transaction instance status
 		private static final int STATE_NONE = 0;		// Instance created
 		private static final int STATE_BEGIN = 1;		// Initialize transaction
@@ -62,6 +92,7 @@ public class TransactionBuilder {
 		private int mState = STATE_NONE;
 		private byte[] mBuffer = null;
 		private String mMsg = null;
+		private byte[] mFrame = null;
 		
 		
 		/**
@@ -70,6 +101,7 @@ public class TransactionBuilder {
 		public void begin() {
 			mState = STATE_BEGIN;
 			mMsg = null;
+			mFrame = null;
 			mBuffer = null;
 		}
 		
@@ -82,12 +114,23 @@ public class TransactionBuilder {
 			mMsg = msg;
 		}
 		
+		/**
+		 * Set binary frame to send instead of string
+		 * @param command	command byte
+		 * @param data		frame data. TransactionReceiver.MAX_DATA_LENGTH bytes at most.
+		 * @return	boolean		false if data is too long
+		 */
+		public boolean setFrame(int command, byte[] data) {
+			mFrame = makeFrame(command, data, 0, (data == null ? 0 : data.length));
+			return mFrame != null;
+		}
+		
 		/**
 		 * Ready to send data to remote
 		 */
 		public void settingFinished() {
 			mState = STATE_SETTING_FINISHED;
-			mBuffer = mMsg.getBytes();
+			mBuffer = (mFrame != null ? mFrame : mMsg.getBytes());
 		}
 		
 		/**
@@ -116,13 +159,22 @@ public class TransactionBuilder {
 			*/
 			
 			if(mState == STATE_SETTING_FINISHED) {
-				if(mBleManager != null) {
+				if(mTransport != null) {
 					// Check that we're actually connected before trying anything
-					if (mBleManager.getState() == BleManager.STATE_CONNECTED) {
+					if (mTransport.getState() == BleTransport.STATE_CONNECTED) {
 						// Check that there's actually something to send
 						if (mBuffer.length > 0) {
-							// Get the message bytes and tell the BleManager to write
-							mBleManager.write(null, mBuffer);
+							// Split the message bytes and tell the transport to write
+							int fragmentSize = mTransport.getMaxPayloadSize();
+							int offset = 0;
+							while(offset < mBuffer.length) {
+								int length = getFragmentLength(mBuffer.length - offset, fragmentSize);
+								if(!mTransport.write(null, Arrays.copyOfRange(mBuffer, offset, offset + length))) {
+									mState = STATE_ERROR;
+									return false;
+								}
+								offset += length;
+							}
 							
 							mState = STATE_TRANSFERED;
 							return true;
@@ -130,12 +182,38 @@ public class TransactionBuilder {
 						mState = STATE_ERROR;
 					}
 					// Report result
-					mHandler.obtainMessage(Constants.MESSAGE_CMD_ERROR_NOT_CONNECTED).sendToTarget();
+					if(mHandler != null)
+						mHandler.obtainMessage(Constants.MESSAGE_CMD_ERROR_NOT_CONNECTED).sendToTarget();
 				}
 			}
 			return false;
 		}
 		
+		/**
+		 * Returns how many writes are needed to send the packet
+		 * @param fragmentSize		maximum payload of a write
+		 */
+		public int getFragmentCount(int fragmentSize) {
+			if(mBuffer == null || fragmentSize < 1)
+				return 0;
+			int count = 0;
+			int remain = mBuffer.length;
+			while(remain > 0) {
+				remain -= getFragmentLength(remain, fragmentSize);
+				count++;
+			}
+			return count;
+		}
+		
+		/**
+		 * Calculate length of next fragment.
+		 * @param remain			bytes left to send
+		 * @param fragmentSize		maximum payload of a write
+		 */
+		private int getFragmentLength(int remain, int fragmentSize) {
+			return Math.min(remain, fragmentSize);
+		}
+		
 		/**
 		 * Get buffers to send to remote
 		 */
@@ -16,8 +16,6 @@
 
 package com.hardcopy.blechat.bluetooth;
 
-import java.util.ArrayList;
-
 import android.os.Handler;
 
 /**
@@ -30,16 +28,66 @@ public class TransactionReceiver {
 	private static final int PARSE_MODE_ERROR = 0;
 	private static final int PARSE_MODE_WAIT_START_BYTE = 1;
 	private static final int PARSE_MODE_WAIT_COMMAND = 2;
+	private static final int PARSE_MODE_WAIT_LENGTH = 5;
 	private static final int PARSE_MODE_WAIT_DATA = 3;
+	private static final int PARSE_MODE_WAIT_CRC = 6;
 	private static final int PARSE_MODE_WAIT_END_BYTE = 4;
 	private static final int PARSE_MODE_COMPLETED = 101;
 	
+	// Protocol
+	public static final byte START_BYTE = (byte)0xFC;
+	public static final byte END_BYTE = (byte)0xFD;
+	public static final int MAX_DATA_LENGTH = 255;
+	private static final int MAX_FRAME_SIZE = MAX_DATA_LENGTH + 5;	// start, command, length, crc, end
+	
+	// Frame pool size
+	public static final int FRAME_POOL_SIZE = 32;
+	
+	// CRC-8 (polynomial 0x07) lookup table
+	private static final byte[] CRC8_TABLE = new byte[256];
+	static {
+		for(int i=0; i<256; i++) {
+			int crc = i;
+			for(int bit=0; bit<8; bit++) {
+				crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) : (crc << 1);
+			}
+			CRC8_TABLE[i] = (byte)crc;
+		}
+	}
+	
 	private Handler mHandler = null;
+	private OnFrameListener mListener = null;
+	
+	// Parser state. Bytes of current frame candidate are kept in mFrameBuffer
+	// so parsing can restart from the next start byte when the frame is broken.
+	private final byte[] mFrameBuffer = new byte[MAX_FRAME_SIZE];
+	private int mFrameLength = 0;		// bytes in mFrameBuffer
+	private int mParsedLength = 0;		// bytes in mFrameBuffer consumed by state machine
+	private int mParseMode = PARSE_MODE_WAIT_START_BYTE;
+	private int mCommand = 0;
+	private int mDataLength = 0;
+	private int mDataCount = 0;
+	private int mCrc = 0;
+	
+	// Frame pool
+	private final Frame[] mFreeFrames = new Frame[FRAME_POOL_SIZE];
+	private int mFreeCount = 0;
+	private final Frame[] mReadyFrames = new Frame[FRAME_POOL_SIZE];
+	private int mReadyHead = 0;
+	private int mReadyCount = 0;
+	
+	// Statistics
+	private long mFrameCount = 0;
+	private long mErrorCount = 0;
+	private long mDroppedCount = 0;
 	
 	
 	
 	public TransactionReceiver(Handler h) {
 		mHandler = h;
+		for(int i=0; i<FRAME_POOL_SIZE; i++) {
+			mFreeFrames[mFreeCount++] = new Frame();
+		}
 		reset();
 	}
 	
@@ -47,12 +95,34 @@ public class TransactionReceiver {
 	/**
 	 * Reset transaction receiver.
 	 */
-	public void reset() {
+	public synchronized void reset() {
+		mFrameLength = 0;
+		mParsedLength = 0;
+		mParseMode = PARSE_MODE_WAIT_START_BYTE;
+		
+		// Return every waiting frame to the pool
+		while(mReadyCount > 0) {
+			mFreeFrames[mFreeCount++] = mReadyFrames[mReadyHead];
+			mReadyFrames[mReadyHead] = null;
+			mReadyHead = (mReadyHead + 1) % FRAME_POOL_SIZE;
+			mReadyCount--;
+		}
+	}
+	
+	/**
+	 * Set listener which receives every parsed frame.
+	 * When listener is set, frames are not queued for getObject().
+	 * @param l		listener
+	 */
+	public synchronized void setOnFrameListener(OnFrameListener l) {
+		mListener = l;
 	}
 	
 	/**
 	 * Set bytes to parse
-	 * This method automatically calls parseStream()
+	 * This method automatically calls parseStream().
+	 * Frames split across notifications are completed by the stream parser,
+	 * so every fragment is parsed as soon as it arrives.
 	 * @param buffer	
 	 * @param count
 	 */
@@ -62,12 +132,53 @@ public class TransactionReceiver {
 	
 	/**
 	 * After parsing bytes received, transaction receiver makes object instance.
-	 * This method returns parsed results
-	 * @return	Object		parsed object
+	 * This method returns parsed results.
+	 * Returned frame belongs to the pool. Call releaseObject() when you finished using it.
+	 * @return	Object		parsed Frame or null
 	 */
-	public Object getObject() {
-		// TODO: return what you want
-		return null;
+	public synchronized Object getObject() {
+		if(mReadyCount < 1)
+			return null;
+		
+		Frame frame = mReadyFrames[mReadyHead];
+		mReadyFrames[mReadyHead] = null;
+		mReadyHead = (mReadyHead + 1) % FRAME_POOL_SIZE;
+		mReadyCount--;
+		return frame;
+	}
+	
+	/**
+	 * Return a frame from getObject() to the pool
+	 * @param obj		frame to release
+	 */
+	public synchronized void releaseObject(Object obj) {
+		if(obj instanceof Frame && mFreeCount < FRAME_POOL_SIZE) {
+			mFreeFrames[mFreeCount++] = (Frame) obj;
+		}
+	}
+	
+	public synchronized long getFrameCount() {
+		return mFrameCount;
+	}
+	
+	public synchronized long getErrorCount() {
+		return mErrorCount;
+	}
+	
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+	
+	/**
+	 * Calculate CRC-8 (polynomial 0x07) the receiver checks. Use this to make frames.
+	 * @param buffer		COMMAND, LENGTH and DATA of a frame
+	 */
+	public static int crc8(byte[] buffer, int offset, int length) {
+		int crc = 0;
+		for(int i=offset; i<offset+length; i++) {
+			crc = CRC8_TABLE[(crc ^ buffer[i]) & 0xFF] & 0xFF;
+		}
+		return crc;
 	}
 
 	/**
@@ -75,20 +186,169 @@ public class TransactionReceiver {
 	 * @param buffer		byte array to parse
 	 * @param count			byte array size
 	 */
-	public void parseStream(byte[] buffer, int count) {
+	public synchronized void parseStream(byte[] buffer, int count) {
 		if(buffer != null && buffer.length > 0 && count > 0) {
 			for(int i=0; i < buffer.length && i < count; i++) {
 				
 				// Parse received data
 				// Protocol description -----------------------------------------------------------
-				// Describe brief info about protocol
-				
-				// TODO: parse buffer
+				// [START 0xFC][COMMAND][LENGTH][DATA x LENGTH][CRC][END 0xFD]
+				// CRC is CRC-8 (polynomial 0x07) of COMMAND, LENGTH and DATA.
+				// Broken frame is discarded and parsing restarts at the next start byte
+				// found after the broken frame's start byte.
 				
+				if(mParseMode == PARSE_MODE_WAIT_START_BYTE && buffer[i] != START_BYTE) {
+					// Skip garbage without copying
+					continue;
+				}
+				mFrameBuffer[mFrameLength++] = buffer[i];
+				parseFrameBuffer();
 				
 			}	// End of for loop
 		}	// End of if()
 	}	// End of parseStream()
-
+	
+	
+	/**
+	 * Run state machine over bytes in frame buffer which are not parsed yet.
+	 */
+	private void parseFrameBuffer() {
+		while(mParsedLength < mFrameLength) {
+			int value = mFrameBuffer[mParsedLength++] & 0xFF;
+			
+			switch(mParseMode) {
+			case PARSE_MODE_WAIT_START_BYTE:
+				if(value == (START_BYTE & 0xFF)) {
+					mParseMode = PARSE_MODE_WAIT_COMMAND;
+					mCrc = 0;
+				} else {
+					mParseMode = PARSE_MODE_ERROR;
+				}
+				break;
+				
+			case PARSE_MODE_WAIT_COMMAND:
+				mCommand = value;
+				mCrc = CRC8_TABLE[(mCrc ^ value) & 0xFF] & 0xFF;
+				mParseMode = PARSE_MODE_WAIT_LENGTH;
+				break;
+				
+			case PARSE_MODE_WAIT_LENGTH:
+				mDataLength = value;
+				mDataCount = 0;
+				mCrc = CRC8_TABLE[(mCrc ^ value) & 0xFF] & 0xFF;
+				mParseMode = (mDataLength > 0 ? PARSE_MODE_WAIT_DATA : PARSE_MODE_WAIT_CRC);
+				break;
+				
+			case PARSE_MODE_WAIT_DATA:
+				mCrc = CRC8_TABLE[(mCrc ^ value) & 0xFF] & 0xFF;
+				if(++mDataCount >= mDataLength)
+					mParseMode = PARSE_MODE_WAIT_CRC;
+				break;
+				
+			case PARSE_MODE_WAIT_CRC:
+				mParseMode = (value == mCrc ? PARSE_MODE_WAIT_END_BYTE : PARSE_MODE_ERROR);
+				break;
+				
+			case PARSE_MODE_WAIT_END_BYTE:
+				mParseMode = (value == (END_BYTE & 0xFF) ? PARSE_MODE_COMPLETED : PARSE_MODE_ERROR);
+				break;
+			}
+			
+			if(mParseMode == PARSE_MODE_COMPLETED) {
+				emitFrame();
+				discardFrameBuffer(mParsedLength);
+			} else if(mParseMode == PARSE_MODE_ERROR) {
+				mErrorCount++;
+				// Drop the start byte of the broken frame and find the next one
+				discardFrameBuffer(1);
+			}
+		}
+	}
+	
+	/**
+	 * Remove bytes from the head of frame buffer and restart parsing
+	 * from the next start byte in the remaining bytes.
+	 * @param count		bytes to remove
+	 */
+	private void discardFrameBuffer(int count) {
+		int next = count;
+		while(next < mFrameLength && mFrameBuffer[next] != START_BYTE) {
+			next++;
+		}
+		
+		mFrameLength -= next;
+		if(mFrameLength > 0) {
+			System.arraycopy(mFrameBuffer, next, mFrameBuffer, 0, mFrameLength);
+		}
+		mParsedLength = 0;
+		mParseMode = PARSE_MODE_WAIT_START_BYTE;
+	}
+	
+	/**
+	 * Copy completed frame into a pooled object and deliver it
+	 */
+	private void emitFrame() {
+		mFrameCount++;
+		
+		if(mFreeCount < 1) {
+			// Consumer is too slow. Drop the oldest waiting frame.
+			if(mReadyCount < 1) {
+				mDroppedCount++;
+				return;
+			}
+			mFreeFrames[mFreeCount++] = mReadyFrames[mReadyHead];
+			mReadyFrames[mReadyHead] = null;
+			mReadyHead = (mReadyHead + 1) % FRAME_POOL_SIZE;
+			mReadyCount--;
+			mDroppedCount++;
+		}
+		
+		Frame frame = mFreeFrames[--mFreeCount];
+		mFreeFrames[mFreeCount] = null;
+		frame.mCommand = mCommand;
+		frame.mLength = mDataLength;
+		System.arraycopy(mFrameBuffer, 3, frame.mData, 0, mDataLength);
+		
+		if(mListener != null) {
+			mListener.onFrameReceived(frame);
+			mFreeFrames[mFreeCount++] = frame;
+		} else {
+			mReadyFrames[(mReadyHead + mReadyCount) % FRAME_POOL_SIZE] = frame;
+			mReadyCount++;
+		}
+	}
+	
+	
+	/**
+	 * Parsed frame. Instances are reused, so do not keep the reference
+	 * after releasing it (or after the listener callback returns).
+	 */
+	public static class Frame {
+		private int mCommand;
+		private int mLength;
+		private final byte[] mData = new byte[MAX_DATA_LENGTH];
+		
+		public int getCommand() {
+			return mCommand;
+		}
+		
+		public int getLength() {
+			return mLength;
+		}
+		
+		/**
+		 * Returns backing array. Only first getLength() bytes are valid.
+		 */
+		public byte[] getData() {
+			return mData;
+		}
+	}	// End of class Frame
+	
+	/**
+	 * Receives frames right after parsing
+	 */
+	public interface OnFrameListener {
+		public void onFrameReceived(Frame frame);
+	}
 	
 }
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.contents;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Persistent chat history.
+ *
+ * append() is called by service for every received and sent message. Messages are
+ * copied into the pending batch as bytes and appended to chat table by one thread,
+ * many messages per transaction. Bytes are decoded on that thread too.
+ * A full batch is queued for the writer thread and a free one takes its place, so append()
+ * never waits for disk I/O. When the writer can't keep up, at most MAX_PENDING_BATCHES
+ * batches wait and newer messages are dropped.
+ * A batch which cannot be written goes back to the head of the queue and is tried again
+ * after RETRY_INTERVAL. After MAX_RETRIES failures its messages are counted as dropped.
+ * Received chunks which arrive within MERGE_INTERVAL are merged into one message
+ * while it is still pending, same as the chat view shows them.
+ * loadMessages() reads a page with keyset pagination on the same thread, after pending
+ * messages are written, and delivers the page on UI thread.
+ */
+public class ChatHistory {
+
+	private static final String TAG = "ChatHistory";
+
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	public static final long MERGE_INTERVAL = 1000;		// Same as new line interval of chat view
+
+	private static final long COMMIT_INTERVAL = 500;
+	private static final int MAX_BATCH_SIZE = 64;
+	private static final int MAX_PENDING_BATCHES = 8;
+	private static final long RETRY_INTERVAL = 2000;
+	private static final int MAX_RETRIES = 3;
+
+	// Instance
+	private static ChatHistory mInstance = null;
+
+	// System
+	private final Context mContext;
+	private final ScheduledExecutorService mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private DBHelper mDbHelper = null;
+
+	// Messages waiting for commit
+	private Batch mPending = new Batch();
+	private final LinkedList<Batch> mFullBatches = new LinkedList<Batch>();
+	private final LinkedList<Batch> mFreeBatches = new LinkedList<Batch>();
+	private final Object mWriteLock = new Object();
+	private boolean mIsCommitScheduled = false;
+	private long mDroppedCount = 0;
+
+	// Time of last received chunk
+	private long mLastReceivedTime = 0;
+
+
+	private ChatHistory(Context c) {
+		mContext = c.getApplicationContext();
+		mExecutor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	/**
+	 * Single pattern
+	 */
+	public synchronized static ChatHistory getInstance(Context c) {
+		if(mInstance == null) {
+			if(c != null)
+				mInstance = new ChatHistory(c);
+			else
+				return null;
+		}
+		return mInstance;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Append a message. Returns immediately.
+	 * @param direction		DBHelper.CHAT_RECEIVED or DBHelper.CHAT_SENT
+	 * @param message		message text
+	 */
+	public void append(int direction, String message) {
+		if(message == null || message.length() < 1)
+			return;
+		byte[] data = message.getBytes();
+		append(direction, data, 0, data.length);
+	}
+
+	/**
+	 * Append a message as bytes. Bytes are copied and decoded later on writer thread.
+	 * Returns immediately.
+	 * @param direction		DBHelper.CHAT_RECEIVED or DBHelper.CHAT_SENT
+	 * @param data			message bytes in default charset
+	 * @param offset		start offset in data
+	 * @param count			number of bytes
+	 */
+	public void append(int direction, byte[] data, int offset, int count) {
+		if(data == null || count < 1)
+			return;
+
+		boolean needCommit = false;
+		boolean isFull = false;
+		synchronized (this) {
+			if(mPending == null) {
+				// Writer couldn't keep up
+				if(mDroppedCount++ == 0)
+					Logs.d(TAG, "# Chat history is behind. Dropping messages.");
+				return;
+			}
+			Batch batch = mPending;
+			int last = batch.mCount - 1;
+			long current = System.currentTimeMillis();
+			boolean merge = (direction == DBHelper.CHAT_RECEIVED && last >= 0
+					&& batch.mDirections[last] == DBHelper.CHAT_RECEIVED
+					&& current - mLastReceivedTime <= MERGE_INTERVAL);
+			if(merge) {
+				batch.appendBytes(data, offset, count);
+				batch.mLengths[last] += count;
+			} else {
+				batch.mTimes[batch.mCount] = current;
+				batch.mDirections[batch.mCount] = direction;
+				batch.mOffsets[batch.mCount] = batch.mByteCount;
+				batch.mLengths[batch.mCount] = count;
+				batch.appendBytes(data, offset, count);
+				batch.mCount++;
+				isFull = (batch.mCount >= MAX_BATCH_SIZE);
+			}
+			if(direction == DBHelper.CHAT_RECEIVED)
+				mLastReceivedTime = current;
+
+			if(isFull) {
+				// Hand it to writer thread instead of writing here
+				mFullBatches.addLast(batch);
+				mPending = (mFullBatches.size() < MAX_PENDING_BATCHES ? obtainBatch() : null);
+			}
+			if(!mIsCommitScheduled || isFull) {
+				mIsCommitScheduled = true;
+				needCommit = true;
+			}
+		}
+
+		if(needCommit) {
+			mExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					commit();
+				}
+			}, isFull ? 0 : COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns number of messages dropped because writer couldn't keep up or write failed
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Write pending messages now. Call this when service finishes.
+	 */
+	public void flush() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				commit();
+			}
+		});
+	}
+
+	/**
+	 * Load a page of messages older than beforeId. Result is delivered on UI thread.
+	 * @param beforeId		ID of the oldest loaded message. Long.MAX_VALUE for the latest page.
+	 * @param count			page size
+	 * @param l				listener
+	 */
+	public void loadMessages(final long beforeId, final int count, final OnLoadListener l) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final ArrayList<Entry> entries = new ArrayList<Entry>(count);
+				synchronized (mWriteLock) {
+					commit();
+					if(openDatabase())
+						readPage(beforeId, count, entries);
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						l.onLoaded(entries, entries.size() == count);
+					}
+				});
+			}
+		});
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	/**
+	 * Write full batches and pending messages, one transaction per batch. Runs on writer thread.
+	 */
+	private void commit() {
+		synchronized (mWriteLock) {
+			while(true) {
+				Batch batch;
+				synchronized (this) {
+					mIsCommitScheduled = false;
+					if(!mFullBatches.isEmpty()) {
+						batch = mFullBatches.removeFirst();
+					} else if(mPending != null && mPending.mCount > 0) {
+						batch = mPending;
+						mPending = obtainBatch();
+					} else {
+						return;
+					}
+					if(mPending == null)
+						mPending = obtainBatch();
+				}
+
+				boolean isWritten = false;
+				if(openDatabase()) {
+					try {
+						mDbHelper.insertChatMessages(batch.mTimes, batch.mDirections, batch.decode(), batch.mCount);
+						isWritten = true;
+					} catch(SQLException e) {
+						Logs.d(TAG, "# Cannot write chat history: "+e.getMessage());
+					}
+				}
+
+				synchronized (this) {
+					if(isWritten) {
+						recycleBatch(batch);
+						continue;
+					}
+					if(++batch.mRetryCount <= MAX_RETRIES) {
+						// Keep the order. Retry later, together with batches queued meanwhile.
+						mFullBatches.addFirst(batch);
+					} else {
+						Logs.d(TAG, "# Chat history dropped "+batch.mCount+" messages after "+MAX_RETRIES+" retries");
+						mDroppedCount += batch.mCount;
+						recycleBatch(batch);
+					}
+					mIsCommitScheduled = true;
+				}
+				mExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						commit();
+					}
+				}, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+	}
+
+	private Batch obtainBatch() {
+		if(!mFreeBatches.isEmpty())
+			return mFreeBatches.removeFirst();
+		return new Batch();
+	}
+
+	private void recycleBatch(Batch batch) {
+		batch.clear();
+		if(mFreeBatches.size() < 2)
+			mFreeBatches.addLast(batch);
+	}
+
+	/**
+	 * Read a page into list in ascending order (oldest first)
+	 */
+	private void readPage(long beforeId, int count, ArrayList<Entry> entries) {
+		Cursor c = null;
+		try {
+			c = mDbHelper.selectChatMessages(beforeId, count);
+			if(c == null)
+				return;
+			while(c.moveToNext()) {
+				entries.add(0, new Entry(c.getLong(DBHelper.INDEX_CHAT_ID),
+						c.getLong(DBHelper.INDEX_CHAT_TIME),
+						c.getInt(DBHelper.INDEX_CHAT_DIRECTION),
+						c.getString(DBHelper.INDEX_CHAT_MESSAGE)));
+			}
+		} catch(SQLException e) {
+			Logs.d(TAG, "# Cannot read chat history: "+e.getMessage());
+		} finally {
+			if(c != null)
+				c.close();
+		}
+	}
+
+	private boolean openDatabase() {
+		if(mDbHelper != null)
+			return true;
+		try {
+			mDbHelper = DBHelper.acquire(mContext);
+		} catch(SQLException e) {
+			Logs.d(TAG, "# Cannot open database: "+e.getMessage());
+			mDbHelper = null;
+		}
+		return mDbHelper != null;
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * Messages waiting for commit. Bytes of every message are kept in one array.
+	 */
+	private static class Batch {
+		private static final int INITIAL_BYTES = 4096;
+
+		final long[] mTimes = new long[MAX_BATCH_SIZE];
+		final int[] mDirections = new int[MAX_BATCH_SIZE];
+		final int[] mOffsets = new int[MAX_BATCH_SIZE];
+		final int[] mLengths = new int[MAX_BATCH_SIZE];
+		final String[] mMessages = new String[MAX_BATCH_SIZE];
+		byte[] mBytes = new byte[INITIAL_BYTES];
+		int mByteCount = 0;
+		int mCount = 0;
+		int mRetryCount = 0;		// Failed writes of this batch
+
+		void appendBytes(byte[] data, int offset, int count) {
+			if(mByteCount + count > mBytes.length) {
+				byte[] bytes = new byte[Math.max(mBytes.length * 2, mByteCount + count)];
+				System.arraycopy(mBytes, 0, bytes, 0, mByteCount);
+				mBytes = bytes;
+			}
+			System.arraycopy(data, offset, mBytes, mByteCount, count);
+			mByteCount += count;
+		}
+
+		/**
+		 * Decode messages with default charset. Called on writer thread.
+		 */
+		String[] decode() {
+			for(int i=0; i<mCount; i++)
+				mMessages[i] = new String(mBytes, mOffsets[i], mLengths[i]);
+			return mMessages;
+		}
+
+		void clear() {
+			for(int i=0; i<mCount; i++)
+				mMessages[i] = null;
+			mCount = 0;
+			mByteCount = 0;
+			mRetryCount = 0;
+			if(mBytes.length > INITIAL_BYTES)
+				mBytes = new byte[INITIAL_BYTES];
+		}
+	}
+
+	/**
+	 * A message of chat history
+	 */
+	public static class Entry {
+		public final long mId;
+		public final long mTime;
+		public final int mDirection;
+		public final String mMessage;
+
+		public Entry(long id, long time, int direction, String message) {
+			mId = id;
+			mTime = time;
+			mDirection = direction;
+			mMessage = message;
+		}
+	}
+
+	public interface OnLoadListener {
+		/**
+		 * Called on UI thread
+		 * @param entries		messages in ascending order (oldest first)
+		 * @param hasMore		true if there can be older messages
+		 */
+		public void onLoaded(ArrayList<Entry> entries, boolean hasMore);
+	}
+
+}
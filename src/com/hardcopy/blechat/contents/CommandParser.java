@@ -1,27 +1,180 @@
 package com.hardcopy.blechat.contents;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 import com.hardcopy.blechat.utils.Logs;
 
+/**
+ * Finds commands in received stream.
+ * Command format is [prefix][parameters][suffix], ex) thingspeak:field1=10[*]
+ * 
+ * Commands are registered with registerCommand() at startup.
+ * Prefixes of every command are compiled into a single trie automaton and
+ * suffixes into their own automata, so every byte is examined only once
+ * regardless of how many commands are registered.
+ * Found commands are queued in arrival order. Use nextCommand() or dispatchCommands() to get them.
+ */
 public class CommandParser {
 
 	public static final int COMMAND_NONE = -1;
 	public static final int COMMAND_THINGSPEAK = 1;
 
-	private static final String THINGSPEAK_PREFIX = "thingspeak:";
-	private static final String COMMAND_SUFFIX = "[*]";
+	public static final String THINGSPEAK_PREFIX = "thingspeak:";
+	public static final String COMMAND_SUFFIX = "[*]";
+	
+	private static final int MAX_PARAMETER_LENGTH = 1000;
+	private static final int MAX_SUFFIX_LENGTH = 16;
+	private static final int MAX_PENDING_COMMANDS = 64;
+	
+	// Registered commands
+	private final ArrayList<CommandEntry> mEntries = new ArrayList<CommandEntry>();
+	
+	// Prefix trie. mPrefixTrie[node][byte] is the next node,
+	// mPrefixOutput[node] is index of the command whose prefix ends at the node or -1.
+	private int[][] mPrefixTrie = null;
+	private int[] mPrefixOutput = null;
 	
-	private StringBuilder mReceivedString;
+	// Matching state
+	private int mPrefixState = 0;
+	private int mSuffixState = 0;
+	private CommandEntry mCurrentEntry = null;
+	private final byte[] mParameterBytes;
+	private int mParameterLength = 0;
+	
+	// Found commands
+	private final LinkedList<ParsedCommand> mPendingCommands = new LinkedList<ParsedCommand>();
 	private int mCommand = COMMAND_NONE;
 	private String mParameters;
 	
 	public CommandParser() {
-		mReceivedString = new StringBuilder();
+		mParameterBytes = new byte[MAX_PARAMETER_LENGTH + MAX_SUFFIX_LENGTH];
 	}
 	
 	
+	/**
+	 * Register a command. Call this at startup, before feeding bytes.
+	 * @param command		command ID reported by getCommand()
+	 * @param prefix		string which starts the command
+	 * @param suffix		string which ends the command
+	 * @param handler		handler called by dispatchCommands(). Can be null.
+	 */
+	public synchronized void registerCommand(int command, String prefix, String suffix, CommandHandler handler) {
+		if(prefix == null || prefix.length() < 1 || suffix == null || suffix.length() < 1
+				|| suffix.getBytes().length > MAX_SUFFIX_LENGTH)
+			return;
+		
+		mEntries.add(new CommandEntry(command, prefix.getBytes(), suffix.getBytes(), handler));
+		buildPrefixTrie();
+		
+		// Restart matching with new automaton
+		mPrefixState = 0;
+		mSuffixState = 0;
+		mCurrentEntry = null;
+		mParameterLength = 0;
+	}
+	
 	public int setString(String message) {
-		mReceivedString.append(message);
-		return checkCommand();
+		if(message == null)
+			return COMMAND_NONE;
+		byte[] bytes = message.getBytes();
+		return setBytes(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Feed received bytes. Bytes are decoded only when a command is completed.
+	 * @param buffer		received bytes
+	 * @param offset		start offset
+	 * @param count			byte count
+	 * @return	int			type of the oldest command waiting in queue, or COMMAND_NONE
+	 */
+	public synchronized int setBytes(byte[] buffer, int offset, int count) {
+		if(buffer == null || count < 1 || mPrefixTrie == null)
+			return getPendingCommandType();
+		
+		int end = offset + count;
+		for(int i = offset; i < end; i++) {
+			int value = buffer[i] & 0xFF;
+			
+			// New prefix always starts a new command (last prefix wins)
+			mPrefixState = mPrefixTrie[mPrefixState][value];
+			int found = mPrefixOutput[mPrefixState];
+			if(found > -1) {
+				mCurrentEntry = mEntries.get(found);
+				mSuffixState = 0;
+				mParameterLength = 0;
+				continue;
+			}
+			
+			if(mCurrentEntry == null)
+				continue;
+			
+			mParameterBytes[mParameterLength++] = buffer[i];
+			mSuffixState = mCurrentEntry.mSuffixDfa[mSuffixState][value];
+			if(mSuffixState == mCurrentEntry.mSuffix.length) {
+				addCommand(mCurrentEntry, mParameterLength - mCurrentEntry.mSuffix.length);
+				mCurrentEntry = null;
+				mSuffixState = 0;
+				mParameterLength = 0;
+			} else if(mParameterLength == mParameterBytes.length) {
+				// Too long. Drop it.
+				Logs.d("# Command is too long. Dropped.");
+				mCurrentEntry = null;
+				mSuffixState = 0;
+				mParameterLength = 0;
+			}
+		}
+		return getPendingCommandType();
+	}
+	
+	/**
+	 * Move to the next command found. Use getCommand() and getParameterString() after this.
+	 * @return	boolean		false if there's no more command
+	 */
+	public synchronized boolean nextCommand() {
+		ParsedCommand cmd = mPendingCommands.poll();
+		if(cmd == null) {
+			resetParser();
+			return false;
+		}
+		mCommand = cmd.mEntry.mCommand;
+		mParameters = cmd.mParameters;
+		return true;
+	}
+	
+	/**
+	 * Run handlers of every command found, in arrival order, on the executor.
+	 * Use a single thread executor to keep the order.
+	 * @param executor		worker executor
+	 * @return	int			number of commands dispatched
+	 */
+	public int dispatchCommands(Executor executor) {
+		int count = 0;
+		while(true) {
+			final ParsedCommand cmd;
+			synchronized (this) {
+				cmd = mPendingCommands.poll();
+			}
+			if(cmd == null)
+				break;
+			if(cmd.mEntry.mHandler == null)
+				continue;
+			
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						cmd.mEntry.mHandler.onCommand(cmd.mEntry.mCommand, cmd.mParameters);
+					}
+				});
+				count++;
+			} catch(RejectedExecutionException e) {
+				Logs.d("# Command executor is not running. Command dropped.");
+			}
+		}
+		return count;
 	}
 	
 	public int getCommand() {
@@ -39,38 +192,129 @@ public class CommandParser {
 	
 	
 	
-	private int checkCommand() {
-		int prefixIndex = mReceivedString.lastIndexOf(THINGSPEAK_PREFIX);
-		if(prefixIndex > -1) {
-			//Logs.d("# found thingspeak prefix");
-			// Check if there is suffix string [*]
-			int suffixIndex = mReceivedString.lastIndexOf(COMMAND_SUFFIX);
-			if(suffixIndex > -1) {
-				//Logs.d("# found [*] suffix");
-				if(prefixIndex + THINGSPEAK_PREFIX.length() <= suffixIndex) {
-					// cut the parameter string from buffer
-					mCommand = COMMAND_THINGSPEAK;
-					mParameters = mReceivedString.substring(prefixIndex + THINGSPEAK_PREFIX.length(), suffixIndex);
-					mReceivedString = new StringBuilder();
-					//Logs.d("# parameters = "+mParameters);
-					return COMMAND_THINGSPEAK;
-				}
+	private int getPendingCommandType() {
+		ParsedCommand cmd = mPendingCommands.peek();
+		return (cmd == null ? COMMAND_NONE : cmd.mEntry.mCommand);
+	}
+	
+	private void addCommand(CommandEntry entry, int parameterLength) {
+		if(mPendingCommands.size() >= MAX_PENDING_COMMANDS) {
+			Logs.d("# Too many commands in queue. Oldest one is dropped.");
+			mPendingCommands.poll();
+		}
+		mPendingCommands.add(new ParsedCommand(entry, new String(mParameterBytes, 0, parameterLength)));
+	}
+	
+	/**
+	 * Compile prefixes of every registered command into a trie with failure links (Aho-Corasick).
+	 * Failure links are folded into the transition table, so matching is one table lookup per byte.
+	 */
+	private void buildPrefixTrie() {
+		int maxNodes = 1;
+		for(CommandEntry entry : mEntries) {
+			maxNodes += entry.mPrefix.length;
+		}
+		
+		int[][] trie = new int[maxNodes][256];
+		int[] output = new int[maxNodes];
+		int[] fail = new int[maxNodes];
+		for(int i=0; i<maxNodes; i++) {
+			output[i] = -1;
+			for(int c=0; c<256; c++) {
+				trie[i][c] = -1;
 			}
-		} else {
-			
 		}
 		
-		// Nothing found... Empty buffer if it's too big
-		if(mReceivedString.length() > 1000) {
-			mReceivedString = new StringBuilder(mReceivedString.substring(mReceivedString.length() - 200));
+		// Insert prefixes
+		int nodeCount = 1;
+		for(int index = 0; index < mEntries.size(); index++) {
+			byte[] prefix = mEntries.get(index).mPrefix;
+			int node = 0;
+			for(int i=0; i<prefix.length; i++) {
+				int c = prefix[i] & 0xFF;
+				if(trie[node][c] < 0)
+					trie[node][c] = nodeCount++;
+				node = trie[node][c];
+			}
+			output[node] = index;		// Later registration replaces the same prefix
 		}
 		
-		mCommand = COMMAND_NONE;
+		// Breadth first: fill failure links and missing transitions
+		int[] queue = new int[nodeCount];
+		int head = 0, tail = 0;
+		for(int c=0; c<256; c++) {
+			if(trie[0][c] < 0) {
+				trie[0][c] = 0;
+			} else {
+				fail[trie[0][c]] = 0;
+				queue[tail++] = trie[0][c];
+			}
+		}
+		while(head < tail) {
+			int node = queue[head++];
+			if(output[node] < 0)
+				output[node] = output[fail[node]];		// Shorter prefix ends here
+			for(int c=0; c<256; c++) {
+				int next = trie[node][c];
+				if(next < 0) {
+					trie[node][c] = trie[fail[node]][c];
+				} else {
+					fail[next] = trie[fail[node]][c];
+					queue[tail++] = next;
+				}
+			}
+		}
 		
-		return COMMAND_NONE;
+		mPrefixTrie = trie;
+		mPrefixOutput = output;
 	}
 	
+	/**
+	 * Build KMP automaton. dfa[state][byte] is the next state,
+	 * state == pattern.length means whole pattern is matched.
+	 * @param pattern		bytes to match
+	 */
+	private static int[][] buildAutomaton(byte[] pattern) {
+		int[][] dfa = new int[pattern.length + 1][256];
+		dfa[0][pattern[0] & 0xFF] = 1;
+		int restart = 0;
+		for(int state = 1; state <= pattern.length; state++) {
+			for(int c = 0; c < 256; c++) {
+				dfa[state][c] = dfa[restart][c];
+			}
+			if(state < pattern.length) {
+				dfa[state][pattern[state] & 0xFF] = state + 1;
+				restart = dfa[restart][pattern[state] & 0xFF];
+			}
+		}
+		return dfa;
+	}
 	
 	
+	private static class CommandEntry {
+		final int mCommand;
+		final byte[] mPrefix;
+		final byte[] mSuffix;
+		final int[][] mSuffixDfa;
+		final CommandHandler mHandler;
+		
+		CommandEntry(int command, byte[] prefix, byte[] suffix, CommandHandler handler) {
+			mCommand = command;
+			mPrefix = prefix;
+			mSuffix = suffix;
+			mSuffixDfa = buildAutomaton(suffix);
+			mHandler = handler;
+		}
+	}
+	
+	private static class ParsedCommand {
+		final CommandEntry mEntry;
+		final String mParameters;
+		
+		ParsedCommand(CommandEntry entry, String parameters) {
+			mEntry = entry;
+			mParameters = parameters;
+		}
+	}
 	
 }
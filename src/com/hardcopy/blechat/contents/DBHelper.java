@@ -16,6 +16,8 @@
 
 package com.hardcopy.blechat.contents;
 
+import java.util.HashMap;
+
 import com.hardcopy.blechat.utils.Logs;
 
 import android.content.ContentValues;
@@ -25,6 +27,7 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * This is DB helper class
@@ -36,7 +39,7 @@ public class DBHelper {
 	
 	private static final String TAG  ="DBHelper";
 	
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 5;
 	public static final String DATABASE_NAME = "btchat";
 
 	//----------- Accel data table parameters
@@ -101,12 +104,191 @@ public class DBHelper {
 													+ KEY_ACCEL_ARG3 + " Text"
 													+ ")";
 	private static final String DATABASE_DROP_ACCEL_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME_ACCEL_REPORT;
+	private static final String DATABASE_INSERT_ACCEL = "INSERT INTO " + TABLE_NAME_ACCEL_REPORT + "("
+													+ KEY_ACCEL_TYPE + ", " + KEY_ACCEL_TIME + ", "
+													+ KEY_ACCEL_YEAR + ", " + KEY_ACCEL_MONTH + ", " + KEY_ACCEL_DAY + ", " + KEY_ACCEL_HOUR + ", "
+													+ KEY_ACCEL_DATA1 + ", " + KEY_ACCEL_DATA2 + ", " + KEY_ACCEL_DATA3 + ", "
+													+ KEY_ACCEL_DATA4 + ", " + KEY_ACCEL_DATA5 + ", "
+													+ KEY_ACCEL_ARG0 + ", " + KEY_ACCEL_ARG1 + ", " + KEY_ACCEL_ARG2
+													+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0, 0, ?)";
+	
+	// Indexes for range queries. Both cover the WHERE clause of select, count and delete methods.
+	private static final String DATABASE_CREATE_ACCEL_TIME_INDEX = "CREATE INDEX IF NOT EXISTS accel_type_time ON "
+													+ TABLE_NAME_ACCEL_REPORT + "(" + KEY_ACCEL_TYPE + ", " + KEY_ACCEL_TIME + ")";
+	private static final String DATABASE_CREATE_ACCEL_DATE_INDEX = "CREATE INDEX IF NOT EXISTS accel_type_date ON "
+													+ TABLE_NAME_ACCEL_REPORT + "(" + KEY_ACCEL_TYPE + ", " + KEY_ACCEL_YEAR + ", "
+													+ KEY_ACCEL_MONTH + ", " + KEY_ACCEL_DAY + ", " + KEY_ACCEL_HOUR + ")";
+	
+	// Queries with bound arguments. Same SQL string is compiled only once.
+	private static final String WHERE_ACCEL_TYPE = KEY_ACCEL_TYPE + "=?";
+	private static final String WHERE_ACCEL_TIME = KEY_ACCEL_TYPE + "=? AND "
+													+ KEY_ACCEL_TIME + ">? AND " + KEY_ACCEL_TIME + "<?";
+	private static final String WHERE_ACCEL_DATE = KEY_ACCEL_TYPE + "=? AND " + KEY_ACCEL_YEAR + "=? AND "
+													+ KEY_ACCEL_MONTH + "=? AND " + KEY_ACCEL_DAY + "=? AND " + KEY_ACCEL_HOUR + "=?";
+	private static final String DATABASE_COUNT_ACCEL = "SELECT count(*) FROM " + TABLE_NAME_ACCEL_REPORT;
+	private static final String DATABASE_COUNT_ACCEL_TYPE = DATABASE_COUNT_ACCEL + " WHERE " + WHERE_ACCEL_TYPE;
+	private static final String DATABASE_COUNT_ACCEL_TIME = DATABASE_COUNT_ACCEL + " WHERE " + WHERE_ACCEL_TIME;
+	private static final String WHERE_ACCEL_RANGE = KEY_ACCEL_TIME + ">=? AND " + KEY_ACCEL_TIME + "<?";
+	private static final String DATABASE_COUNT_ACCEL_RANGE = DATABASE_COUNT_ACCEL + " WHERE " + WHERE_ACCEL_RANGE;
+	private static final String DATABASE_DELETE_ACCEL = "DELETE FROM " + TABLE_NAME_ACCEL_REPORT + " WHERE ";
+	// Scans in rowid order. Old rows come first, so a chunk is found without full scan.
+	private static final String DATABASE_DELETE_ACCEL_BEFORE = DATABASE_DELETE_ACCEL + KEY_ACCEL_ID + " IN (SELECT "
+													+ KEY_ACCEL_ID + " FROM " + TABLE_NAME_ACCEL_REPORT + " WHERE " + KEY_ACCEL_TIME + "<? LIMIT ?)";
+	
+	public static final int REPORT_DATA_COUNT = 5;				// data1 ~ data5
 	//----------- End of Accel data table parameters
 	
+	//----------- Accel rollup table parameters
+	// Summary of accel rows per hour, day and month. Updated in the same transaction as insert.
+	// Unused date columns are -1 (hour in day table, day and hour in month table).
+	// Deleting raw rows by ID, time or date doesn't change rollups (min/max cannot be undone).
+	public static final int ROLLUP_HOUR = 0;
+	public static final int ROLLUP_DAY = 1;
+	public static final int ROLLUP_MONTH = 2;
+	public static final String[] TABLE_NAME_ROLLUP = {"accel_hour", "accel_day", "accel_month"};
+	
+	public static final String KEY_ROLLUP_COUNT = "count";		// long		number of rows
+	public static final String KEY_ROLLUP_SUM = "sum";			// long		sum1 ~ sum5
+	public static final String KEY_ROLLUP_MIN = "min";			// int		min1 ~ min5
+	public static final String KEY_ROLLUP_MAX = "max";			// int		max1 ~ max5
+	
+	public static final int INDEX_ROLLUP_TYPE = 0;
+	public static final int INDEX_ROLLUP_YEAR = 1;
+	public static final int INDEX_ROLLUP_MONTH = 2;
+	public static final int INDEX_ROLLUP_DAY = 3;
+	public static final int INDEX_ROLLUP_HOUR = 4;
+	public static final int INDEX_ROLLUP_COUNT = 5;
+	public static final int INDEX_ROLLUP_SUM = 6;		// + data index (0 ~ 4)
+	public static final int INDEX_ROLLUP_MIN = 11;		// + data index (0 ~ 4)
+	public static final int INDEX_ROLLUP_MAX = 16;		// + data index (0 ~ 4)
+	
+	private static final String ROLLUP_KEY_COLUMNS = KEY_ACCEL_TYPE + ", " + KEY_ACCEL_YEAR + ", "
+													+ KEY_ACCEL_MONTH + ", " + KEY_ACCEL_DAY + ", " + KEY_ACCEL_HOUR;
+	private static final String[] DATABASE_CREATE_ROLLUP_TABLE = new String[TABLE_NAME_ROLLUP.length];
+	private static final String[] DATABASE_INSERT_ROLLUP = new String[TABLE_NAME_ROLLUP.length];
+	private static final String[] DATABASE_UPDATE_ROLLUP = new String[TABLE_NAME_ROLLUP.length];
+	private static final String[] DATABASE_SUMMARY_ROLLUP = new String[TABLE_NAME_ROLLUP.length];
+	private static final String[] DATABASE_DELETE_ROLLUP_TYPE = new String[TABLE_NAME_ROLLUP.length];
+	private static final String[] DATABASE_BUILD_ROLLUP = new String[TABLE_NAME_ROLLUP.length];
+	private static final String[] DATABASE_DELETE_ROLLUP_BEFORE = new String[TABLE_NAME_ROLLUP.length];
+	static {
+		for(int level=ROLLUP_HOUR; level<=ROLLUP_MONTH; level++) {
+			String table = TABLE_NAME_ROLLUP[level];
+			StringBuilder create = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(table).append("(")
+					.append(KEY_ACCEL_TYPE).append(" Integer not null, ")
+					.append(KEY_ACCEL_YEAR).append(" Integer not null, ")
+					.append(KEY_ACCEL_MONTH).append(" Integer not null, ")
+					.append(KEY_ACCEL_DAY).append(" Integer not null, ")
+					.append(KEY_ACCEL_HOUR).append(" Integer not null, ")
+					.append(KEY_ROLLUP_COUNT).append(" Integer not null");
+			StringBuilder update = new StringBuilder("UPDATE ").append(table).append(" SET ")
+					.append(KEY_ROLLUP_COUNT).append("=").append(KEY_ROLLUP_COUNT).append("+?");
+			StringBuilder aggregate = new StringBuilder("sum(").append(level == ROLLUP_HOUR ? "1" : KEY_ROLLUP_COUNT).append(")");
+			StringBuilder summary = new StringBuilder("sum(").append(KEY_ROLLUP_COUNT).append(")");
+			String[] functions = {"sum", "min", "max"};
+			String[] prefixes = {KEY_ROLLUP_SUM, KEY_ROLLUP_MIN, KEY_ROLLUP_MAX};
+			for(int f=0; f<prefixes.length; f++) {
+				for(int i=1; i<=REPORT_DATA_COUNT; i++) {
+					String column = prefixes[f] + i;
+					create.append(", ").append(column).append(" Integer");
+					update.append(", ").append(column).append("=")
+						.append(f == 0 ? column + "+?" : functions[f] + "(" + column + ", ?)");
+					aggregate.append(", ").append(functions[f]).append("(")
+						.append(level == ROLLUP_HOUR ? "data" + i : column).append(")");
+					summary.append(", ").append(functions[f]).append("(").append(column).append(")");
+				}
+			}
+			create.append(", PRIMARY KEY (").append(ROLLUP_KEY_COLUMNS).append("))");
+			update.append(" WHERE ").append(WHERE_ACCEL_DATE);
+			
+			DATABASE_CREATE_ROLLUP_TABLE[level] = create.toString();
+			DATABASE_UPDATE_ROLLUP[level] = update.toString();
+			DATABASE_INSERT_ROLLUP[level] = "INSERT OR IGNORE INTO " + table
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			DATABASE_SUMMARY_ROLLUP[level] = "SELECT ?, ?, ?, ?, ?, " + summary + " FROM " + table + " WHERE ";
+			DATABASE_DELETE_ROLLUP_TYPE[level] = "DELETE FROM " + table + " WHERE " + WHERE_ACCEL_TYPE;
+			DATABASE_DELETE_ROLLUP_BEFORE[level] = "DELETE FROM " + table + " WHERE rowid IN (SELECT rowid FROM " + table
+					+ " WHERE " + KEY_ACCEL_YEAR + "*10000+" + KEY_ACCEL_MONTH + "*100+" + KEY_ACCEL_DAY + "<? LIMIT ?)";
+			
+			// Rebuild from finer level : accel -> hour -> day -> month
+			String source = (level == ROLLUP_HOUR ? TABLE_NAME_ACCEL_REPORT : TABLE_NAME_ROLLUP[level - 1]);
+			String groupBy = KEY_ACCEL_TYPE + ", " + KEY_ACCEL_YEAR + ", " + KEY_ACCEL_MONTH
+					+ (level == ROLLUP_MONTH ? "" : ", " + KEY_ACCEL_DAY)
+					+ (level == ROLLUP_HOUR ? ", " + KEY_ACCEL_HOUR : "");
+			DATABASE_BUILD_ROLLUP[level] = "INSERT OR REPLACE INTO " + table + " SELECT "
+					+ KEY_ACCEL_TYPE + ", " + KEY_ACCEL_YEAR + ", " + KEY_ACCEL_MONTH + ", "
+					+ (level == ROLLUP_MONTH ? "-1" : KEY_ACCEL_DAY) + ", "
+					+ (level == ROLLUP_HOUR ? KEY_ACCEL_HOUR : "-1") + ", "
+					+ aggregate + " FROM " + source + " GROUP BY " + groupBy;
+		}
+	}
+	//----------- End of Accel rollup table parameters
+	
+	//----------- Upload queue table parameters
+	public static final String TABLE_NAME_UPLOAD_QUEUE = "upload_queue";
+	
+	public static final String KEY_UPLOAD_ID = "_id";				// int		primary key, auto increment
+	public static final String KEY_UPLOAD_TIME = "time";			// long		time when the data is made
+	public static final String KEY_UPLOAD_TARGET = "target";		// string	destination key (ex: API key)
+	public static final String KEY_UPLOAD_PAYLOAD = "payload";		// string	data to send
+	
+	public static final int INDEX_UPLOAD_ID = 0;
+	public static final int INDEX_UPLOAD_TIME = 1;
+	public static final int INDEX_UPLOAD_TARGET = 2;
+	public static final int INDEX_UPLOAD_PAYLOAD = 3;
+	
+	private static final String DATABASE_CREATE_UPLOAD_QUEUE_TABLE = "CREATE TABLE IF NOT EXISTS " +TABLE_NAME_UPLOAD_QUEUE+ "("
+													+ KEY_UPLOAD_ID +" Integer primary key autoincrement, "
+													+ KEY_UPLOAD_TIME + " Integer not null, "
+													+ KEY_UPLOAD_TARGET + " Text not null, "
+													+ KEY_UPLOAD_PAYLOAD + " Text not null"
+													+ ")";
+	private static final String DATABASE_INSERT_UPLOAD = "INSERT INTO " + TABLE_NAME_UPLOAD_QUEUE + "("
+													+ KEY_UPLOAD_TIME + ", " + KEY_UPLOAD_TARGET + ", " + KEY_UPLOAD_PAYLOAD
+													+ ") VALUES (?, ?, ?)";
+	private static final String DATABASE_DELETE_UPLOAD = "DELETE FROM " + TABLE_NAME_UPLOAD_QUEUE
+													+ " WHERE " + KEY_UPLOAD_ID + "=?";
+	private static final String DATABASE_COUNT_UPLOAD = "SELECT count(*) FROM " + TABLE_NAME_UPLOAD_QUEUE;
+	//----------- End of Upload queue table parameters
+	
+	//----------- Chat history table parameters
+	public static final String TABLE_NAME_CHAT = "chat";
+	
+	public static final String KEY_CHAT_ID = "_id";					// int		primary key, auto increment
+	public static final String KEY_CHAT_TIME = "time";				// long		time of message
+	public static final String KEY_CHAT_DIRECTION = "direction";	// int		CHAT_RECEIVED or CHAT_SENT
+	public static final String KEY_CHAT_MESSAGE = "message";		// string	message
+	
+	public static final int INDEX_CHAT_ID = 0;
+	public static final int INDEX_CHAT_TIME = 1;
+	public static final int INDEX_CHAT_DIRECTION = 2;
+	public static final int INDEX_CHAT_MESSAGE = 3;
+	
+	public static final int CHAT_RECEIVED = 0;
+	public static final int CHAT_SENT = 1;
+	
+	private static final String DATABASE_CREATE_CHAT_TABLE = "CREATE TABLE IF NOT EXISTS " +TABLE_NAME_CHAT+ "("
+													+ KEY_CHAT_ID +" Integer primary key autoincrement, "
+													+ KEY_CHAT_TIME + " Integer not null, "
+													+ KEY_CHAT_DIRECTION + " Integer not null, "
+													+ KEY_CHAT_MESSAGE + " Text not null"
+													+ ")";
+	private static final String DATABASE_INSERT_CHAT = "INSERT INTO " + TABLE_NAME_CHAT + "("
+													+ KEY_CHAT_TIME + ", " + KEY_CHAT_DIRECTION + ", " + KEY_CHAT_MESSAGE
+													+ ") VALUES (?, ?, ?)";
+	private static final String[] CHAT_COLUMNS = {KEY_CHAT_ID, KEY_CHAT_TIME, KEY_CHAT_DIRECTION, KEY_CHAT_MESSAGE};
+	//----------- End of Chat history table parameters
+	
+	// Instance shared by background components (see acquire())
+	private static DBHelper mInstance = null;
+	private static int mRefCount = 0;
+	
 	// Context, System
 	private final Context mContext;
 	private SQLiteDatabase mDb;
 	private DatabaseHelper mDbHelper;
+	private final HashMap<String, SQLiteStatement> mStatementCache = new HashMap<String, SQLiteStatement>();
+	private final Rollup mRollup = new Rollup();
 	
 	// Constructor
 	public DBHelper(Context context) {
@@ -117,6 +299,30 @@ public class DBHelper {
 	//----------------------------------------------------------------------------------
 	// Public classes
 	//----------------------------------------------------------------------------------
+	/**
+	 * Returns the writable instance shared in this process. Opens database at first call.
+	 * Every user works on one connection, so a long write doesn't make the others
+	 * wait on the file lock. Call release() instead of close() when done.
+	 */
+	public synchronized static DBHelper acquire(Context c) throws SQLException {
+		if(mInstance == null)
+			mInstance = new DBHelper(c.getApplicationContext()).openWritable();
+		mRefCount++;
+		return mInstance;
+	}
+	
+	/**
+	 * Release the instance from acquire(). Database is closed when the last user releases it.
+	 */
+	public void release() {
+		synchronized (DBHelper.class) {
+			if(this != mInstance || --mRefCount > 0)
+				return;
+			mInstance = null;
+		}
+		close();
+	}
+	
 	// DB open (Writable)
 	public DBHelper openWritable() throws SQLException {
 		mDbHelper = new DatabaseHelper(mContext);
@@ -134,6 +340,11 @@ public class DBHelper {
 	// Terminate DB
 	public void close() {
 		if(mDb != null) {
+			synchronized (mDb) {
+				for(SQLiteStatement statement : mStatementCache.values())
+					statement.close();
+				mStatementCache.clear();
+			}
 			mDb.close();
 			mDb = null;
 		}
@@ -170,11 +381,142 @@ public class DBHelper {
 		
 		Logs.d(TAG, "+ Insert activity report : mStartTime="+time+", Year="+year+", Month="+month+", Day="+day+", Hour="+hour);
 		
+		if(mDb == null) 
+			return -1;
 		synchronized (mDb) {
-			if(mDb == null) 
-				return -1;
-			return mDb.insertOrThrow(TABLE_NAME_ACCEL_REPORT, null, insertValues);
+			mDb.beginTransaction();
+			try {
+				long id = mDb.insertOrThrow(TABLE_NAME_ACCEL_REPORT, null, insertValues);
+				mRollup.reset(type, year, month, day, hour);
+				mRollup.add(dataArray, 0);
+				applyRollup(mRollup);
+				mDb.setTransactionSuccessful();
+				return id;
+			} finally {
+				mDb.endTransaction();
+			}
+		}
+	}
+
+	
+	/**
+	 * Insert many activity reports in a single transaction.
+	 * Values are bound to one compiled statement, so there is no ContentValues per row
+	 * and only one commit (fsync) per call. Consecutive rows of the same hour are merged
+	 * in memory and written to rollup tables in the same transaction.
+	 * @param types			type of each row
+	 * @param times			time of each row
+	 * @param dates			year, month, day, hour of each row. 4 values per row.
+	 * @param data			data1 ~ data5 of each row. REPORT_DATA_COUNT values per row.
+	 * @param subData		arg2 of each row. Can be null.
+	 * @param count			number of rows
+	 * @return	int			number of rows inserted
+	 */
+	public int insertActivityReports(int[] types, long[] times, int[] dates, int[] data, String[] subData, int count) throws SQLiteConstraintException {
+		if(mDb == null || types == null || times == null || dates == null || data == null)
+			return 0;
+		
+		int inserted = 0;
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(DATABASE_INSERT_ACCEL);
+			mDb.beginTransaction();
+			try {
+				mRollup.clear();
+				for(int i=0; i<count; i++) {
+					if(times[i] < 1)
+						continue;
+					statement.bindLong(1, types[i]);
+					statement.bindLong(2, times[i]);
+					for(int j=0; j<4; j++)
+						statement.bindLong(3 + j, dates[i*4 + j]);
+					for(int j=0; j<REPORT_DATA_COUNT; j++)
+						statement.bindLong(7 + j, data[i*REPORT_DATA_COUNT + j]);
+					if(subData != null && subData[i] != null)
+						statement.bindString(12, subData[i]);
+					else
+						statement.bindNull(12);
+					statement.executeInsert();
+					inserted++;
+					
+					if(!mRollup.isSameHour(types[i], dates, i*4)) {
+						applyRollup(mRollup);
+						mRollup.reset(types[i], dates[i*4], dates[i*4 + 1], dates[i*4 + 2], dates[i*4 + 3]);
+					}
+					mRollup.add(data, i*REPORT_DATA_COUNT);
+				}
+				applyRollup(mRollup);
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+		}
+		Logs.d(TAG, "+ Insert activity reports : count={}", inserted);
+		return inserted;
+	}
+	
+	/**
+	 * Append chat messages in a single transaction
+	 * @param times			time of each message
+	 * @param directions	CHAT_RECEIVED or CHAT_SENT
+	 * @param messages		message text
+	 * @param count			number of messages
+	 * @return	int			number of messages inserted
+	 */
+	public int insertChatMessages(long[] times, int[] directions, String[] messages, int count) {
+		if(mDb == null || times == null || directions == null || messages == null)
+			return 0;
+		
+		int inserted = 0;
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(DATABASE_INSERT_CHAT);
+			mDb.beginTransaction();
+			try {
+				for(int i=0; i<count; i++) {
+					statement.bindLong(1, times[i]);
+					statement.bindLong(2, directions[i]);
+					statement.bindString(3, messages[i]);
+					statement.executeInsert();
+					inserted++;
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+		}
+		return inserted;
+	}
+	
+	/**
+	 * Append entries to upload queue in a single transaction
+	 * @param times			time of each entry
+	 * @param targets		destination key of each entry
+	 * @param payloads		data of each entry
+	 * @param count			number of entries
+	 * @return	int			number of entries inserted
+	 */
+	public int insertUploads(long[] times, String[] targets, String[] payloads, int count) {
+		if(mDb == null || times == null || targets == null || payloads == null)
+			return 0;
+		
+		int inserted = 0;
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(DATABASE_INSERT_UPLOAD);
+			mDb.beginTransaction();
+			try {
+				for(int i=0; i<count; i++) {
+					statement.bindLong(1, times[i]);
+					statement.bindString(2, targets[i]);
+					statement.bindString(3, payloads[i]);
+					statement.executeInsert();
+					inserted++;
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
 		}
+		Logs.d(TAG, "+ Insert upload queue : count="+inserted);
+		return inserted;
 	}
 
 	
@@ -182,8 +524,8 @@ public class DBHelper {
 	// SELECT methods
 	//----------------------------------------------------------------------------------
 	public Cursor selectReportAll() {
+		if(mDb == null) return null;
 		synchronized (mDb) {
-			if(mDb == null) return null;
 			return mDb.query(
 					TABLE_NAME_ACCEL_REPORT,	// Table : String
 					null,		// Columns : String[]
@@ -197,16 +539,16 @@ public class DBHelper {
 	}
 	
 	public Cursor selectReportWithType(int type, int count) {
+		if(mDb == null) return null;
 		synchronized (mDb) {
-			if(mDb == null) return null;
 			String countString = null;
 			if(count > 0)
 				countString = Integer.toString(count);
 			return mDb.query(
 					TABLE_NAME_ACCEL_REPORT,		// Table : String
 					null,						// Columns : String[]
-					KEY_ACCEL_TYPE + "=" + Integer.toString(type),		// Selection 	: String
-					null,			// Selection arguments: String[]
+					WHERE_ACCEL_TYPE,		// Selection 	: String
+					new String[] {Integer.toString(type)},			// Selection arguments: String[]
 					null,			// Group by 	: String
 					null,			// Having 		: String
 					KEY_ACCEL_ID+" DESC",			// Order by 	: String
@@ -215,15 +557,14 @@ public class DBHelper {
 	}
 	
 	public Cursor selectReportWithTime(int type, long timeBiggerThan, long timeSmallerThan) {
+		if(mDb == null) return null;
 		synchronized (mDb) {
-			if(mDb == null) return null;
 			return mDb.query(
 					TABLE_NAME_ACCEL_REPORT,		// Table : String
 					null,							// Columns : String[]
-					KEY_ACCEL_TYPE + "=" + Integer.toString(type)
-					+ " AND " + KEY_ACCEL_TIME + ">" + Long.toString(timeBiggerThan) 
-					+ " AND " + KEY_ACCEL_TIME + "<" + Long.toString(timeSmallerThan),		// Selection 	: String
-					null,			// Selection arguments: String[]
+					WHERE_ACCEL_TIME,		// Selection 	: String
+					new String[] {Integer.toString(type), Long.toString(timeBiggerThan), 
+							Long.toString(timeSmallerThan)},			// Selection arguments: String[]
 					null,			// Group by 	: String
 					null,			// Having 		: String
 					KEY_ACCEL_ID+" DESC",			// Order by 	: String
@@ -232,27 +573,37 @@ public class DBHelper {
 	}
 	
 	public Cursor selectReportWithDate(int type, int year, int month, int day, int hour) {
+		if(mDb == null) return null;
 		synchronized (mDb) {
-			if(mDb == null) return null;
-			
+			// Only a few combinations of columns, so each form is compiled once.
+			// Columns are in index order (type, year, month, day, hour).
+			String[] values = new String[5];
+			int count = 0;
 			StringBuilder sb = new StringBuilder();
-			sb.append(KEY_ACCEL_TYPE).append("=").append(type);
-			sb.append(" AND ").append(KEY_ACCEL_YEAR).append("=").append(year);
+			sb.append(KEY_ACCEL_TYPE).append("=?");
+			values[count++] = Integer.toString(type);
+			sb.append(" AND ").append(KEY_ACCEL_YEAR).append("=?");
+			values[count++] = Integer.toString(year);
 			
 			if(month > -1 && month < 12) {
-				sb.append(" AND ").append(KEY_ACCEL_MONTH).append("=").append(month);
+				sb.append(" AND ").append(KEY_ACCEL_MONTH).append("=?");
+				values[count++] = Integer.toString(month);
 			}
 			if(day > -1 && day < 31) {
-				sb.append(" AND ").append(KEY_ACCEL_DAY).append("=").append(day);
+				sb.append(" AND ").append(KEY_ACCEL_DAY).append("=?");
+				values[count++] = Integer.toString(day);
 			}
 			if(hour > -1 && hour < 24) {
-				sb.append(" AND ").append(KEY_ACCEL_HOUR).append("=").append(hour);
+				sb.append(" AND ").append(KEY_ACCEL_HOUR).append("=?");
+				values[count++] = Integer.toString(hour);
 			}
+			String[] args = new String[count];
+			System.arraycopy(values, 0, args, 0, count);
 			return mDb.query(
 					TABLE_NAME_ACCEL_REPORT,		// Table : String
 					null,							// Columns : String[]
 					sb.toString(),		// Selection 	: String
-					null,			// Selection arguments: String[]
+					args,			// Selection arguments: String[]
 					null,			// Group by 	: String
 					null,			// Having 		: String
 					KEY_ACCEL_ID+" DESC",			// Order by 	: String
@@ -260,6 +611,140 @@ public class DBHelper {
 		}
 	}
 	
+	/**
+	 * Select a window of rows for streaming (keyset pagination).
+	 * Pass the last _id of previous window as afterId, so every window is an index seek
+	 * and memory use doesn't depend on table size.
+	 * @param columns		projection. First column must be KEY_ACCEL_ID.
+	 * @param afterId		select rows whose _id is bigger than this
+	 * @param timeFrom		minimum time (inclusive)
+	 * @param timeTo		maximum time (exclusive)
+	 * @param limit			maximum rows of the window
+	 */
+	public Cursor selectReportWindow(String[] columns, long afterId, long timeFrom, long timeTo, int limit) {
+		if(mDb == null) return null;
+		synchronized (mDb) {
+			return mDb.query(
+					TABLE_NAME_ACCEL_REPORT,		// Table : String
+					columns,						// Columns : String[]
+					KEY_ACCEL_ID + ">? AND " + WHERE_ACCEL_RANGE,		// Selection 	: String
+					new String[] {Long.toString(afterId), Long.toString(timeFrom), 
+							Long.toString(timeTo)},			// Selection arguments: String[]
+					null,			// Group by 	: String
+					null,			// Having 		: String
+					KEY_ACCEL_ID+" ASC",			// Order by 	: String
+					Integer.toString(limit) );		// Limit		: String
+		}
+	}
+	
+	/**
+	 * Select rollup rows in a period. Columns are INDEX_ROLLUP_XXX.
+	 * ex) Each day of a month : selectRollups(ROLLUP_DAY, type, 2014, 5, -1)
+	 * @param level		ROLLUP_HOUR, ROLLUP_DAY or ROLLUP_MONTH
+	 * @param month		-1 for all months
+	 * @param day		-1 for all days
+	 */
+	public Cursor selectRollups(int level, int type, int year, int month, int day) {
+		if(mDb == null || level < ROLLUP_HOUR || level > ROLLUP_MONTH) return null;
+		synchronized (mDb) {
+			String[] args;
+			String selection = KEY_ACCEL_TYPE + "=? AND " + KEY_ACCEL_YEAR + "=?";
+			if(month > -1 && day > -1 && level < ROLLUP_MONTH) {
+				selection += " AND " + KEY_ACCEL_MONTH + "=? AND " + KEY_ACCEL_DAY + "=?";
+				args = new String[] {Integer.toString(type), Integer.toString(year), 
+						Integer.toString(month), Integer.toString(day)};
+			} else if(month > -1) {
+				selection += " AND " + KEY_ACCEL_MONTH + "=?";
+				args = new String[] {Integer.toString(type), Integer.toString(year), Integer.toString(month)};
+			} else {
+				args = new String[] {Integer.toString(type), Integer.toString(year)};
+			}
+			return mDb.query(
+					TABLE_NAME_ROLLUP[level],		// Table : String
+					null,							// Columns : String[]
+					selection,		// Selection 	: String
+					args,			// Selection arguments: String[]
+					null,			// Group by 	: String
+					null,			// Having 		: String
+					ROLLUP_KEY_COLUMNS,			// Order by 	: String
+					null );		// Limit		: String
+		}
+	}
+	
+	/**
+	 * Select summary (count, sum, min, max) of a year, month, day or hour from rollup tables.
+	 * Reads at most 12 rows, however many raw rows the period has.
+	 * Parameters are same as selectReportWithDate(). Result has one row and columns are INDEX_ROLLUP_XXX.
+	 */
+	public Cursor selectReportSummary(int type, int year, int month, int day, int hour) {
+		if(mDb == null) return null;
+		synchronized (mDb) {
+			boolean hasMonth = (month > -1 && month < 12);
+			boolean hasDay = (hasMonth && day > -1 && day < 31);
+			boolean hasHour = (hasDay && hour > -1 && hour < 24);
+			String[] key = {Integer.toString(type), Integer.toString(year), Integer.toString(hasMonth ? month : -1),
+					Integer.toString(hasDay ? day : -1), Integer.toString(hasHour ? hour : -1)};
+			
+			String sql;
+			String[] args;
+			if(hasMonth) {
+				// Exactly one row of hour, day or month table
+				int level = (hasHour ? ROLLUP_HOUR : (hasDay ? ROLLUP_DAY : ROLLUP_MONTH));
+				sql = DATABASE_SUMMARY_ROLLUP[level] + WHERE_ACCEL_DATE;
+				args = new String[10];
+				System.arraycopy(key, 0, args, 0, 5);
+				System.arraycopy(key, 0, args, 5, 5);
+			} else {
+				// Months of the year
+				sql = DATABASE_SUMMARY_ROLLUP[ROLLUP_MONTH] + KEY_ACCEL_TYPE + "=? AND " + KEY_ACCEL_YEAR + "=?";
+				args = new String[7];
+				System.arraycopy(key, 0, args, 0, 5);
+				System.arraycopy(key, 0, args, 5, 2);
+			}
+			return mDb.rawQuery(sql, args);
+		}
+	}
+	
+	/**
+	 * Select a page of chat messages older than a message (keyset pagination).
+	 * Rows are in descending _id order (newest first).
+	 * @param beforeId		_id of the oldest message already loaded. Long.MAX_VALUE for the latest page.
+	 * @param count			page size
+	 */
+	public Cursor selectChatMessages(long beforeId, int count) {
+		if(mDb == null) return null;
+		synchronized (mDb) {
+			return mDb.query(
+					TABLE_NAME_CHAT,		// Table : String
+					CHAT_COLUMNS,			// Columns : String[]
+					KEY_CHAT_ID + "<?",		// Selection 	: String
+					new String[] {Long.toString(beforeId)},			// Selection arguments: String[]
+					null,			// Group by 	: String
+					null,			// Having 		: String
+					KEY_CHAT_ID+" DESC",			// Order by 	: String
+					Integer.toString(count) );		// Limit		: String
+		}
+	}
+	
+	/**
+	 * Select oldest entries of upload queue
+	 * @param count		maximum number of entries
+	 */
+	public Cursor selectUploads(int count) {
+		if(mDb == null) return null;
+		synchronized (mDb) {
+			return mDb.query(
+					TABLE_NAME_UPLOAD_QUEUE,		// Table : String
+					null,						// Columns : String[]
+					null,						// Selection 	: String
+					null,			// Selection arguments: String[]
+					null,			// Group by 	: String
+					null,			// Having 		: String
+					KEY_UPLOAD_ID+" ASC",			// Order by 	: String
+					Integer.toString(count) );		// Limit		: String
+		}
+	}
+	
 	//----------------------------------------------------------------------------------
 	// Update methods
 	//----------------------------------------------------------------------------------
@@ -301,9 +786,9 @@ public class DBHelper {
 		if(mDb == null) return;
 		
 		synchronized (mDb) {
-			int count = mDb.delete(TABLE_NAME_ACCEL_REPORT, 
-					KEY_ACCEL_ID + "=" + id, // whereClause
-					null); 			// whereArgs
+			SQLiteStatement statement = getStatement(DATABASE_DELETE_ACCEL + KEY_ACCEL_ID + "=?");
+			statement.bindLong(1, id);
+			int count = statement.executeUpdateDelete();
 			Logs.d(TAG, "- Delete record : id="+id+", count="+count);
 		}
 	}
@@ -312,9 +797,21 @@ public class DBHelper {
 		if(mDb == null) return;
 		
 		synchronized (mDb) {
-			int count = mDb.delete(TABLE_NAME_ACCEL_REPORT, 
-					KEY_ACCEL_TYPE + "=" + type, // whereClause
-					null); 			// whereArgs
+			mDb.beginTransaction();
+			int count = 0;
+			try {
+				SQLiteStatement statement = getStatement(DATABASE_DELETE_ACCEL + WHERE_ACCEL_TYPE);
+				statement.bindLong(1, type);
+				count = statement.executeUpdateDelete();
+				for(int level=ROLLUP_HOUR; level<=ROLLUP_MONTH; level++) {
+					statement = getStatement(DATABASE_DELETE_ROLLUP_TYPE[level]);
+					statement.bindLong(1, type);
+					statement.executeUpdateDelete();
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
 			Logs.d(TAG, "- Delete record : type="+type+", deleted count="+count);
 		}
 	}
@@ -323,11 +820,11 @@ public class DBHelper {
 		if(mDb == null) return;
 		
 		synchronized (mDb) {
-			int count = mDb.delete(TABLE_NAME_ACCEL_REPORT, 
-					KEY_ACCEL_TYPE + "=" + type 
-					+ " AND " + KEY_ACCEL_TIME + ">" + Long.toString(timeBiggerThan) 
-					+ " AND " + KEY_ACCEL_TIME + "<" + Long.toString(timeSmallerThan), // whereClause
-					null); 			// whereArgs
+			SQLiteStatement statement = getStatement(DATABASE_DELETE_ACCEL + WHERE_ACCEL_TIME);
+			statement.bindLong(1, type);
+			statement.bindLong(2, timeBiggerThan);
+			statement.bindLong(3, timeSmallerThan);
+			int count = statement.executeUpdateDelete();
 			Logs.d(TAG, "- Delete record : type="+type+", "+timeBiggerThan+" < time < "+timeSmallerThan+", deleted count="+count);
 		}
 	}
@@ -336,13 +833,106 @@ public class DBHelper {
 		if(mDb == null) return;
 		
 		synchronized (mDb) {
-			int count = mDb.delete(TABLE_NAME_ACCEL_REPORT, 
-					KEY_ACCEL_TYPE + "=" + type 
-					+ " AND " + KEY_ACCEL_YEAR + "=" + Integer.toString(year) 
-					+ " AND " + KEY_ACCEL_MONTH + "=" + Integer.toString(month)
-					+ " AND " + KEY_ACCEL_DAY + "=" + Integer.toString(day)
-					+ " AND " + KEY_ACCEL_HOUR + "=" + Integer.toString(hour), // whereClause
-					null); 			// whereArgs
+			SQLiteStatement statement = getStatement(DATABASE_DELETE_ACCEL + WHERE_ACCEL_DATE);
+			statement.bindLong(1, type);
+			statement.bindLong(2, year);
+			statement.bindLong(3, month);
+			statement.bindLong(4, day);
+			statement.bindLong(5, hour);
+			statement.executeUpdateDelete();
+		}
+	}
+	
+	/**
+	 * Delete entries of upload queue. Call this after server acknowledged them.
+	 * @param ids		IDs of entries
+	 * @param count		number of IDs
+	 */
+	public void deleteUploads(long[] ids, int count) {
+		if(mDb == null || ids == null) return;
+		
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(DATABASE_DELETE_UPLOAD);
+			mDb.beginTransaction();
+			try {
+				for(int i=0; i<count; i++) {
+					statement.bindLong(1, ids[i]);
+					statement.executeUpdateDelete();
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+			}
+			Logs.d(TAG, "- Delete upload queue : count="+count);
+		}
+	}
+	
+	/**
+	 * Delete a chunk of raw reports older than the time. Call repeatedly until it returns
+	 * less than maxRows, so each transaction stays short.
+	 * @param time			rows with smaller time are deleted
+	 * @param maxRows		maximum rows to delete
+	 * @return	int			number of deleted rows
+	 */
+	public int deleteReportsBefore(long time, int maxRows) {
+		if(mDb == null) return 0;
+		
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(DATABASE_DELETE_ACCEL_BEFORE);
+			statement.bindLong(1, time);
+			statement.bindLong(2, maxRows);
+			return statement.executeUpdateDelete();
+		}
+	}
+	
+	/**
+	 * Delete a chunk of rollup rows older than the date
+	 * @param level			ROLLUP_HOUR, ROLLUP_DAY or ROLLUP_MONTH
+	 * @param year, month, day		rows before this date are deleted
+	 * @param maxRows		maximum rows to delete
+	 * @return	int			number of deleted rows
+	 */
+	public int deleteRollupsBefore(int level, int year, int month, int day, int maxRows) {
+		if(mDb == null || level < ROLLUP_HOUR || level > ROLLUP_MONTH) return 0;
+		
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(DATABASE_DELETE_ROLLUP_BEFORE[level]);
+			statement.bindLong(1, year*10000L + month*100L + day);
+			statement.bindLong(2, maxRows);
+			return statement.executeUpdateDelete();
+		}
+	}
+	
+	//----------------------------------------------------------------------------------
+	// Vacuum
+	//----------------------------------------------------------------------------------
+	/**
+	 * New database is created with incremental auto vacuum (see onConfigure).
+	 * Database made by older version stays without it. Turning it on needs a full VACUUM,
+	 * which locks the whole file for seconds, so freed pages are just reused by later inserts.
+	 */
+	public boolean isIncrementalVacuumEnabled() {
+		return queryForLong("PRAGMA auto_vacuum", null) == 2;
+	}
+	
+	/**
+	 * Returns number of unused pages in database file
+	 */
+	public long getFreePageCount() {
+		return queryForLong("PRAGMA freelist_count", null);
+	}
+	
+	/**
+	 * Return unused pages to file system
+	 * @param pages		maximum pages to remove
+	 */
+	public void incrementalVacuum(int pages) {
+		if(mDb == null) return;
+		
+		synchronized (mDb) {
+			Cursor c = mDb.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+			while(c.moveToNext()) {}		// Each step removes a page
+			c.close();
 		}
 	}
 	
@@ -350,33 +940,108 @@ public class DBHelper {
 	// Count methods
 	//----------------------------------------------------------------------------------
 	public int getReportCount() {
-		String query = "select count(*) from " + TABLE_NAME_ACCEL_REPORT;
-		Cursor c = mDb.rawQuery(query, null);
-		c.moveToFirst();
-		int count = c.getInt(0);
-		c.close();
-		return count;
+		return (int) queryForLong(DATABASE_COUNT_ACCEL, null);
 	}
 	
 	public int getReportCountWithType(int type) {
-		String query = "select count(*) from " + TABLE_NAME_ACCEL_REPORT + " where " + KEY_ACCEL_TYPE + "=" + Integer.toString(type);
-		Cursor c = mDb.rawQuery(query, null);
-		c.moveToFirst();
-		int count = c.getInt(0);
-		c.close();
-		return count;
+		return (int) queryForLong(DATABASE_COUNT_ACCEL_TYPE, new long[] {type});
+	}
+	
+	public int getUploadCount() {
+		return (int) queryForLong(DATABASE_COUNT_UPLOAD, null);
 	}
 	
 	public int getReportCountWithTime(int type, long timeBiggerThan, long timeSmallerThan) {
-		String query = "select count(*) from " + TABLE_NAME_ACCEL_REPORT + " where " 
-				+ KEY_ACCEL_TYPE + "=" + Integer.toString(type)
-				+ " AND " + KEY_ACCEL_TIME + ">" + Long.toString(timeBiggerThan) 
-				+ " AND " + KEY_ACCEL_TIME + "<" + Long.toString(timeSmallerThan);
-		Cursor c = mDb.rawQuery(query, null);
-		c.moveToFirst();
-		int count = c.getInt(0);
-		c.close();
-		return count;
+		return (int) queryForLong(DATABASE_COUNT_ACCEL_TIME, new long[] {type, timeBiggerThan, timeSmallerThan});
+	}
+	
+	/**
+	 * Count rows of all types in time range
+	 * @param timeFrom		minimum time (inclusive)
+	 * @param timeTo		maximum time (exclusive)
+	 */
+	public long getReportCountInRange(long timeFrom, long timeTo) {
+		return queryForLong(DATABASE_COUNT_ACCEL_RANGE, new long[] {timeFrom, timeTo});
+	}
+	
+	
+	//----------------------------------------------------------------------------------
+	// Prepared statements
+	//----------------------------------------------------------------------------------
+	/**
+	 * Returns compiled statement of the SQL. Statements are compiled once and
+	 * reused until close(). Call this inside synchronized(mDb) block.
+	 */
+	private SQLiteStatement getStatement(String sql) {
+		SQLiteStatement statement = mStatementCache.get(sql);
+		if(statement == null) {
+			statement = mDb.compileStatement(sql);
+			mStatementCache.put(sql, statement);
+		} else {
+			statement.clearBindings();
+		}
+		return statement;
+	}
+	
+	/**
+	 * Add merged rows to hour, day and month rollup tables.
+	 * Inserts a new rollup row, or updates the existing one when the key exists.
+	 * Call this inside a transaction.
+	 */
+	private void applyRollup(Rollup rollup) {
+		if(rollup.mCount < 1)
+			return;
+		
+		for(int level=ROLLUP_HOUR; level<=ROLLUP_MONTH; level++) {
+			long day = (level == ROLLUP_MONTH ? -1 : rollup.mDay);
+			long hour = (level == ROLLUP_HOUR ? rollup.mHour : -1);
+			
+			SQLiteStatement insert = getStatement(DATABASE_INSERT_ROLLUP[level]);
+			insert.bindLong(1, rollup.mType);
+			insert.bindLong(2, rollup.mYear);
+			insert.bindLong(3, rollup.mMonth);
+			insert.bindLong(4, day);
+			insert.bindLong(5, hour);
+			insert.bindLong(6, rollup.mCount);
+			bindRollupValues(insert, 7, rollup);
+			if(insert.executeInsert() != -1)
+				continue;
+			
+			SQLiteStatement update = getStatement(DATABASE_UPDATE_ROLLUP[level]);
+			update.bindLong(1, rollup.mCount);
+			bindRollupValues(update, 2, rollup);
+			update.bindLong(17, rollup.mType);
+			update.bindLong(18, rollup.mYear);
+			update.bindLong(19, rollup.mMonth);
+			update.bindLong(20, day);
+			update.bindLong(21, hour);
+			update.executeUpdateDelete();
+		}
+		rollup.clear();
+	}
+	
+	private void bindRollupValues(SQLiteStatement statement, int start, Rollup rollup) {
+		for(int i=0; i<REPORT_DATA_COUNT; i++) {
+			statement.bindLong(start + i, rollup.mSum[i]);
+			statement.bindLong(start + REPORT_DATA_COUNT + i, rollup.mMin[i]);
+			statement.bindLong(start + REPORT_DATA_COUNT*2 + i, rollup.mMax[i]);
+		}
+	}
+	
+	/**
+	 * Run single value query (ex: count) with bound arguments
+	 */
+	private long queryForLong(String sql, long[] args) {
+		if(mDb == null) return 0;
+		
+		synchronized (mDb) {
+			SQLiteStatement statement = getStatement(sql);
+			if(args != null) {
+				for(int i=0; i<args.length; i++)
+					statement.bindLong(i + 1, args[i]);
+			}
+			return statement.simpleQueryForLong();
+		}
 	}
 	
 
@@ -390,20 +1055,95 @@ public class DBHelper {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		}
 
+		// Called before onCreate(). Takes effect only when the database file is empty.
+		@Override
+		public void onConfigure(SQLiteDatabase db) {
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+		}
+
 		// Will be called one time at first access
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(DATABASE_CREATE_ACCEL_TABLE);
+			db.execSQL(DATABASE_CREATE_UPLOAD_QUEUE_TABLE);
+			db.execSQL(DATABASE_CREATE_ACCEL_TIME_INDEX);
+			db.execSQL(DATABASE_CREATE_ACCEL_DATE_INDEX);
+			for(int level=ROLLUP_HOUR; level<=ROLLUP_MONTH; level++)
+				db.execSQL(DATABASE_CREATE_ROLLUP_TABLE[level]);
+			db.execSQL(DATABASE_CREATE_CHAT_TABLE);
 		}
 
 		// Will be called when the version is increased
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// TODO: Keep previous data
-			db.execSQL(DATABASE_DROP_ACCEL_TABLE);
-			db.execSQL(DATABASE_CREATE_ACCEL_TABLE);
+			// Upgrade step by step to keep previous data
+			if(oldVersion < 2) {
+				// Version 2 : upload queue
+				db.execSQL(DATABASE_CREATE_UPLOAD_QUEUE_TABLE);
+			}
+			if(oldVersion < 3) {
+				// Version 3 : indexes for range queries. Existing rows are indexed in place.
+				db.execSQL(DATABASE_CREATE_ACCEL_TIME_INDEX);
+				db.execSQL(DATABASE_CREATE_ACCEL_DATE_INDEX);
+			}
+			if(oldVersion < 4) {
+				// Version 4 : rollup tables. Build them from existing rows.
+				for(int level=ROLLUP_HOUR; level<=ROLLUP_MONTH; level++) {
+					db.execSQL(DATABASE_CREATE_ROLLUP_TABLE[level]);
+					db.execSQL(DATABASE_BUILD_ROLLUP[level]);
+				}
+			}
+			if(oldVersion < 5) {
+				// Version 5 : chat history
+				db.execSQL(DATABASE_CREATE_CHAT_TABLE);
+			}
 		}
 		
 	}	// End of class DatabaseHelper
 	
+	
+	/**
+	 * Rows of the same type and hour merged in memory
+	 */
+	private static class Rollup {
+		int mType, mYear, mMonth, mDay, mHour;
+		long mCount = 0;
+		final long[] mSum = new long[REPORT_DATA_COUNT];
+		final int[] mMin = new int[REPORT_DATA_COUNT];
+		final int[] mMax = new int[REPORT_DATA_COUNT];
+		
+		void reset(int type, int year, int month, int day, int hour) {
+			mType = type;
+			mYear = year;
+			mMonth = month;
+			mDay = day;
+			mHour = hour;
+			clear();
+		}
+		
+		void clear() {
+			mCount = 0;
+			for(int i=0; i<REPORT_DATA_COUNT; i++) {
+				mSum[i] = 0;
+				mMin[i] = Integer.MAX_VALUE;
+				mMax[i] = Integer.MIN_VALUE;
+			}
+		}
+		
+		boolean isSameHour(int type, int[] dates, int offset) {
+			return mCount > 0 && mType == type && mYear == dates[offset] && mMonth == dates[offset + 1]
+					&& mDay == dates[offset + 2] && mHour == dates[offset + 3];
+		}
+		
+		void add(int[] data, int offset) {
+			mCount++;
+			for(int i=0; i<REPORT_DATA_COUNT; i++) {
+				int value = data[offset + i];
+				mSum[i] += value;
+				if(value < mMin[i]) mMin[i] = value;
+				if(value > mMax[i]) mMax[i] = value;
+			}
+		}
+	}	// End of class Rollup
+	
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.contents;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.database.Cursor;
+
+/**
+ * Streams accel reports to a file.
+ *
+ * Rows are read in fixed-size windows with keyset pagination (_id > last _id),
+ * so memory use is constant whatever the table size. Only the projected integer columns
+ * are read. Values are encoded straight into a direct ByteBuffer and written through a FileChannel.
+ *
+ * FORMAT_CSV : header line with column names, then one line per row.
+ * FORMAT_BINARY :
+ * 		"BCX1" | column count (1 byte) | [name length (1 byte) | name (ASCII)] * column count
+ * 		then for each row and column, zigzag varint of (value - value of previous row).
+ * 		_id and time grow slowly, so most values take 1 or 2 bytes.
+ *
+ * Call export() on a worker thread. DBHelper must be opened by caller.
+ */
+public class ReportExporter {
+
+	private static final String TAG = "ReportExporter";
+
+	public static final int FORMAT_CSV = 1;
+	public static final int FORMAT_BINARY = 2;
+
+	public static final int DEFAULT_WINDOW_SIZE = 2000;
+	public static final String[] DEFAULT_COLUMNS = {
+		DBHelper.KEY_ACCEL_ID, DBHelper.KEY_ACCEL_TYPE, DBHelper.KEY_ACCEL_TIME,
+		DBHelper.KEY_ACCEL_DATA1, DBHelper.KEY_ACCEL_DATA2, DBHelper.KEY_ACCEL_DATA3,
+		DBHelper.KEY_ACCEL_DATA4, DBHelper.KEY_ACCEL_DATA5
+	};
+
+	private static final byte[] BINARY_MAGIC = {'B', 'C', 'X', '1'};
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_VALUE_SIZE = 21;		// "-9223372036854775808," or 10 byte varint
+
+	private final DBHelper mDbHelper;
+	private String[] mColumns = DEFAULT_COLUMNS;
+	private long mTimeFrom = 0;
+	private long mTimeTo = Long.MAX_VALUE;
+	private int mWindowSize = DEFAULT_WINDOW_SIZE;
+	private OnProgressListener mListener = null;
+	private volatile boolean mIsCancelled = false;
+
+
+	public ReportExporter(DBHelper db) {
+		mDbHelper = db;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Set projection. Only integer columns of accel table. _id is added if missing.
+	 */
+	public void setColumns(String[] columns) {
+		if(columns == null || columns.length < 1) {
+			mColumns = DEFAULT_COLUMNS;
+			return;
+		}
+		boolean hasId = DBHelper.KEY_ACCEL_ID.equals(columns[0]);
+		mColumns = new String[hasId ? columns.length : columns.length + 1];
+		mColumns[0] = DBHelper.KEY_ACCEL_ID;
+		System.arraycopy(columns, hasId ? 1 : 0, mColumns, 1, mColumns.length - 1);
+	}
+
+	/**
+	 * @param from		minimum time (inclusive)
+	 * @param to		maximum time (exclusive)
+	 */
+	public void setTimeRange(long from, long to) {
+		mTimeFrom = from;
+		mTimeTo = to;
+	}
+
+	public void setWindowSize(int rows) {
+		mWindowSize = (rows < 1 ? DEFAULT_WINDOW_SIZE : rows);
+	}
+
+	public void setOnProgressListener(OnProgressListener l) {
+		mListener = l;
+	}
+
+	/**
+	 * Stop running export. export() returns rows written so far.
+	 */
+	public void cancel() {
+		mIsCancelled = true;
+	}
+
+	/**
+	 * Export rows to the file
+	 * @param file		destination. Overwritten.
+	 * @param format	FORMAT_CSV or FORMAT_BINARY
+	 * @return	long	number of exported rows
+	 * @throws IOException
+	 */
+	public long export(File file, int format) throws IOException {
+		mIsCancelled = false;
+		long total = mDbHelper.getReportCountInRange(mTimeFrom, mTimeTo);
+		long exported = 0;
+		int columnCount = mColumns.length;
+		long[] previous = new long[columnCount];
+		long lastId = -1;
+
+		FileOutputStream fos = new FileOutputStream(file);
+		FileChannel channel = fos.getChannel();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		try {
+			writeHeader(buffer, format);
+
+			while(!mIsCancelled) {
+				Cursor c = mDbHelper.selectReportWindow(mColumns, lastId, mTimeFrom, mTimeTo, mWindowSize);
+				if(c == null)
+					break;
+				int rows = 0;
+				try {
+					while(c.moveToNext()) {
+						if(buffer.remaining() < columnCount * MAX_VALUE_SIZE + 1)
+							flush(channel, buffer);
+						for(int i=0; i<columnCount; i++) {
+							long value = c.getLong(i);
+							if(format == FORMAT_BINARY) {
+								putVarint(buffer, zigzag(value - previous[i]));
+								previous[i] = value;
+							} else {
+								if(i > 0)
+									buffer.put((byte) ',');
+								putDecimal(buffer, value);
+							}
+						}
+						if(format != FORMAT_BINARY)
+							buffer.put((byte) '\n');
+						lastId = c.getLong(0);
+						rows++;
+					}
+				} finally {
+					c.close();
+				}
+
+				exported += rows;
+				if(mListener != null)
+					mListener.onProgress(exported, total);
+				if(rows < mWindowSize)
+					break;
+			}
+			flush(channel, buffer);
+		} finally {
+			channel.close();
+			fos.close();
+		}
+
+		Logs.d(TAG, "# Exported "+exported+" rows to "+file.getName());
+		return exported;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void writeHeader(ByteBuffer buffer, int format) {
+		if(format == FORMAT_BINARY) {
+			buffer.put(BINARY_MAGIC);
+			buffer.put((byte) mColumns.length);
+			for(String column : mColumns) {
+				buffer.put((byte) column.length());
+				putAscii(buffer, column);
+			}
+		} else {
+			for(int i=0; i<mColumns.length; i++) {
+				if(i > 0)
+					buffer.put((byte) ',');
+				putAscii(buffer, mColumns[i]);
+			}
+			buffer.put((byte) '\n');
+		}
+	}
+
+	private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private static void putAscii(ByteBuffer buffer, String s) {
+		for(int i=0; i<s.length(); i++)
+			buffer.put((byte) s.charAt(i));
+	}
+
+	/**
+	 * Write decimal digits without making a String
+	 */
+	private static void putDecimal(ByteBuffer buffer, long value) {
+		if(value == Long.MIN_VALUE) {
+			putAscii(buffer, Long.toString(value));
+			return;
+		}
+		if(value < 0) {
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		int start = buffer.position();
+		do {
+			buffer.put((byte) ('0' + (value % 10)));
+			value /= 10;
+		} while(value > 0);
+		// Digits are reversed
+		int end = buffer.position() - 1;
+		while(start < end) {
+			byte tmp = buffer.get(start);
+			buffer.put(start++, buffer.get(end));
+			buffer.put(end--, tmp);
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void putVarint(ByteBuffer buffer, long value) {
+		while((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	public interface OnProgressListener {
+		/**
+		 * Called after each window on export thread
+		 * @param exported		rows written
+		 * @param total			rows in time range when export started
+		 */
+		public void onProgress(long exported, long total);
+	}
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.contents;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.SystemClock;
+
+/**
+ * Group commit writer for activity reports.
+ *
+ * add() copies a row into primitive arrays of the current batch and returns immediately.
+ * A background writer thread inserts whole batches with DBHelper.insertActivityReports(),
+ * one transaction per batch. A batch is committed when it has commitRows rows
+ * or when commitInterval(ms) has passed, whichever comes first.
+ * When the writer can't keep up, at most MAX_PENDING_BATCHES batches wait and
+ * newer rows are dropped.
+ */
+public class ReportWriter {
+
+	private static final String TAG = "ReportWriter";
+
+	public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+	public static final int DEFAULT_COMMIT_ROWS = 100;
+	private static final int MAX_PENDING_BATCHES = 8;
+
+	// System
+	private final Context mContext;
+	private DBHelper mDbHelper = null;
+	private ScheduledExecutorService mExecutor = null;
+
+	// Parameters
+	private final long mCommitInterval;
+	private final int mCommitRows;
+
+	// Batches
+	private Batch mCurrent;
+	private final LinkedList<Batch> mPending = new LinkedList<Batch>();
+	private final LinkedList<Batch> mFreeBatches = new LinkedList<Batch>();
+	private long mLastAddTime = 0;
+
+	// Statistics
+	private long mWrittenCount = 0;
+	private long mDroppedCount = 0;
+	private long mCommitCount = 0;
+
+
+	/**
+	 * @param c					context to open database
+	 * @param commitInterval	maximum time(ms) a row waits before commit
+	 * @param commitRows		rows per transaction
+	 */
+	public ReportWriter(Context c, long commitInterval, int commitRows) {
+		mContext = c;
+		mCommitInterval = (commitInterval < 1 ? DEFAULT_COMMIT_INTERVAL : commitInterval);
+		mCommitRows = (commitRows < 1 ? DEFAULT_COMMIT_ROWS : commitRows);
+		mCurrent = new Batch(mCommitRows);
+	}
+
+	public ReportWriter(Context c) {
+		this(c, DEFAULT_COMMIT_INTERVAL, DEFAULT_COMMIT_ROWS);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	public synchronized void start() {
+		if(mExecutor != null)
+			return;
+		mExecutor = Executors.newSingleThreadScheduledExecutor();
+		mExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				commit(true);
+			}
+		}, mCommitInterval, mCommitInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Commit remaining rows and stop writer thread.
+	 * Caller waits up to twice commitInterval for a running commit. After that
+	 * remaining rows are committed and the database is closed by another thread.
+	 */
+	public void stop() {
+		final ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = mExecutor;
+			mExecutor = null;
+		}
+		if(executor == null)
+			return;
+		executor.shutdown();
+		boolean isTerminated = false;
+		try {
+			isTerminated = executor.awaitTermination(mCommitInterval * 2, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(isTerminated) {
+			finish();
+			return;
+		}
+
+		// Writer thread is still inserting. Finish after it ends, without blocking caller.
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				finish();
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * Add a row. Returns immediately.
+	 * @param type			report type
+	 * @param time			time of the report
+	 * @param year, month, day, hour		date of the report
+	 * @param dataArray		data1 ~ data5
+	 * @param subData		arg2. Can be null.
+	 * @return	boolean		false if row is dropped
+	 */
+	public boolean add(int type, long time, int year, int month, int day, int hour, int[] dataArray, String subData) {
+		if(time < 1 || dataArray == null || dataArray.length < DBHelper.REPORT_DATA_COUNT)
+			return false;
+
+		boolean isFull = false;
+		synchronized (this) {
+			if(mCurrent == null) {
+				// Writer couldn't keep up
+				mDroppedCount++;
+				return false;
+			}
+			mCurrent.add(type, time, year, month, day, hour, dataArray, subData);
+			mLastAddTime = SystemClock.elapsedRealtime();
+			if(mCurrent.mCount >= mCommitRows) {
+				mPending.addLast(mCurrent);
+				mCurrent = (mPending.size() < MAX_PENDING_BATCHES ? obtainBatch() : null);
+				isFull = true;
+			}
+		}
+		if(isFull)
+			scheduleCommit();
+		return true;
+	}
+
+	/**
+	 * Returns true if no row is waiting and nothing was added for idleTime(ms)
+	 */
+	public synchronized boolean isIdle(long idleTime) {
+		return mPending.isEmpty() && (mCurrent == null || mCurrent.mCount == 0)
+				&& SystemClock.elapsedRealtime() - mLastAddTime >= idleTime;
+	}
+
+	public synchronized long getWrittenCount() {
+		return mWrittenCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Returns number of transactions
+	 */
+	public synchronized long getCommitCount() {
+		return mCommitCount;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private synchronized void scheduleCommit() {
+		if(mExecutor == null)
+			return;
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					commit(false);
+				}
+			});
+		} catch(RejectedExecutionException e) {}
+	}
+
+	/**
+	 * Write pending batches. Runs on writer thread.
+	 * @param includeCurrent		also write the batch which is not full yet
+	 */
+	private void commit(boolean includeCurrent) {
+		while(true) {
+			Batch batch;
+			synchronized (this) {
+				if(includeCurrent && mCurrent != null && mCurrent.mCount > 0) {
+					mPending.addLast(mCurrent);
+					mCurrent = obtainBatch();
+				}
+				includeCurrent = false;
+				if(mPending.isEmpty())
+					return;
+				batch = mPending.removeFirst();
+				if(mCurrent == null)
+					mCurrent = obtainBatch();
+				if(!openDatabase()) {
+					mDroppedCount += batch.mCount;
+					recycleBatch(batch);
+					continue;
+				}
+			}
+
+			// Insert without holding the lock, so add() is never blocked by disk I/O
+			int written = 0;
+			try {
+				written = mDbHelper.insertActivityReports(batch.mTypes, batch.mTimes, batch.mDates,
+						batch.mData, batch.mSubData, batch.mCount);
+			} catch(SQLException e) {
+				Logs.d(TAG, "# Cannot write reports: "+e.getMessage());
+			}
+
+			synchronized (this) {
+				mWrittenCount += written;
+				mDroppedCount += batch.mCount - written;
+				mCommitCount++;
+				recycleBatch(batch);
+			}
+		}
+	}
+
+	/**
+	 * Commit remaining rows and close database. Called after writer thread terminated.
+	 */
+	private void finish() {
+		synchronized (this) {
+			// Restarted meanwhile. New writer thread commits the rows.
+			if(mExecutor != null)
+				return;
+		}
+		commit(true);
+		synchronized (this) {
+			if(mExecutor == null && mDbHelper != null) {
+				mDbHelper.release();
+				mDbHelper = null;
+			}
+		}
+	}
+
+	private boolean openDatabase() {
+		if(mDbHelper != null)
+			return true;
+		if(mContext == null)
+			return false;
+		try {
+			mDbHelper = DBHelper.acquire(mContext);
+		} catch(SQLException e) {
+			Logs.d(TAG, "# Cannot open database: "+e.getMessage());
+			mDbHelper = null;
+		}
+		return mDbHelper != null;
+	}
+
+	private Batch obtainBatch() {
+		if(!mFreeBatches.isEmpty())
+			return mFreeBatches.removeFirst();
+		return new Batch(mCommitRows);
+	}
+
+	private void recycleBatch(Batch batch) {
+		batch.clear();
+		if(mFreeBatches.size() < 2)
+			mFreeBatches.addLast(batch);
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * Rows stored in primitive arrays
+	 */
+	private static class Batch {
+		final int[] mTypes;
+		final long[] mTimes;
+		final int[] mDates;			// year, month, day, hour
+		final int[] mData;			// data1 ~ data5
+		final String[] mSubData;
+		int mCount = 0;
+
+		Batch(int capacity) {
+			mTypes = new int[capacity];
+			mTimes = new long[capacity];
+			mDates = new int[capacity * 4];
+			mData = new int[capacity * DBHelper.REPORT_DATA_COUNT];
+			mSubData = new String[capacity];
+		}
+
+		void add(int type, long time, int year, int month, int day, int hour, int[] dataArray, String subData) {
+			int i = mCount++;
+			mTypes[i] = type;
+			mTimes[i] = time;
+			mDates[i*4] = year;
+			mDates[i*4 + 1] = month;
+			mDates[i*4 + 2] = day;
+			mDates[i*4 + 3] = hour;
+			System.arraycopy(dataArray, 0, mData, i * DBHelper.REPORT_DATA_COUNT, DBHelper.REPORT_DATA_COUNT);
+			mSubData[i] = subData;
+		}
+
+		void clear() {
+			for(int i=0; i<mCount; i++)
+				mSubData[i] = null;
+			mCount = 0;
+		}
+	}
+
+}
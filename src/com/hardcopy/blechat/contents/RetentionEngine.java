@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.contents;
+
+import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.SystemClock;
+
+/**
+ * Limits growth of accel data.
+ *
+ * Raw rows are kept for the raw retention window. Older rows are already downsampled
+ * into hour, day and month rollups (DBHelper keeps them in the same transaction as insert),
+ * so they are simply deleted. Hour rollups are kept for the hour retention window,
+ * day and month rollups are kept forever.
+ * Rows are deleted in small chunks, one short transaction each, with a pause between chunks.
+ * Freed pages are returned to the file system with incremental vacuum when the database
+ * was created with it. Older database is never vacuumed here; it reuses the free pages.
+ * A pass runs only when ingest is idle (nothing received through notifyIngest() and
+ * no report written for IDLE_TIME) and stops as soon as it gets busy.
+ */
+public class RetentionEngine {
+
+	private static final String TAG = "RetentionEngine";
+
+	public static final long DEFAULT_RAW_RETENTION = 7L*24*60*60*1000;		// 7 days
+	public static final long DEFAULT_HOUR_RETENTION = 90L*24*60*60*1000;		// 90 days
+	public static final long DEFAULT_CHECK_INTERVAL = 10*60*1000;
+
+	private static final long IDLE_TIME = 30*1000;			// No insert for this time means idle
+	private static final long MAX_PASS_TIME = 2*1000;		// Time budget of a pass
+	private static final long CHUNK_PAUSE = 50;				// Let other DB users run
+	private static final int CHUNK_ROWS = 500;
+	private static final int VACUUM_PAGES = 256;
+
+	// System
+	private final Context mContext;
+	private final ReportWriter mWriter;
+	private DBHelper mDbHelper = null;
+	private ScheduledExecutorService mExecutor = null;
+	private volatile long mLastIngestTime = 0;
+
+	// Parameters
+	private long mRawRetention = DEFAULT_RAW_RETENTION;
+	private long mHourRetention = DEFAULT_HOUR_RETENTION;
+
+	// Statistics
+	private long mDeletedRows = 0;
+	private long mPassCount = 0;
+
+
+	/**
+	 * @param c				context to open database
+	 * @param writer		writer which inserts reports. Used to detect idle time. Can be null.
+	 */
+	public RetentionEngine(Context c, ReportWriter writer) {
+		mContext = c;
+		mWriter = writer;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * @param rawRetention		keep raw rows for this time(ms)
+	 * @param hourRetention		keep hour rollups for this time(ms)
+	 */
+	public synchronized void setRetention(long rawRetention, long hourRetention) {
+		if(rawRetention > 0)
+			mRawRetention = rawRetention;
+		if(hourRetention > 0)
+			mHourRetention = hourRetention;
+	}
+
+	public synchronized void start() {
+		if(mExecutor != null)
+			return;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		mExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				runPass();
+			}
+		}, DEFAULT_CHECK_INTERVAL, DEFAULT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop retention thread. Database is closed after a running pass ends.
+	 * Caller waits up to MAX_PASS_TIME. After that the database is closed by another thread.
+	 */
+	public void stop() {
+		final ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = mExecutor;
+			mExecutor = null;
+		}
+		if(executor == null)
+			return;
+		executor.shutdownNow();
+		boolean isTerminated = false;
+		try {
+			isTerminated = executor.awaitTermination(MAX_PASS_TIME, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(isTerminated) {
+			closeDatabase();
+			return;
+		}
+
+		// A chunk is still being deleted. Close after it ends, without blocking caller.
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				closeDatabase();
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * Tell the engine that data is being received. Passes wait until nothing is
+	 * received for IDLE_TIME. Cheap enough to call for every notification.
+	 */
+	public void notifyIngest() {
+		mLastIngestTime = SystemClock.elapsedRealtime();
+	}
+
+	public synchronized long getDeletedRows() {
+		return mDeletedRows;
+	}
+
+	public synchronized long getPassCount() {
+		return mPassCount;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private boolean isIdle() {
+		if(SystemClock.elapsedRealtime() - mLastIngestTime < IDLE_TIME)
+			return false;
+		return mWriter == null || mWriter.isIdle(IDLE_TIME);
+	}
+
+	private synchronized void closeDatabase() {
+		// Restarted meanwhile. New passes use the database.
+		if(mExecutor != null)
+			return;
+		if(mDbHelper != null) {
+			mDbHelper.release();
+			mDbHelper = null;
+		}
+	}
+
+	/**
+	 * One retention pass. Runs on retention thread.
+	 */
+	private void runPass() {
+		if(!isIdle() || !openDatabase())
+			return;
+
+		long rawRetention, hourRetention;
+		synchronized (this) {
+			rawRetention = mRawRetention;
+			hourRetention = mHourRetention;
+			mPassCount++;
+		}
+		long deadline = SystemClock.elapsedRealtime() + MAX_PASS_TIME;
+		long now = System.currentTimeMillis();
+
+		try {
+			// Raw rows
+			int deleted = deleteInChunks(-1, now - rawRetention, deadline);
+
+			// Hour rollups
+			if(deleted >= 0) {
+				int result = deleteInChunks(DBHelper.ROLLUP_HOUR, now - hourRetention, deadline);
+				deleted = (result < 0 ? -1 : deleted + result);
+			}
+
+			// Return free pages. Old database without incremental vacuum reuses them for later inserts.
+			if(deleted != 0 && isIdle() && mDbHelper.isIncrementalVacuumEnabled()
+					&& mDbHelper.getFreePageCount() > 0) {
+				mDbHelper.incrementalVacuum(VACUUM_PAGES);
+			}
+		} catch(SQLException e) {
+			Logs.d(TAG, "# Retention pass failed: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Delete rows older than the time until done, busy or out of time.
+	 * @param level			-1 for raw rows, or rollup level
+	 * @return	int			deleted rows, or -1 if stopped before done
+	 */
+	private int deleteInChunks(int level, long before, long deadline) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(before);
+		int total = 0;
+
+		while(true) {
+			int deleted;
+			if(level < 0)
+				deleted = mDbHelper.deleteReportsBefore(before, CHUNK_ROWS);
+			else
+				deleted = mDbHelper.deleteRollupsBefore(level, cal.get(Calendar.YEAR),
+						cal.get(Calendar.MONTH), cal.get(Calendar.DAY_OF_MONTH), CHUNK_ROWS);
+			total += deleted;
+			synchronized (this) {
+				mDeletedRows += deleted;
+			}
+			if(deleted < CHUNK_ROWS)
+				break;
+
+			if(SystemClock.elapsedRealtime() > deadline || !isIdle())
+				return -1;		// Continue at next pass
+			try {
+				Thread.sleep(CHUNK_PAUSE);
+			} catch (InterruptedException e) {
+				return -1;
+			}
+		}
+
+		if(total > 0)
+			Logs.d(TAG, "- Retention : level="+level+", deleted="+total);
+		return total;
+	}
+
+	private boolean openDatabase() {
+		if(mDbHelper != null)
+			return true;
+		if(mContext == null)
+			return false;
+		try {
+			mDbHelper = DBHelper.acquire(mContext);
+		} catch(SQLException e) {
+			Logs.d(TAG, "# Cannot open database: "+e.getMessage());
+			mDbHelper = null;
+		}
+		return mDbHelper != null;
+	}
+
+}
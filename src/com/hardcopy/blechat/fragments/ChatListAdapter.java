@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.fragments;
+
+import com.hardcopy.blechat.R;
+import com.hardcopy.blechat.contents.DBHelper;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Chat lines in a fixed-capacity ring buffer.
+ *
+ * When the buffer is full, the oldest line is dropped and its record is reused for the new line.
+ * Each line has a maximum length, so memory is bounded by capacity * MAX_LINE_LENGTH
+ * however long the session is. ListView recycles row views, so only visible lines are rendered.
+ * Methods must be called on UI thread. Call notifyDataSetChanged() after changes.
+ */
+public class ChatListAdapter extends BaseAdapter {
+
+	public static final int DEFAULT_CAPACITY = 1000;
+	public static final long NEW_LINE_INTERVAL = 1000;		// Received chunks within this time make one line
+	public static final int MAX_LINE_LENGTH = 1024;
+
+	private static final String PREFIX_SENT = "Send: ";
+	private static final String PREFIX_RECEIVED = "Rcv: ";
+
+	private final LayoutInflater mInflater;
+	private final ChatLine[] mLines;
+	private int mHead = 0;		// Index of the oldest line
+	private int mSize = 0;
+
+
+	public ChatListAdapter(Context c, int capacity) {
+		mInflater = (LayoutInflater) c.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		mLines = new ChatLine[capacity < 1 ? DEFAULT_CAPACITY : capacity];
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Add a message at the end. Received chunks within NEW_LINE_INTERVAL are joined to the last line.
+	 * @param direction		DBHelper.CHAT_RECEIVED or DBHelper.CHAT_SENT
+	 * @param message		message text
+	 * @param time			time of message
+	 */
+	public void addMessage(int direction, CharSequence message, long time) {
+		if(message == null || message.length() < 1)
+			return;
+
+		if(direction == DBHelper.CHAT_RECEIVED && mSize > 0) {
+			ChatLine last = getLine(mSize - 1);
+			if(last.mDirection == DBHelper.CHAT_RECEIVED && time - last.mTime <= NEW_LINE_INTERVAL
+					&& last.mText.length() + message.length() <= MAX_LINE_LENGTH) {
+				last.mText.append(message);
+				last.mTime = time;
+				return;
+			}
+		}
+
+		int slot;
+		if(mSize < mLines.length) {
+			slot = (mHead + mSize) % mLines.length;
+			mSize++;
+		} else {
+			// Drop the oldest line
+			slot = mHead;
+			mHead = (mHead + 1) % mLines.length;
+		}
+		setLine(slot, direction, message, time);
+	}
+
+	/**
+	 * Add an older message at the beginning. Does nothing when the buffer is full,
+	 * because newer lines are never dropped for older ones.
+	 * @return	boolean		true if added
+	 */
+	public boolean addOlderMessage(int direction, CharSequence message, long time) {
+		if(mSize >= mLines.length || message == null)
+			return false;
+		mHead = (mHead - 1 + mLines.length) % mLines.length;
+		mSize++;
+		setLine(mHead, direction, message, time);
+		return true;
+	}
+
+	public boolean isFull() {
+		return mSize >= mLines.length;
+	}
+
+	@Override
+	public int getCount() {
+		return mSize;
+	}
+
+	@Override
+	public Object getItem(int position) {
+		return getLine(position).mText;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) convertView;
+		if(view == null)
+			view = (TextView) mInflater.inflate(R.layout.list_chat_item, parent, false);
+		view.setText(getLine(position).mText);
+		return view;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private ChatLine getLine(int position) {
+		return mLines[(mHead + position) % mLines.length];
+	}
+
+	private void setLine(int slot, int direction, CharSequence message, long time) {
+		ChatLine line = mLines[slot];
+		if(line == null) {
+			line = new ChatLine();
+			mLines[slot] = line;
+		}
+		line.mDirection = direction;
+		line.mTime = time;
+		line.mText.setLength(0);
+		line.mText.append(direction == DBHelper.CHAT_SENT ? PREFIX_SENT : PREFIX_RECEIVED);
+		int length = Math.min(message.length(), MAX_LINE_LENGTH);
+		line.mText.append(message, 0, length);
+		// Don't keep a huge buffer made by a very long message
+		if(line.mText.capacity() > MAX_LINE_LENGTH * 2)
+			line.mText.trimToSize();
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	private static class ChatLine {
+		int mDirection;
+		long mTime;
+		final StringBuilder mText = new StringBuilder();
+	}
+
+}
@@ -16,22 +16,28 @@
 
 package com.hardcopy.blechat.fragments;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
 import android.support.v4.app.Fragment;
-import android.text.Editable;
-import android.text.method.ScrollingMovementMethod;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import com.hardcopy.blechat.R;
+import com.hardcopy.blechat.contents.ChatHistory;
+import com.hardcopy.blechat.contents.DBHelper;
 
 public class ExampleFragment extends Fragment implements View.OnClickListener {
 
@@ -39,24 +45,40 @@ public class ExampleFragment extends Fragment implements View.OnClickListener {
 	private IFragmentListener mFragmentListener = null;
 	private Handler mActivityHandler = null;
 	
-	TextView mTextChat;
+	ListView mListChat;
 	EditText mEditChat;
 	Button mBtnSend;
+	
+	// Chat lines. Kept while view is made again.
+	private final ChatListAdapter mChatAdapter;
+	
+	// Lines waiting for next frame. No frame comes while screen is off, so only the lines
+	// the chat list can keep are kept here.
+	private static final int MAX_PENDING_LINES = ChatListAdapter.DEFAULT_CAPACITY;
+	private ArrayDeque<ChatHistory.Entry> mPendingLines = new ArrayDeque<ChatHistory.Entry>();
+	private boolean mIsFrameScheduled = false;
+	
+	// Chat history
+	private long mOldestHistoryId = Long.MAX_VALUE;
+	private boolean mHasMoreHistory = true;
+	private boolean mIsLoadingHistory = false;
 
 	public ExampleFragment(Context c, IFragmentListener l, Handler h) {
 		mContext = c;
 		mFragmentListener = l;
 		mActivityHandler = h;
+		mChatAdapter = new ChatListAdapter(c, ChatListAdapter.DEFAULT_CAPACITY);
 	}
 	
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
 		View rootView = inflater.inflate(R.layout.fragment_main_dummy, container, false);
 		
-		mTextChat = (TextView) rootView.findViewById(R.id.text_chat);
-		mTextChat.setMaxLines(1000);
-		mTextChat.setVerticalScrollBarEnabled(true);
-		mTextChat.setMovementMethod(new ScrollingMovementMethod());
+		mListChat = (ListView) rootView.findViewById(R.id.list_chat);
+		mListChat.setAdapter(mChatAdapter);
+		mListChat.setOnScrollListener(mChatScrollListener);
+		if(mChatAdapter.getCount() > 0)
+			mListChat.setSelection(mChatAdapter.getCount() - 1);
 		
 		mEditChat = (EditText) rootView.findViewById(R.id.edit_chat);
 		mEditChat.setOnEditorActionListener(mWriteListener);
@@ -64,9 +86,19 @@ public class ExampleFragment extends Fragment implements View.OnClickListener {
 		mBtnSend = (Button) rootView.findViewById(R.id.button_send);
 		mBtnSend.setOnClickListener(this);
 		
+		// Load latest messages from history at first
+		if(mOldestHistoryId == Long.MAX_VALUE)
+			loadHistory();
+		
 		return rootView;
 	}
 	
+	@Override
+	public void onDestroyView() {
+		super.onDestroyView();
+		mListChat = null;
+	}
+	
 	@Override
 	public void onClick(View v) {
 		switch(v.getId()) {
@@ -93,6 +125,104 @@ public class ExampleFragment extends Fragment implements View.OnClickListener {
         }
     };
 	
+    // Load older messages when user scrolls to the top of chat list
+    private AbsListView.OnScrollListener mChatScrollListener = new AbsListView.OnScrollListener() {
+    	@Override
+    	public void onScrollStateChanged(AbsListView view, int scrollState) {
+    		if(scrollState == SCROLL_STATE_IDLE && view.getFirstVisiblePosition() == 0)
+    			loadHistory();
+    	}
+    	
+    	@Override
+    	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {}
+    };
+    
+    // Apply pending lines once per frame
+    private Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+    	@Override
+    	public void doFrame(long frameTimeNanos) {
+    		mIsFrameScheduled = false;
+    		if(mPendingLines.isEmpty())
+    			return;
+    		
+    		boolean hasSent = false;
+    		ChatHistory.Entry line;
+    		while((line = mPendingLines.pollFirst()) != null) {
+    			mChatAdapter.addMessage(line.mDirection, line.mMessage, line.mTime);
+    			if(line.mDirection == DBHelper.CHAT_SENT)
+    				hasSent = true;
+    		}
+    		mChatAdapter.notifyDataSetChanged();
+    		
+    		// Transcript mode follows new lines only at the bottom. Always show what user sent.
+    		if(hasSent && mListChat != null)
+    			mListChat.setSelection(mChatAdapter.getCount() - 1);
+    	}
+    };
+    
+    // Queue a line for next frame. Must be called on UI thread.
+    private void postLine(int direction, String message) {
+    	// Oldest line would be pushed out of the chat list anyway
+    	if(mPendingLines.size() >= MAX_PENDING_LINES)
+    		mPendingLines.pollFirst();
+    	mPendingLines.addLast(new ChatHistory.Entry(0, System.currentTimeMillis(), direction, message));
+    	if(!mIsFrameScheduled) {
+    		mIsFrameScheduled = true;
+    		Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    	}
+    }
+    
+    // Load a page of history older than the messages on screen
+    private void loadHistory() {
+    	if(mIsLoadingHistory || !mHasMoreHistory)
+    		return;
+    	ChatHistory history = ChatHistory.getInstance(mContext);
+    	if(history == null)
+    		return;
+    	
+    	mIsLoadingHistory = true;
+    	history.loadMessages(mOldestHistoryId, ChatHistory.DEFAULT_PAGE_SIZE, new ChatHistory.OnLoadListener() {
+    		@Override
+    		public void onLoaded(ArrayList<ChatHistory.Entry> entries, boolean hasMore) {
+    			mIsLoadingHistory = false;
+    			mHasMoreHistory = hasMore;
+    			if(entries.isEmpty())
+    				return;
+    			
+    			boolean isLatestPage = (mOldestHistoryId == Long.MAX_VALUE);
+    			int firstPosition = 0;
+    			int firstTop = 0;
+    			if(mListChat != null && mListChat.getChildCount() > 0) {
+    				firstPosition = mListChat.getFirstVisiblePosition();
+    				firstTop = mListChat.getChildAt(0).getTop();
+    			}
+    			
+    			// Prepend from the newest. Stop when ring buffer is full.
+    			int added = 0;
+    			for(int i=entries.size()-1; i>=0; i--) {
+    				ChatHistory.Entry entry = entries.get(i);
+    				if(!mChatAdapter.addOlderMessage(entry.mDirection, entry.mMessage, entry.mTime)) {
+    					mHasMoreHistory = false;
+    					break;
+    				}
+    				mOldestHistoryId = entry.mId;
+    				added++;
+    			}
+    			if(added == 0)
+    				return;
+    			mChatAdapter.notifyDataSetChanged();
+    			
+    			// Show the latest message, or keep the current scroll position
+    			if(mListChat != null) {
+    				if(isLatestPage)
+    					mListChat.setSelection(mChatAdapter.getCount() - 1);
+    				else
+    					mListChat.setSelectionFromTop(firstPosition + added, firstTop);
+    			}
+    		}
+    	});
+    }
+    
     // Sends user message to remote
     private void sendMessage(String message) {
     	if(message == null || message.length() < 1)
@@ -102,35 +232,15 @@ public class ExampleFragment extends Fragment implements View.OnClickListener {
     		mFragmentListener.OnFragmentCallback(IFragmentListener.CALLBACK_SEND_MESSAGE, 0, 0, message, null,null);
     	else
     		return;
-    	// show on text view
-    	if(mTextChat != null) {
-    		mTextChat.append("\nSend: ");
-    		mTextChat.append(message);
-        	int scrollamout = mTextChat.getLayout().getLineTop(mTextChat.getLineCount()) - mTextChat.getHeight();
-        	if (scrollamout > mTextChat.getHeight())
-        		mTextChat.scrollTo(0, scrollamout);
-    	}
+    	// show on chat list
+    	postLine(DBHelper.CHAT_SENT, message);
     	mEditChat.setText("");
     }
     
-    private static final int NEW_LINE_INTERVAL = 1000;
-    private long mLastReceivedTime = 0L;
-    
-    // Show messages from remote
+    // Show messages from remote. Lines are applied at next frame.
     public void showMessage(String message) {
-    	if(message != null && message.length() > 0) {
-    		long current = System.currentTimeMillis();
-    		
-    		if(current - mLastReceivedTime > NEW_LINE_INTERVAL) {
-    			mTextChat.append("\nRcv: ");
-    		}
-    		mTextChat.append(message);
-        	int scrollamout = mTextChat.getLayout().getLineTop(mTextChat.getLineCount()) - mTextChat.getHeight();
-        	if (scrollamout > mTextChat.getHeight())
-        		mTextChat.scrollTo(0, scrollamout);
-        	
-        	mLastReceivedTime = current;
-    	}
+    	if(message != null && message.length() > 0)
+    		postLine(DBHelper.CHAT_RECEIVED, message);
     }
     
 }
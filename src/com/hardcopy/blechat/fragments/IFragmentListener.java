@@ -19,6 +19,7 @@ package com.hardcopy.blechat.fragments;
 public interface IFragmentListener {
 	public static final int CALLBACK_RUN_IN_BACKGROUND = 1;
 	public static final int CALLBACK_SEND_MESSAGE = 2;
+	public static final int CALLBACK_THINGSPEAK_CHANNEL = 3;
 	
 	public void OnFragmentCallback(int msgType, int arg0, int arg1, String arg2, String arg3, Object arg4);
 }
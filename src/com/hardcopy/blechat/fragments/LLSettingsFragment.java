@@ -41,6 +41,7 @@ public class LLSettingsFragment extends Fragment {
 	private IFragmentListener mFragmentListener = null;
 	
 	private CheckBox mCheckBackground;
+	private EditText mEditChannel;
 	private TextView mTextIot;
 	
 
@@ -67,6 +68,22 @@ public class LLSettingsFragment extends Fragment {
 			}
 		});
 		
+		// ThingSpeak channel ID for bulk update
+		mEditChannel = (EditText) rootView.findViewById(R.id.edit_thingspeak_channel);
+		mEditChannel.setText(AppSettings.getThingSpeakChannel());
+		mEditChannel.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {}
+			@Override
+			public void afterTextChanged(Editable s) {
+				String channel = s.toString().trim();
+				AppSettings.setSettingsValue(AppSettings.SETTINGS_THINGSPEAK_CHANNEL, false, 0, channel);
+				mFragmentListener.OnFragmentCallback(IFragmentListener.CALLBACK_THINGSPEAK_CHANNEL, 0, 0, channel, null, null);
+			}
+		});
+		
 		mTextIot = (TextView) rootView.findViewById(R.id.text_iot_guide);
 		mTextIot.append("\n\nthingspeak:key=xxx&field1=xxx[*]\n\n-> HTTP request: http://184.106.153.149/update?key=xxx&field1=xxx");
 		
@@ -48,11 +48,17 @@ public class HttpAsyncTask extends AsyncTask<Void, Integer, String> implements H
 	}
 	
 
+	/**
+	 * Returns request URL. Used by HttpDispatcher to limit requests per host.
+	 */
+	public String getURL() {
+		return mURL;
+	}
+	
 	protected String doInBackground(Void... unused) 
 	{
 		Logs.d(tag, "###### HttpAsyncTask :: Starting HTTP request task ");
 		String resultString = null;
-		HttpRequester httpRequester = new HttpRequester();
 		
 		if(mListener==null || mURL==null) { 
 			Logs.d(tag, "###### Error!!! : mListener==null or mURL==null ");
@@ -93,12 +99,15 @@ public class HttpAsyncTask extends AsyncTask<Void, Integer, String> implements H
 		
 		// Request
 		try {
-			resultString = httpRequester.request(url, encType, reqType, null);
+			HttpResult result = HttpEngine.getInstance().request(url, reqType,
+					"application/x-www-form-urlencoded", null, false, encType, null);
+			resultString = result.getBody();
+			Logs.d(tag, "###### Connect = "+result.getConnectTime()+"ms, transfer = "+result.getTransferTime()+"ms");
 			// publishProgress(int);
 		} catch (IOException e) { 
 			e.printStackTrace();
 			mResultStatus = MSG_HTTP_RESULT_CODE_ERROR_REQUEST_EXCEPTION;
-			Logs.d(tag, "###### Error!!! : HttpRequester makes IOException ");
+			Logs.d(tag, "###### Error!!! : HttpEngine makes IOException ");
 			return "";
 		}
 
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.os.AsyncTask;
+
+/**
+ * Dispatcher for HttpAsyncTask and HttpFileAsyncTask.
+ *
+ * AsyncTask.execute() runs every task on one serial executor, so a slow request blocks
+ * all the others. Tasks enqueued here run on a dedicated worker pool with limited
+ * concurrency per host. Waiting tasks are kept in a bounded queue and
+ * the overflow policy decides what happens when the queue is full.
+ *
+ * enqueue() must be called on UI thread (AsyncTask requirement).
+ * The service doesn't create one: ThingSpeak updates go through ThingSpeakUploader,
+ * which has its own thread. Create a dispatcher where HTTP tasks are started.
+ */
+public class HttpDispatcher {
+
+	private static final String TAG = "HttpDispatcher";
+
+	// Overflow policy
+	public static final int OVERFLOW_REJECT = 1;		// Reject new task
+	public static final int OVERFLOW_DROP_OLDEST = 2;	// Cancel oldest waiting task
+	public static final int OVERFLOW_COALESCE = 3;		// Replace waiting task which has same URL, reject otherwise
+
+	public static final int DEFAULT_MAX_CONCURRENT = 4;
+	public static final int DEFAULT_MAX_PER_HOST = 2;
+	public static final int DEFAULT_MAX_QUEUE = 32;
+
+	private final int mMaxConcurrent;
+	private final int mMaxPerHost;
+	private final int mMaxQueue;
+	private int mOverflowPolicy;
+
+	private final ExecutorService mWorkers;
+	private final LinkedList<Call> mQueue = new LinkedList<Call>();
+	private final ArrayList<Call> mRunning = new ArrayList<Call>();
+	private final HashMap<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+	private boolean mIsShutdown = false;
+
+	// Statistics
+	private int mMaxQueueDepth = 0;
+	private long mCompletedCount = 0;
+	private long mRejectedCount = 0;
+	private long mDroppedCount = 0;
+	private long mCoalescedCount = 0;
+
+
+	public HttpDispatcher() {
+		this(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_PER_HOST, DEFAULT_MAX_QUEUE, OVERFLOW_DROP_OLDEST);
+	}
+
+	/**
+	 * @param maxConcurrent		maximum running tasks
+	 * @param maxPerHost		maximum running tasks to the same host
+	 * @param maxQueue			maximum waiting tasks
+	 * @param overflowPolicy	OVERFLOW_REJECT, OVERFLOW_DROP_OLDEST or OVERFLOW_COALESCE
+	 */
+	public HttpDispatcher(int maxConcurrent, int maxPerHost, int maxQueue, int overflowPolicy) {
+		mMaxConcurrent = Math.max(1, maxConcurrent);
+		mMaxPerHost = Math.max(1, maxPerHost);
+		mMaxQueue = Math.max(1, maxQueue);
+		mOverflowPolicy = overflowPolicy;
+		mWorkers = Executors.newFixedThreadPool(mMaxConcurrent);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	public synchronized void setOverflowPolicy(int policy) {
+		mOverflowPolicy = policy;
+	}
+
+	/**
+	 * Enqueue HTTP request task
+	 * @return	boolean		false if task is rejected. Rejected task is cancelled.
+	 */
+	public boolean enqueue(HttpAsyncTask task) {
+		return enqueue(task, task.getURL());
+	}
+
+	/**
+	 * Enqueue file download task
+	 * @return	boolean		false if task is rejected. Rejected task is cancelled.
+	 */
+	public boolean enqueue(HttpFileAsyncTask task) {
+		return enqueue(task, task.getURL());
+	}
+
+	/**
+	 * Cancel all waiting and running tasks. Call this when service finishes.
+	 */
+	public void cancelAll() {
+		ArrayList<Call> calls = new ArrayList<Call>();
+		synchronized (this) {
+			calls.addAll(mQueue);
+			calls.addAll(mRunning);
+			mDroppedCount += mQueue.size();
+			mQueue.clear();
+		}
+		for(Call call : calls) {
+			call.mTask.cancel(true);
+		}
+		Logs.d(TAG, "# Cancelled "+calls.size()+" HTTP tasks");
+	}
+
+	/**
+	 * Cancel all tasks and stop worker threads. Dispatcher cannot be used after this.
+	 */
+	public void shutdown() {
+		cancelAll();
+		synchronized (this) {
+			mIsShutdown = true;
+		}
+		mWorkers.shutdownNow();
+	}
+
+	/**
+	 * Returns number of waiting tasks
+	 */
+	public synchronized int getQueueDepth() {
+		return mQueue.size();
+	}
+
+	public synchronized int getMaxQueueDepth() {
+		return mMaxQueueDepth;
+	}
+
+	public synchronized int getRunningCount() {
+		return mRunning.size();
+	}
+
+	public synchronized long getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	public synchronized long getRejectedCount() {
+		return mRejectedCount;
+	}
+
+	/**
+	 * Returns number of waiting tasks cancelled by overflow or cancelAll()
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	public synchronized long getCoalescedCount() {
+		return mCoalescedCount;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private boolean enqueue(AsyncTask<Void, ?, ?> task, String url) {
+		Call call = new Call(getHost(url), url, task);
+		// AsyncTask calls Call.execute() synchronously with its FutureTask
+		task.executeOnExecutor(call);
+		if(!call.mAccepted)
+			task.cancel(false);
+		return call.mAccepted;
+	}
+
+	/**
+	 * Admission control. Returns task to cancel (dropped or replaced) or null.
+	 */
+	private synchronized Call offer(Call call) {
+		Call victim = null;
+		if(mIsShutdown) {
+			mRejectedCount++;
+			return null;
+		}
+
+		if(mOverflowPolicy == OVERFLOW_COALESCE && call.mKey != null) {
+			for(Iterator<Call> it = mQueue.iterator(); it.hasNext(); ) {
+				Call waiting = it.next();
+				if(call.mKey.equals(waiting.mKey)) {
+					it.remove();
+					victim = waiting;
+					mCoalescedCount++;
+					break;
+				}
+			}
+		}
+
+		if(victim == null && mQueue.size() >= mMaxQueue) {
+			if(mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+				victim = mQueue.removeFirst();
+				mDroppedCount++;
+			} else {
+				mRejectedCount++;
+				Logs.d(TAG, "# Queue is full. Reject : "+call.mKey);
+				return null;
+			}
+		}
+
+		call.mAccepted = true;
+		mQueue.addLast(call);
+		if(mQueue.size() > mMaxQueueDepth)
+			mMaxQueueDepth = mQueue.size();
+		promote();
+		return victim;
+	}
+
+	/**
+	 * Start waiting tasks while concurrency limits allow
+	 */
+	private synchronized void promote() {
+		for(Iterator<Call> it = mQueue.iterator(); it.hasNext() && mRunning.size() < mMaxConcurrent; ) {
+			Call call = it.next();
+			Integer count = mRunningPerHost.get(call.mHost);
+			int running = (count == null ? 0 : count.intValue());
+			if(running >= mMaxPerHost)
+				continue;
+
+			it.remove();
+			mRunning.add(call);
+			mRunningPerHost.put(call.mHost, running + 1);
+			mWorkers.execute(call);
+		}
+	}
+
+	private synchronized void finished(Call call) {
+		mRunning.remove(call);
+		Integer count = mRunningPerHost.get(call.mHost);
+		if(count == null || count.intValue() <= 1)
+			mRunningPerHost.remove(call.mHost);
+		else
+			mRunningPerHost.put(call.mHost, count.intValue() - 1);
+		mCompletedCount++;
+		if(!mIsShutdown)
+			promote();
+	}
+
+	private String getHost(String url) {
+		if(url == null)
+			return "";
+		try {
+			return new URL(url).getHost();
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * One enqueued task. Works as the executor of its AsyncTask to capture the FutureTask.
+	 */
+	private class Call implements Executor, Runnable {
+		private final String mHost;
+		private final String mKey;
+		private final AsyncTask<Void, ?, ?> mTask;
+		private Runnable mJob;
+		private boolean mAccepted = false;
+
+		public Call(String host, String key, AsyncTask<Void, ?, ?> task) {
+			mHost = host;
+			mKey = key;
+			mTask = task;
+		}
+
+		@Override
+		public void execute(Runnable job) {
+			mJob = job;
+			Call victim = offer(this);
+			if(victim != null)
+				victim.mTask.cancel(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				mJob.run();
+			} finally {
+				finished(this);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.hardcopy.blechat.utils.Logs;
+
+import android.os.SystemClock;
+
+/**
+ * Shared HTTP engine.
+ *
+ * Connections are never disconnected explicitly. Response bodies (and error bodies)
+ * are always read to the end and closed, so HttpURLConnection returns the socket
+ * to its per-host keep-alive pool and the next request to the same host skips the handshake.
+ * Read buffers are pooled, request and response bodies can be gzipped,
+ * and connect time / transfer time are measured for every request.
+ */
+public class HttpEngine implements HttpInterface {
+
+	private static final String TAG = "HttpEngine";
+
+	public static final int TIMEOUT_VALUE = 5000;
+	public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	private static final String ENCODING_GZIP = "gzip";
+
+	// Instance
+	private static HttpEngine mInstance = null;
+
+	// Pools
+	private final ArrayList<byte[]> mBufferPool = new ArrayList<byte[]>();
+	private final ArrayList<ResponseBuffer> mResponseBufferPool = new ArrayList<ResponseBuffer>();
+
+	// Statistics
+	private long mRequestCount = 0;
+	private long mTotalConnectTime = 0;
+	private long mTotalTransferTime = 0;
+
+
+	private HttpEngine() {
+		// Keep-alive pool of HttpURLConnection
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+	}
+
+	/**
+	 * Single pattern
+	 */
+	public synchronized static HttpEngine getInstance() {
+		if(mInstance == null)
+			mInstance = new HttpEngine();
+		return mInstance;
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Send request and read whole response as string.
+	 * @param url			request URL
+	 * @param method		REQUEST_TYPE_GET_STRING or REQUEST_TYPE_POST_STRING
+	 * @param contentType	content type of body
+	 * @param body			request body (POST only). Can be null.
+	 * @param gzipBody		compress request body with gzip
+	 * @param encType		response encoding. null to detect from header.
+	 * @param cookies		cookie header. Can be null.
+	 * @return	HttpResult	response, connect time and transfer time
+	 * @throws IOException	network error or HTTP error status
+	 */
+	public HttpResult request(URL url, String method, String contentType, byte[] body,
+			boolean gzipBody, String encType, String cookies) throws IOException {
+		long startTime = SystemClock.elapsedRealtime();
+
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setRequestMethod(method);
+		con.setConnectTimeout(TIMEOUT_VALUE);
+		con.setReadTimeout(TIMEOUT_VALUE);
+		con.setDoInput(true);
+		con.setRequestProperty("Accept-Encoding", ENCODING_GZIP);
+		if(contentType != null)
+			con.setRequestProperty("Content-Type", contentType);
+		if(cookies != null && cookies.length() > 0)
+			con.setRequestProperty("cookie", cookies);
+
+		byte[] payload = null;
+		if(REQUEST_TYPE_POST_STRING.equals(method)) {
+			con.setDoOutput(true);
+			payload = (body == null ? new byte[0] : body);
+			if(gzipBody) {
+				payload = gzip(payload);
+				con.setRequestProperty("Content-Encoding", ENCODING_GZIP);
+			}
+			con.setFixedLengthStreamingMode(payload.length);
+		}
+
+		con.connect();
+		long connectTime = SystemClock.elapsedRealtime() - startTime;
+
+		ResponseBuffer response = obtainResponseBuffer();
+		byte[] buf = obtainBuffer();
+		try {
+			if(payload != null) {
+				OutputStream out = con.getOutputStream();
+				out.write(payload);
+				out.close();
+			}
+
+			int responseCode = con.getResponseCode();
+			boolean isError = (responseCode >= 400);
+			InputStream in = (isError ? con.getErrorStream() : con.getInputStream());
+			readFully(in, ENCODING_GZIP.equalsIgnoreCase(con.getContentEncoding()), buf, response);
+			long transferTime = SystemClock.elapsedRealtime() - startTime - connectTime;
+			addStatistics(connectTime, transferTime);
+
+			if(isError) {
+				Logs.d(TAG, "# HTTP error "+responseCode+" : "+url.getHost());
+				throw new IOException("HTTP error " + responseCode);
+			}
+
+			String result = new String(response.getBuffer(), 0, response.size(),
+					getEncodingType(con.getContentType(), encType));
+			return new HttpResult(responseCode, result, con.getHeaderFields(), connectTime, transferTime);
+		} finally {
+			recycleBuffer(buf);
+			recycleResponseBuffer(response);
+		}
+	}
+
+	/**
+	 * Download to file
+	 * @param url		file URL
+	 * @param file		destination
+	 * @return	HttpResult	result without body
+	 * @throws IOException	network error or HTTP error status
+	 */
+	public HttpResult download(URL url, File file) throws IOException {
+		long startTime = SystemClock.elapsedRealtime();
+
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setConnectTimeout(TIMEOUT_VALUE);
+		con.setReadTimeout(TIMEOUT_VALUE);
+		con.connect();
+		long connectTime = SystemClock.elapsedRealtime() - startTime;
+
+		byte[] buf = obtainBuffer();
+		try {
+			int responseCode = con.getResponseCode();
+			if(responseCode >= 400) {
+				// Read error body to keep connection alive
+				ResponseBuffer response = obtainResponseBuffer();
+				readFully(con.getErrorStream(), false, buf, response);
+				recycleResponseBuffer(response);
+				throw new IOException("HTTP error " + responseCode);
+			}
+
+			InputStream in = con.getInputStream();
+			OutputStream out = new FileOutputStream(file);
+			try {
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+
+			long transferTime = SystemClock.elapsedRealtime() - startTime - connectTime;
+			addStatistics(connectTime, transferTime);
+			return new HttpResult(responseCode, null, con.getHeaderFields(), connectTime, transferTime);
+		} finally {
+			recycleBuffer(buf);
+		}
+	}
+
+	public synchronized long getRequestCount() {
+		return mRequestCount;
+	}
+
+	/**
+	 * Average time to get a connection (DNS, TCP and TLS handshake, or reuse)
+	 */
+	public synchronized long getAverageConnectTime() {
+		return (mRequestCount > 0 ? mTotalConnectTime / mRequestCount : 0);
+	}
+
+	/**
+	 * Average time to send request and read response
+	 */
+	public synchronized long getAverageTransferTime() {
+		return (mRequestCount > 0 ? mTotalTransferTime / mRequestCount : 0);
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void readFully(InputStream in, boolean isGzipped, byte[] buf, ResponseBuffer response) throws IOException {
+		if(in == null)
+			return;
+		InputStream stream = (isGzipped ? new GZIPInputStream(in) : in);
+		try {
+			int len;
+			while ((len = stream.read(buf)) > 0) {
+				response.write(buf, 0, len);
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+		GZIPOutputStream gos = new GZIPOutputStream(bos);
+		gos.write(data);
+		gos.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Find encoding type to prevent broken 2-byte character
+	 */
+	private String getEncodingType(String headerType, String encType) {
+		String encodingType = ENCODING_TYPE_EUC_KR;
+		if(encType != null && encType.length() > 0)
+			encodingType = encType;
+		if(headerType != null && headerType.toUpperCase().indexOf(ENCODING_TYPE_UTF_8.toUpperCase()) != -1)
+			encodingType = ENCODING_TYPE_UTF_8;
+		return encodingType;
+	}
+
+	private synchronized void addStatistics(long connectTime, long transferTime) {
+		mRequestCount++;
+		mTotalConnectTime += connectTime;
+		mTotalTransferTime += transferTime;
+	}
+
+	private byte[] obtainBuffer() {
+		synchronized (mBufferPool) {
+			if(!mBufferPool.isEmpty())
+				return mBufferPool.remove(mBufferPool.size() - 1);
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	private void recycleBuffer(byte[] buf) {
+		synchronized (mBufferPool) {
+			if(mBufferPool.size() < MAX_POOLED_BUFFERS)
+				mBufferPool.add(buf);
+		}
+	}
+
+	private ResponseBuffer obtainResponseBuffer() {
+		synchronized (mResponseBufferPool) {
+			if(!mResponseBufferPool.isEmpty())
+				return mResponseBufferPool.remove(mResponseBufferPool.size() - 1);
+		}
+		return new ResponseBuffer();
+	}
+
+	private void recycleResponseBuffer(ResponseBuffer response) {
+		// Don't keep huge buffers
+		if(response.getBuffer().length > BUFFER_SIZE * 16)
+			return;
+		response.reset();
+		synchronized (mResponseBufferPool) {
+			if(mResponseBufferPool.size() < MAX_POOLED_BUFFERS)
+				mResponseBufferPool.add(response);
+		}
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * Reusable response body buffer. Exposes internal array to decode without copy.
+	 */
+	private static class ResponseBuffer extends ByteArrayOutputStream {
+		ResponseBuffer() {
+			super(BUFFER_SIZE);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+}
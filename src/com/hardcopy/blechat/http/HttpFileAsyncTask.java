@@ -17,10 +17,6 @@
 package com.hardcopy.blechat.http;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -41,8 +37,6 @@ public class HttpFileAsyncTask extends AsyncTask<Void, Integer, String> implemen
 	private String mFileName = null;
 	private int mResultStatus = MSG_HTTP_RESULT_CODE_OK;
 	
-	private static final int CONNECTION_TIMEOUT = 5000;
-	
 	// Context, system
 	private HttpListener mListener;
 	
@@ -58,6 +52,13 @@ public class HttpFileAsyncTask extends AsyncTask<Void, Integer, String> implemen
 	}
 
 	
+	/**
+	 * Returns request URL. Used by HttpDispatcher to limit requests per host.
+	 */
+	public String getURL() {
+		return mURL;
+	}
+	
 	protected String doInBackground(Void... unused) 
 	{
 		if(mListener==null || mID==null || mURL==null || mDir==null || mFileName==null) { 
@@ -82,27 +83,8 @@ public class HttpFileAsyncTask extends AsyncTask<Void, Integer, String> implemen
 		String filePathAndName = new String(mDir+"/"+mFileName);
 
 		try {
-			// Set up connection
-			HttpURLConnection conn= (HttpURLConnection)url.openConnection(); 
-			conn.setConnectTimeout(CONNECTION_TIMEOUT);
-			conn.setReadTimeout(CONNECTION_TIMEOUT);
-			conn.connect(); 
-			
-			// Copy input stream (one is for calculate bitmap size and another is for decode bitmap)
-			InputStream inputStream = conn.getInputStream();
-			
-			// Make file and output stream
-			File file = new File(filePathAndName);
-			OutputStream outStream = new FileOutputStream(file);
-			
-			byte[] buf = new byte[1024];
-			int len = 0;
-			
-			while ((len = inputStream.read(buf)) > 0) {
-				outStream.write(buf, 0, len);
-			}
-			outStream.close();
-			inputStream.close();
+			// Download with shared engine (pooled buffer, keep-alive connection)
+			HttpEngine.getInstance().download(url, new File(filePathAndName));
  			
 			mResultStatus = MSG_HTTP_RESULT_CODE_OK;
  			
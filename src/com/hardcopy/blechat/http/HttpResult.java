@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.http;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a request made by HttpEngine
+ */
+public class HttpResult {
+
+	private final int mResponseCode;
+	private final String mBody;
+	private final Map<String, List<String>> mHeaders;
+	private final long mConnectTime;
+	private final long mTransferTime;
+
+	public HttpResult(int responseCode, String body, Map<String, List<String>> headers,
+			long connectTime, long transferTime) {
+		mResponseCode = responseCode;
+		mBody = body;
+		mHeaders = headers;
+		mConnectTime = connectTime;
+		mTransferTime = transferTime;
+	}
+
+	public int getResponseCode() {
+		return mResponseCode;
+	}
+
+	/**
+	 * Returns decoded response body
+	 */
+	public String getBody() {
+		return mBody;
+	}
+
+	public Map<String, List<String>> getHeaderFields() {
+		return mHeaders;
+	}
+
+	/**
+	 * Milliseconds to get a connection. Almost zero when keep-alive connection is reused.
+	 */
+	public long getConnectTime() {
+		return mConnectTime;
+	}
+
+	/**
+	 * Milliseconds to send request and read response
+	 */
+	public long getTransferTime() {
+		return mTransferTime;
+	}
+
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.http;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.hardcopy.blechat.contents.DBHelper;
+import com.hardcopy.blechat.utils.Logs;
+import com.hardcopy.blechat.utils.TokenBucket;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+
+/**
+ * Buffers ThingSpeak updates and sends them in batches.
+ *
+ * Updates with the same API key arriving within the merge window are merged into one
+ * (later field values win). Merged updates are appended to the upload queue table in a
+ * single transaction, so nothing is lost while network is down or the process is killed.
+ * A single drainer sends queued updates with the bulk update JSON endpoint when the channel ID
+ * of the API key is known (setChannelId() or the channel ID in app settings),
+ * otherwise one by one with the update endpoint.
+ * Entries are deleted only after the server accepted them.
+ * Every request takes a token from the rate limiter, and failures are retried
+ * with exponential backoff and jitter.
+ */
+public class ThingSpeakUploader implements HttpInterface {
+
+	private static final String TAG = "ThingSpeakUploader";
+
+	public static final String DEFAULT_SERVER = "http://184.106.153.149";
+	public static final long DEFAULT_MERGE_WINDOW = 1000;
+	public static final long DEFAULT_FLUSH_INTERVAL = 15*1000;		// ThingSpeak free account limit
+	public static final int MAX_BATCH_SIZE = 960;					// Bulk update limit of ThingSpeak
+	public static final int MAX_STAGED_UPDATES = 960;
+
+	public static final long STOP_TIMEOUT = 1000;		// Wait for a running upload when stopping
+
+	public static final long MIN_BACKOFF = 15*1000;
+	public static final long MAX_BACKOFF = 30*60*1000;
+
+	private static final String PARAM_API_KEY = "api_key";
+	private static final String PARAM_KEY = "key";		// Same as api_key on update endpoint
+
+	// System
+	private final Context mContext;
+	private DBHelper mDbHelper = null;
+	private ScheduledExecutorService mExecutor = null;
+	private final HttpEngine mHttpEngine = HttpEngine.getInstance();
+	private final TokenBucket mRateLimiter;
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.US);
+	private final Random mRandom = new Random();
+
+	// Parameters
+	private final String mServer;
+	private final long mMergeWindow;
+	private final long mFlushInterval;
+	private final HashMap<String, String> mChannelIds = new HashMap<String, String>();
+	private String mDefaultChannelId = null;
+
+	// Updates waiting for merge window
+	private final LinkedList<Update> mStagedUpdates = new LinkedList<Update>();
+	private int mFailureCount = 0;
+
+	// Statistics
+	private long mAcceptedCount = 0;
+	private long mDroppedCount = 0;
+	private long mMergedCount = 0;
+	private long mRequestCount = 0;
+
+
+	/**
+	 * @param c					context to open database
+	 * @param server			server address. Use local stub server address for testing.
+	 * @param mergeWindow		updates within this window(ms) are merged
+	 * @param flushInterval		interval(ms) of sending queued updates. Also used as rate limit.
+	 */
+	public ThingSpeakUploader(Context c, String server, long mergeWindow, long flushInterval) {
+		mContext = c;
+		mServer = (server == null ? DEFAULT_SERVER : server);
+		mMergeWindow = (mergeWindow < 1 ? DEFAULT_MERGE_WINDOW : mergeWindow);
+		mFlushInterval = (flushInterval < 1 ? DEFAULT_FLUSH_INTERVAL : flushInterval);
+		mRateLimiter = new TokenBucket(1, mFlushInterval);
+	}
+
+	public ThingSpeakUploader(Context c) {
+		this(c, DEFAULT_SERVER, DEFAULT_MERGE_WINDOW, DEFAULT_FLUSH_INTERVAL);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	public synchronized void start() {
+		if(mExecutor != null)
+			return;
+		mExecutor = Executors.newSingleThreadScheduledExecutor();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				openDatabase();
+			}
+		});
+		mExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				persistStagedUpdates();
+			}
+		}, mMergeWindow, mMergeWindow, TimeUnit.MILLISECONDS);
+		scheduleDrain(mFlushInterval);
+	}
+
+	/**
+	 * Stop uploader. Staged updates are written to database before stopping.
+	 * An upload already on the network is given STOP_TIMEOUT to finish. If it is still running,
+	 * database is closed by another thread after the uploader thread ends.
+	 */
+	public void stop() {
+		final ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = mExecutor;
+			mExecutor = null;
+		}
+		// Wait without holding the lock. Uploader thread needs it to finish.
+		boolean isTerminated = true;
+		if(executor != null) {
+			executor.shutdownNow();
+			try {
+				isTerminated = executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				isTerminated = false;
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Runs on caller thread
+		persistStagedUpdates();
+		if(isTerminated) {
+			closeDatabase();
+			return;
+		}
+
+		// Upload is still on the network. Close after its result is written, without blocking caller.
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				closeDatabase();
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * Set channel ID of an API key. Updates of the key are sent with bulk update endpoint.
+	 * @param apiKey		write API key
+	 * @param channelId		channel ID
+	 */
+	public synchronized void setChannelId(String apiKey, String channelId) {
+		mChannelIds.put(apiKey, channelId);
+	}
+
+	/**
+	 * Set channel ID used for API keys without setChannelId().
+	 * @param channelId		channel ID, or null to send updates one by one
+	 */
+	public synchronized void setDefaultChannelId(String channelId) {
+		mDefaultChannelId = (channelId == null || channelId.trim().length() < 1 ? null : channelId.trim());
+	}
+
+	/**
+	 * Add an update.
+	 * @param parameters		parameter string of update, ex) key=XXXX&field1=10&field2=20
+	 */
+	public synchronized void addUpdate(String parameters) {
+		Update update = parseParameters(parameters, System.currentTimeMillis());
+		if(update == null) {
+			mDroppedCount++;
+			Logs.d(TAG, "# Update rejected. Needs key (or api_key) and a field: {}", parameters);
+			return;
+		}
+
+		// Merge with the latest update of same key within the window
+		for(Iterator<Update> i = mStagedUpdates.descendingIterator(); i.hasNext(); ) {
+			Update prev = i.next();
+			if(update.mTime - prev.mTime >= mMergeWindow)
+				break;
+			if(prev.mApiKey.equals(update.mApiKey)) {
+				prev.mFields.putAll(update.mFields);
+				mMergedCount++;
+				return;
+			}
+		}
+
+		mStagedUpdates.add(update);
+		if(mStagedUpdates.size() >= MAX_STAGED_UPDATES && mExecutor != null) {
+			// Don't wait for the timer
+			try {
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						persistStagedUpdates();
+					}
+				});
+			} catch(RejectedExecutionException e) {}
+		}
+	}
+
+	public synchronized long getAcceptedCount() {
+		return mAcceptedCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	public synchronized long getMergedCount() {
+		return mMergedCount;
+	}
+
+	public synchronized long getRequestCount() {
+		return mRequestCount;
+	}
+
+	public synchronized int getStagedCount() {
+		return mStagedUpdates.size();
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private synchronized boolean openDatabase() {
+		if(mDbHelper != null)
+			return true;
+		if(mContext == null)
+			return false;
+		try {
+			mDbHelper = DBHelper.acquire(mContext);
+		} catch(SQLException e) {
+			Logs.d(TAG, "# Cannot open upload queue: "+e.getMessage());
+			mDbHelper = null;
+		}
+		return mDbHelper != null;
+	}
+
+	private synchronized void closeDatabase() {
+		// Restarted meanwhile. New uploader thread uses the database.
+		if(mExecutor != null)
+			return;
+		if(mDbHelper != null) {
+			mDbHelper.release();
+			mDbHelper = null;
+		}
+	}
+
+	/**
+	 * Write staged updates to upload queue in one transaction
+	 */
+	private synchronized void persistStagedUpdates() {
+		if(mStagedUpdates.isEmpty() || !openDatabase())
+			return;
+
+		int count = mStagedUpdates.size();
+		long[] times = new long[count];
+		String[] targets = new String[count];
+		String[] payloads = new String[count];
+		int index = 0;
+		for(Update update : mStagedUpdates) {
+			times[index] = update.mTime;
+			targets[index] = update.mApiKey;
+			payloads[index] = update.getParameterString();
+			index++;
+		}
+
+		try {
+			mDbHelper.insertUploads(times, targets, payloads, count);
+			mStagedUpdates.clear();
+		} catch(SQLException e) {
+			// Keep them in memory and try again later
+			Logs.d(TAG, "# Cannot write upload queue: "+e.getMessage());
+		}
+	}
+
+	private synchronized void scheduleDrain(long delay) {
+		if(mExecutor == null)
+			return;
+		try {
+			mExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException e) {}
+	}
+
+	/**
+	 * Send queued updates. Runs on uploader thread.
+	 * Sends as many batches as the rate limiter allows, then schedules next run.
+	 */
+	private void drain() {
+		long nextDelay = mFlushInterval;
+
+		while(true) {
+			synchronized (this) {
+				// Stopped. Don't start another upload.
+				if(mExecutor == null)
+					break;
+			}
+			if(!openDatabase())
+				break;
+
+			long waitTime = mRateLimiter.getWaitTime();
+			if(waitTime > 0) {
+				nextDelay = waitTime;
+				break;
+			}
+
+			// Take oldest updates of the first key
+			ArrayList<Update> batch = new ArrayList<Update>();
+			String apiKey = null;
+			String channelId = null;
+			synchronized (this) {
+				Cursor c = null;
+				try {
+					c = mDbHelper.selectUploads(MAX_BATCH_SIZE);
+					while(c != null && c.moveToNext()) {
+						String target = c.getString(DBHelper.INDEX_UPLOAD_TARGET);
+						if(apiKey == null) {
+							apiKey = target;
+							channelId = mChannelIds.get(apiKey);
+							if(channelId == null)
+								channelId = mDefaultChannelId;
+						} else if(!apiKey.equals(target)) {
+							continue;
+						}
+						Update update = parseParameters(c.getString(DBHelper.INDEX_UPLOAD_PAYLOAD),
+								c.getLong(DBHelper.INDEX_UPLOAD_TIME));
+						if(update == null)
+							update = new Update();		// Broken entry. Send nothing but delete it.
+						update.mId = c.getLong(DBHelper.INDEX_UPLOAD_ID);
+						update.mApiKey = target;
+						batch.add(update);
+						if(channelId == null)
+							break;		// Single update endpoint sends one at a time
+					}
+				} catch(SQLException e) {
+					Logs.d(TAG, "# Cannot read upload queue: "+e.getMessage());
+				} finally {
+					if(c != null)
+						c.close();
+				}
+				if(batch.isEmpty())
+					break;
+			}
+
+			if(!mRateLimiter.tryAcquire())
+				continue;
+			synchronized (this) {
+				mRequestCount++;
+			}
+
+			boolean isAccepted;
+			if(channelId != null)
+				isAccepted = sendBulkUpdate(channelId, apiKey, batch);
+			else
+				isAccepted = (batch.get(0).mFields.isEmpty() || sendUpdate(batch.get(0)));
+
+			synchronized (this) {
+				if(mDbHelper == null) {
+					// Database is closed. Rows are sent again on next start.
+					break;
+				}
+				if(isAccepted) {
+					long[] ids = new long[batch.size()];
+					for(int i=0; i<ids.length; i++) {
+						ids[i] = batch.get(i).mId;
+					}
+					mDbHelper.deleteUploads(ids, ids.length);
+					mAcceptedCount += ids.length;
+					mFailureCount = 0;
+				} else {
+					mFailureCount++;
+					nextDelay = getBackoff();
+					Logs.d(TAG, "# Upload failed. Retry after "+nextDelay+"ms");
+					break;
+				}
+			}
+		}
+
+		synchronized (this) {
+			if(mExecutor == null)
+				return;
+		}
+		scheduleDrain(nextDelay);
+	}
+
+	/**
+	 * Exponential backoff with full jitter
+	 */
+	private long getBackoff() {
+		long backoff = MIN_BACKOFF << Math.min(mFailureCount - 1, 16);
+		if(backoff > MAX_BACKOFF || backoff <= 0)
+			backoff = MAX_BACKOFF;
+		return MIN_BACKOFF + (long)(mRandom.nextDouble() * (backoff - MIN_BACKOFF + 1));
+	}
+
+	private boolean sendBulkUpdate(String channelId, String apiKey, ArrayList<Update> batch) {
+		try {
+			JSONArray updates = new JSONArray();
+			for(Update update : batch) {
+				JSONObject obj = new JSONObject();
+				obj.put("created_at", mDateFormat.format(new Date(update.mTime)));
+				for(Map.Entry<String, String> field : update.mFields.entrySet()) {
+					obj.put(field.getKey(), field.getValue());
+				}
+				updates.put(obj);
+			}
+			JSONObject body = new JSONObject();
+			body.put("write_api_key", apiKey);
+			body.put("updates", updates);
+
+			URL url = new URL(mServer + "/channels/" + channelId + "/bulk_update.json");
+			String result = mHttpEngine.request(url, REQUEST_TYPE_POST_STRING, "application/json",
+					body.toString().getBytes("UTF-8"), false, ENCODING_TYPE_UTF_8, null).getBody();
+			return (result != null && result.indexOf("true") > -1);
+		} catch (JSONException e) {
+			Logs.d(TAG, "# Cannot make bulk update: "+e.getMessage());
+		} catch (IOException e) {
+			Logs.d(TAG, "# Bulk update failed: "+e.getMessage());
+		}
+		return false;
+	}
+
+	private boolean sendUpdate(Update update) {
+		try {
+			URL url = new URL(mServer + "/update?" + update.getParameterString());
+			String result = mHttpEngine.request(url, REQUEST_TYPE_GET_STRING, null,
+					null, false, ENCODING_TYPE_UTF_8, null).getBody();
+			// ThingSpeak returns entry ID, or 0 when the update is rejected
+			return (result != null && result.trim().length() > 0 && !result.trim().equals("0"));
+		} catch (IOException e) {
+			Logs.d(TAG, "# Update failed: "+e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Parse parameter string: key=XXXX&field1=10&field2=20 (or api_key=XXXX)
+	 * @param parameters		parameter string
+	 * @param time				time when the update is made
+	 */
+	private Update parseParameters(String parameters, long time) {
+		if(parameters == null || parameters.length() < 1)
+			return null;
+
+		Update update = new Update();
+		update.mTime = time;
+		try {
+			String[] pairs = parameters.split("&");
+			for(String pair : pairs) {
+				int index = pair.indexOf('=');
+				if(index < 1)
+					continue;
+				String key = pair.substring(0, index).trim();
+				String value = URLDecoder.decode(pair.substring(index + 1), "UTF-8");
+				if(PARAM_API_KEY.equalsIgnoreCase(key) || PARAM_KEY.equalsIgnoreCase(key))
+					update.mApiKey = value;
+				else
+					update.mFields.put(key, value);
+			}
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			// Broken percent encoding
+			return null;
+		}
+
+		if(update.mApiKey == null || update.mFields.isEmpty())
+			return null;
+		return update;
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	private static class Update {
+		long mId;			// ID in upload queue
+		long mTime;
+		String mApiKey;
+		final LinkedHashMap<String, String> mFields = new LinkedHashMap<String, String>();
+		
+		/**
+		 * Make parameter string to store in upload queue
+		 */
+		String getParameterString() {
+			StringBuilder sb = new StringBuilder();
+			try {
+				sb.append(PARAM_API_KEY).append("=").append(URLEncoder.encode(mApiKey, "UTF-8"));
+				for(Map.Entry<String, String> field : mFields.entrySet()) {
+					sb.append("&").append(field.getKey()).append("=").append(URLEncoder.encode(field.getValue(), "UTF-8"));
+				}
+			} catch (UnsupportedEncodingException e) {}
+			return sb.toString();
+		}
+	}
+
+}
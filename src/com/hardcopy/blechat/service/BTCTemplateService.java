@@ -16,12 +16,18 @@
 
 package com.hardcopy.blechat.service;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import com.hardcopy.blechat.R;
 import com.hardcopy.blechat.bluetooth.*;
+import com.hardcopy.blechat.contents.ChatHistory;
+import com.hardcopy.blechat.contents.CommandHandler;
 import com.hardcopy.blechat.contents.CommandParser;
-import com.hardcopy.blechat.http.HttpAsyncTask;
-import com.hardcopy.blechat.http.HttpInterface;
-import com.hardcopy.blechat.http.HttpListener;
+import com.hardcopy.blechat.contents.DBHelper;
+import com.hardcopy.blechat.contents.RetentionEngine;
+import com.hardcopy.blechat.http.ThingSpeakUploader;
 import com.hardcopy.blechat.utils.AppSettings;
 import com.hardcopy.blechat.utils.Constants;
 import com.hardcopy.blechat.utils.Logs;
@@ -44,6 +50,12 @@ import android.widget.Toast;
 public class BTCTemplateService extends Service {
 	private static final String TAG = "LLService";
 	
+	// Log files
+	private static final String LOG_DIR = "logs";
+	private static final long LOG_FILE_SIZE = 256 * 1024;
+	private static final int LOG_FILE_COUNT = 3;
+	private static final long LOG_FLUSH_TIMEOUT = 20;		// Runs on main thread in onDestroy
+	
 	// Context, System
 	private Context mContext = null;
 	private static Handler mActivityHandler = null;
@@ -57,6 +69,11 @@ public class BTCTemplateService extends Service {
 	private boolean mIsBleSupported = true;
 	private ConnectionInfo mConnectionInfo = null;		// Remembers connection info when BT connection is made 
 	private CommandParser mCommandParser = null;
+	private ChatHistory mChatHistory = null;			// Saves received and sent messages
+	private ExecutorService mCommandExecutor = null;		// Runs command handlers in arrival order
+	private ThingSpeakUploader mThingSpeakUploader = null;
+	private RetentionEngine mRetentionEngine = null;		// Limits growth of accel data
+	private FrameDispatcher mFrameDispatcher = null;		// Delivers data and state to activity once per frame
 	
 	private TransactionBuilder mTransactionBuilder = null;
 	private TransactionReceiver mTransactionReceiver = null;
@@ -122,6 +139,7 @@ public class BTCTemplateService extends Service {
 		Logs.d(TAG, "# Service : initialize ---");
 		
 		AppSettings.initializeAppSettings(mContext);
+		Logs.setFileSink(new File(mContext.getFilesDir(), LOG_DIR), LOG_FILE_SIZE, LOG_FILE_COUNT);
 		startServiceMonitoring();
 		
 		// Use this check to determine whether BLE is supported on the device. Then
@@ -134,6 +152,16 @@ public class BTCTemplateService extends Service {
 		// Make instances
 		mConnectionInfo = ConnectionInfo.getInstance(mContext);
 		mCommandParser = new CommandParser();
+		mChatHistory = ChatHistory.getInstance(mContext);
+		registerCommands();
+		mCommandExecutor = Executors.newSingleThreadExecutor();
+		mThingSpeakUploader = new ThingSpeakUploader(mContext);
+		mThingSpeakUploader.setDefaultChannelId(AppSettings.getThingSpeakChannel());
+		mThingSpeakUploader.start();
+		// No report writer in this app. Ingest activity is given by notifyIngest().
+		mRetentionEngine = new RetentionEngine(mContext, null);
+		mRetentionEngine.start();
+		mFrameDispatcher = new FrameDispatcher(FrameDispatcher.INTERVAL_VSYNC);
 		
 		// Get local Bluetooth adapter
 		if(mBluetoothAdapter == null)
@@ -171,8 +199,23 @@ public class BTCTemplateService extends Service {
 	}
 	
 	/**
-	 * 
+	 * Send BT state to activity. State changes are coalesced per frame.
+	 */
+	private void postStateToActivity(int what) {
+		if(mFrameDispatcher != null)
+			mFrameDispatcher.postState(what);
+		else if(mActivityHandler != null)
+			mActivityHandler.obtainMessage(what).sendToTarget();
+	}
+	
+	/**
+	 * Register commands which can be found in received stream.
+	 * Add your device commands here.
 	 */
+	private void registerCommands() {
+		mCommandParser.registerCommand(CommandParser.COMMAND_THINGSPEAK, 
+				CommandParser.THINGSPEAK_PREFIX, CommandParser.COMMAND_SUFFIX, mThingSpeakHandler);
+	}
 	
 	
 	/*****************************************************
@@ -181,6 +224,31 @@ public class BTCTemplateService extends Service {
 	public void finalizeService() {
 		Logs.d(TAG, "# Service : finalize ---");
 		
+		// Stop command handlers
+		if(mCommandExecutor != null) {
+			mCommandExecutor.shutdownNow();
+			mCommandExecutor = null;
+		}
+		if(mThingSpeakUploader != null) {
+			Logs.d(TAG, "# ThingSpeak uploads: accepted=" + mThingSpeakUploader.getAcceptedCount()
+					+ ", dropped=" + mThingSpeakUploader.getDroppedCount());
+			mThingSpeakUploader.stop();
+			mThingSpeakUploader = null;
+		}
+		if(mChatHistory != null)
+			mChatHistory.flush();
+		if(mRetentionEngine != null) {
+			mRetentionEngine.stop();
+			mRetentionEngine = null;
+		}
+		if(mFrameDispatcher != null) {
+			Logs.d(TAG, "# UI dispatch: posted=" + mFrameDispatcher.getPostCount()
+					+ ", frames=" + mFrameDispatcher.getFrameCount());
+			mFrameDispatcher.cancel();
+			mFrameDispatcher = null;
+		}
+		Logs.flush(LOG_FLUSH_TIMEOUT);
+		
 		// Stop the bluetooth session
 		mBluetoothAdapter = null;
 		if (mBleManager != null) {
@@ -195,6 +263,8 @@ public class BTCTemplateService extends Service {
 	 */
 	public void setupService(Handler h) {
 		mActivityHandler = h;
+		if(mFrameDispatcher != null)
+			mFrameDispatcher.setTarget(h);
 		
 		// Double check BT manager instance
 		if(mBleManager == null)
@@ -290,11 +360,22 @@ public class BTCTemplateService extends Service {
 		return mConnectionInfo.getDeviceName();
 	}
 
+	/**
+	 * Set ThingSpeak channel ID. Updates are sent with bulk update endpoint when it is set.
+	 * @param channelId		channel ID, or null or empty to send updates one by one
+	 */
+	public void setThingSpeakChannel(String channelId) {
+		if(mThingSpeakUploader != null)
+			mThingSpeakUploader.setDefaultChannelId(channelId);
+	}
+	
 	/**
 	 * Send message to remote device using Bluetooth
 	 */
 	public void sendMessageToRemote(String message) {
 		sendMessageToDevice(message);
+		if(mChatHistory != null)
+			mChatHistory.append(DBHelper.CHAT_SENT, message);
 	}
 	
 	/**
@@ -332,23 +413,26 @@ public class BTCTemplateService extends Service {
 			// Bluetooth state changed
 			case BleManager.MESSAGE_STATE_CHANGE:
 				// Bluetooth state Changed
-				Logs.d(TAG, "Service - MESSAGE_STATE_CHANGE: " + msg.arg1);
+				Logs.d(TAG, "Service - MESSAGE_STATE_CHANGE: {}", msg.arg1);
 				
 				switch (msg.arg1) {
 				case BleManager.STATE_NONE:
-					mActivityHandler.obtainMessage(Constants.MESSAGE_BT_STATE_INITIALIZED).sendToTarget();
+					postStateToActivity(Constants.MESSAGE_BT_STATE_INITIALIZED);
 					break;
 					
 				case BleManager.STATE_CONNECTING:
-					mActivityHandler.obtainMessage(Constants.MESSAGE_BT_STATE_CONNECTING).sendToTarget();
+					postStateToActivity(Constants.MESSAGE_BT_STATE_CONNECTING);
 					break;
 					
 				case BleManager.STATE_CONNECTED:
-					mActivityHandler.obtainMessage(Constants.MESSAGE_BT_STATE_CONNECTED).sendToTarget();
+					// Partial frame of previous link must not be joined with new bytes
+					if(mTransactionReceiver != null)
+						mTransactionReceiver.reset();
+					postStateToActivity(Constants.MESSAGE_BT_STATE_CONNECTED);
 					break;
 					
 				case BleManager.STATE_IDLE:
-					mActivityHandler.obtainMessage(Constants.MESSAGE_BT_STATE_INITIALIZED).sendToTarget();
+					postStateToActivity(Constants.MESSAGE_BT_STATE_INITIALIZED);
 					break;
 				}
 				break;
@@ -365,26 +449,40 @@ public class BTCTemplateService extends Service {
 			case BleManager.MESSAGE_READ:
 				Logs.d(TAG, "Service - MESSAGE_READ: ");
 				
-				String strMsg = (String) msg.obj;
-				int readCount = strMsg.length();
+				ByteSlice slice = (ByteSlice) msg.obj;
+				if(slice == null)
+					break;
 				// send bytes in the buffer to activity
-				if(strMsg != null && strMsg.length() > 0) {
-					mActivityHandler.obtainMessage(Constants.MESSAGE_READ_CHAT_DATA, strMsg)
-							.sendToTarget();
-					int command = mCommandParser.setString(strMsg);
-					if(command == CommandParser.COMMAND_THINGSPEAK) {
-						String parameters = mCommandParser.getParameterString();
-						StringBuilder requestUrl = new StringBuilder("http://184.106.153.149/update?");
-						if(parameters != null && parameters.length() > 0)
-							requestUrl.append(parameters);
-						
-						//Logs.d("# Find thingspeak command. URL = "+requestUrl);
-						
-						HttpAsyncTask task = new HttpAsyncTask(mHTTPListener, 0, requestUrl.toString(), HttpInterface.REQUEST_TYPE_GET);
-						task.execute();
-						mCommandParser.resetParser();
+				if(slice.getLength() > 0) {
+					// Retention passes wait while data is coming in
+					if(mRetentionEngine != null)
+						mRetentionEngine.notifyIngest();
+					if(mTransactionReceiver != null)
+						mTransactionReceiver.setByteArray(slice.getData(), slice.getLength());
+					
+					// Activity gets bytes of a frame at once
+					if(mFrameDispatcher != null) {
+						mFrameDispatcher.postData(slice.getData(), slice.getLength());
+					} else if(mActivityHandler != null) {
+						// Activity decodes and recycles it
+						slice.retain();
+						mActivityHandler.obtainMessage(Constants.MESSAGE_READ_CHAT_DATA, slice)
+								.sendToTarget();
 					}
+					if(mChatHistory != null)
+						mChatHistory.append(DBHelper.CHAT_RECEIVED, slice.getData(), 0, slice.getLength());
+					
+					// Handle every command completed by this chunk in arrival order
+					mCommandParser.setBytes(slice.getData(), 0, slice.getLength());
+					if(mCommandExecutor != null)
+						mCommandParser.dispatchCommands(mCommandExecutor);
 				}
+				slice.recycle();
+				break;
+				
+			// ATT MTU is negotiated
+			case BleManager.MESSAGE_MTU_CHANGED:
+				Logs.d(TAG, "Service - MESSAGE_MTU_CHANGED: {}", msg.arg1);
 				break;
 				
 			case BleManager.MESSAGE_DEVICE_NAME:
@@ -419,20 +517,12 @@ public class BTCTemplateService extends Service {
 	}	// End of class MainHandler
 	
 	
-	// HTTP Listener
-	private HttpListener mHTTPListener = new HttpListener() {
-		@Override
-		public void OnReceiveHttpResponse(int type, String strResult, int resultCode) 
-		{
-			if(strResult != null && strResult.length() > 0 
-					&& resultCode == HttpInterface.MSG_HTTP_RESULT_CODE_OK){
-				Logs.d(TAG, "# HTTP Resesponse = "+strResult);
-			}
-		}	// End of OnReceiveHttpRequestResult()
-		
+	// Queues thingspeak:[parameters][*] command to ThingSpeak uploader
+	private CommandHandler mThingSpeakHandler = new CommandHandler() {
 		@Override
-		public void OnReceiveFileResponse(int type, String id, String filepath, String url, int resultCode) {
-			// Disabled
+		public void onCommand(int command, String parameters) {
+			if(mThingSpeakUploader != null)
+				mThingSpeakUploader.addUpdate(parameters);
 		}
 	};
 	
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.service;
+
+import com.hardcopy.blechat.bluetooth.ByteSlice;
+import com.hardcopy.blechat.utils.Constants;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.view.Choreographer;
+
+/**
+ * Coalesces messages from service to activity.
+ *
+ * Received bytes are appended to one buffer and the latest BT state is remembered.
+ * Once per vsync (or once per interval), everything collected is delivered to the activity
+ * handler: the state message first, then one MESSAGE_READ_CHAT_DATA with all bytes of the frame.
+ * Messages are dispatched directly in the frame callback, so nothing is queued
+ * on main looper per notification. No bytes are dropped. The buffer grows when needed.
+ */
+public class FrameDispatcher {
+
+	public static final long INTERVAL_VSYNC = 0;
+
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+	private static final int NO_STATE = Integer.MIN_VALUE;
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private Handler mTarget = null;
+	private long mInterval;
+
+	// Collected in current frame
+	private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private int mLength = 0;
+	private int mState = NO_STATE;
+	private boolean mIsScheduled = false;
+
+	// Statistics
+	private long mPostCount = 0;
+	private long mFrameCount = 0;
+
+
+	/**
+	 * @param interval		INTERVAL_VSYNC for one batch per frame, or batch interval(ms)
+	 */
+	public FrameDispatcher(long interval) {
+		mInterval = (interval < 0 ? INTERVAL_VSYNC : interval);
+	}
+
+
+	/*****************************************************
+	 *	Public methods
+	 ******************************************************/
+
+	/**
+	 * Set activity handler. Must be a handler of main looper.
+	 */
+	public synchronized void setTarget(Handler h) {
+		mTarget = h;
+	}
+
+	public synchronized void setInterval(long interval) {
+		mInterval = (interval < 0 ? INTERVAL_VSYNC : interval);
+	}
+
+	/**
+	 * Add received bytes. Bytes are copied.
+	 */
+	public void postData(byte[] data, int length) {
+		if(data == null || length < 1)
+			return;
+		synchronized (this) {
+			if(mLength + length > mBuffer.length) {
+				byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + length)];
+				System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+				mBuffer = buffer;
+			}
+			System.arraycopy(data, 0, mBuffer, mLength, length);
+			mLength += length;
+			mPostCount++;
+		}
+		schedule();
+	}
+
+	/**
+	 * Set BT state. Only the latest state of a frame is delivered.
+	 * @param what		Constants.MESSAGE_BT_STATE_XXX
+	 */
+	public void postState(int what) {
+		synchronized (this) {
+			mState = what;
+			mPostCount++;
+		}
+		schedule();
+	}
+
+	/**
+	 * Drop collected data and stop delivery
+	 */
+	public synchronized void cancel() {
+		mLength = 0;
+		mState = NO_STATE;
+		mMainHandler.removeCallbacks(mFlushRunnable);
+		mMainHandler.removeCallbacks(mScheduleRunnable);
+		if(mIsScheduled && Looper.myLooper() == Looper.getMainLooper())
+			Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+		mIsScheduled = false;
+	}
+
+	public synchronized long getPostCount() {
+		return mPostCount;
+	}
+
+	/**
+	 * Returns number of batches delivered to activity
+	 */
+	public synchronized long getFrameCount() {
+		return mFrameCount;
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	private void schedule() {
+		long interval;
+		synchronized (this) {
+			if(mIsScheduled)
+				return;
+			mIsScheduled = true;
+			interval = mInterval;
+		}
+		if(interval > INTERVAL_VSYNC)
+			mMainHandler.postDelayed(mFlushRunnable, interval);
+		else if(Looper.myLooper() == Looper.getMainLooper())
+			Choreographer.getInstance().postFrameCallback(mFrameCallback);
+		else
+			mMainHandler.post(mScheduleRunnable);	// Choreographer belongs to main thread
+	}
+
+	/**
+	 * Deliver collected state and bytes. Runs on main thread.
+	 */
+	private void flush() {
+		Handler target;
+		int state;
+		ByteSlice slice = null;
+		synchronized (this) {
+			mIsScheduled = false;
+			target = mTarget;
+			state = mState;
+			mState = NO_STATE;
+			if(target != null && mLength > 0)
+				slice = ByteSlice.obtain(mBuffer, 0, mLength);
+			mLength = 0;
+			if(target == null || (state == NO_STATE && slice == null))
+				return;
+			mFrameCount++;
+		}
+
+		if(state != NO_STATE)
+			dispatch(target, target.obtainMessage(state));
+		if(slice != null)
+			dispatch(target, target.obtainMessage(Constants.MESSAGE_READ_CHAT_DATA, slice));	// Activity recycles slice
+	}
+
+	private void dispatch(Handler target, Message msg) {
+		target.dispatchMessage(msg);
+		msg.recycle();
+	}
+
+	private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			flush();
+		}
+	};
+
+	private final Runnable mScheduleRunnable = new Runnable() {
+		@Override
+		public void run() {
+			Choreographer.getInstance().postFrameCallback(mFrameCallback);
+		}
+	};
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+}
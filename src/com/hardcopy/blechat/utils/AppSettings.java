@@ -23,6 +23,7 @@ public class AppSettings {
 
 	// Constants
 	public static final int SETTINGS_BACKGROUND_SERVICE = 1;
+	public static final int SETTINGS_THINGSPEAK_CHANNEL = 2;
 	
 	
 	private static boolean mIsInitialized = false;
@@ -30,6 +31,7 @@ public class AppSettings {
 	
 	// Setting values
 	private static boolean mUseBackgroundService;
+	private static String mThingSpeakChannel;
 	
 	
 	public static void initializeAppSettings(Context c) {
@@ -40,6 +42,7 @@ public class AppSettings {
 		
 		// Load setting values from preference
 		mUseBackgroundService = loadBgService();
+		mThingSpeakChannel = loadThingSpeakChannel();
 		
 		mIsInitialized = true;
 	} 
@@ -57,6 +60,11 @@ public class AppSettings {
 			editor.commit();
 			mUseBackgroundService = boolValue;
 			break;
+		case SETTINGS_THINGSPEAK_CHANNEL:
+			editor.putString(Constants.PREFERENCE_KEY_THINGSPEAK_CHANNEL, stringValue);
+			editor.commit();
+			mThingSpeakChannel = stringValue;
+			break;
 		default:
 			editor.commit();
 			break;
@@ -81,4 +89,21 @@ public class AppSettings {
 		return mUseBackgroundService;
 	}
 	
+	/**
+	 * Load ThingSpeak channel ID from preferences
+	 * @return	String		channel ID or empty string
+	 */
+	public static String loadThingSpeakChannel() {
+		SharedPreferences prefs = mContext.getSharedPreferences(Constants.PREFERENCE_NAME, Context.MODE_PRIVATE);
+		return prefs.getString(Constants.PREFERENCE_KEY_THINGSPEAK_CHANNEL, "");
+	}
+	
+	/**
+	 * Returns ThingSpeak channel ID. Updates are sent with bulk update when it is set.
+	 * @return	String		channel ID or empty string
+	 */
+	public static String getThingSpeakChannel() {
+		return mThingSpeakChannel;
+	}
+	
 }
@@ -10,6 +10,7 @@ public class Constants {
     // Preference
 	public static final String PREFERENCE_NAME = "btchatPref";
 	public static final String PREFERENCE_KEY_BG_SERVICE = "BackgroundService";
+	public static final String PREFERENCE_KEY_THINGSPEAK_CHANNEL = "ThingSpeakChannel";
 	public static final String PREFERENCE_CONN_INFO_ADDRESS = "device_address";
 	public static final String PREFERENCE_CONN_INFO_NAME = "device_name";
 	
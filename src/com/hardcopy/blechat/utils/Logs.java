@@ -16,60 +16,470 @@
 
 package com.hardcopy.blechat.utils;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 import android.util.Log;
 
+/**
+ * Asynchronous logger.
+ *
+ * Callers only put a record into a lock-free ring buffer of preallocated records.
+ * A background thread formats records and writes them to logcat and,
+ * if set, to a rotating file. When the ring is full, new records are dropped and counted.
+ *
+ * Use parameterized methods in hot paths. Message is built on the log thread
+ * and nothing is done when the level is disabled:
+ * 		Logs.d(TAG, "# MTU changed: {}", mtu);
+ * Each {} is replaced by the next argument. Arguments must be safe to read
+ * from another thread (immutable values or objects whose toString() doesn't change).
+ */
 public class Logs {
-	
+
 	private static final String TAG = "BTC Template";
 	public static boolean mIsEnabled = true;
-	
-	
-	public static void v(String msg) {
-		if(mIsEnabled) {
-			Log.v(TAG, msg);
+
+	// Levels, same as android.util.Log
+	public static final int LEVEL_VERBOSE = Log.VERBOSE;
+	public static final int LEVEL_DEBUG = Log.DEBUG;
+	public static final int LEVEL_INFO = Log.INFO;
+	public static final int LEVEL_ERROR = Log.ERROR;
+
+	private static final int RING_SIZE = 1024;			// Must be power of 2
+	private static final long IDLE_WAIT_NANOS = 1000L * 1000 * 1000;
+	private static final long DEFAULT_FILE_SIZE = 256 * 1024;
+	private static final String FILE_NAME = "log";
+	private static final String FILE_EXT = ".txt";
+
+	private static volatile int mLevel = LEVEL_VERBOSE;
+
+	// Ring buffer. Slot sequence tells whether the slot is free for producer or ready for consumer.
+	private static final Record[] mRing = new Record[RING_SIZE];
+	private static final AtomicLongArray mSequences = new AtomicLongArray(RING_SIZE);
+	private static final AtomicLong mTail = new AtomicLong(0);		// Next slot to write
+	private static long mHead = 0;										// Next slot to read. Log thread only.
+	private static final AtomicLong mDropped = new AtomicLong(0);
+	private static volatile long mDrained = 0;			// Written and flushed
+	private static volatile boolean mIsWaiting = false;
+
+	// File sink. Log thread only, except settings.
+	private static volatile File mFileDir = null;
+	private static volatile long mMaxFileSize = 0;
+	private static volatile int mMaxFiles = 0;
+	private static OutputStream mFileStream = null;
+	private static File mOpenedDir = null;
+	private static long mFileSize = 0;
+	private static boolean mIsFileDirty = false;
+	private static SimpleDateFormat mDateFormat = null;
+	private static long mPrefixSecond = -1;			// Time stamp is formatted once per second
+	private static String mPrefix = null;
+
+	private static final Thread mThread;
+
+	static {
+		for(int i=0; i<RING_SIZE; i++) {
+			mRing[i] = new Record();
+			mSequences.set(i, i);
 		}
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "Logs");
+		mThread.setDaemon(true);
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.start();
 	}
-	
-	public static void v(String tag, String msg) {
-		if(mIsEnabled) {
-			Log.v(tag, msg);
+
+
+	/*****************************************************
+	 *	Settings
+	 ******************************************************/
+
+	/**
+	 * Records below this level are ignored at call site
+	 */
+	public static void setLevel(int level) {
+		mLevel = level;
+	}
+
+	public static boolean isLoggable(int level) {
+		return mIsEnabled && level >= mLevel;
+	}
+
+	/**
+	 * Also write logs to files in the directory. Set null to stop.
+	 * @param dir			log directory. log.txt is current file, log.1.txt ~ log.(maxFiles-1).txt are older.
+	 * @param maxFileSize	rotate when current file is larger than this (bytes)
+	 * @param maxFiles		number of files to keep
+	 */
+	public static void setFileSink(File dir, long maxFileSize, int maxFiles) {
+		mMaxFileSize = (maxFileSize > 0 ? maxFileSize : DEFAULT_FILE_SIZE);
+		mMaxFiles = Math.max(1, maxFiles);
+		mFileDir = dir;
+		LockSupport.unpark(mThread);
+	}
+
+	/**
+	 * Returns number of records dropped because ring buffer was full
+	 */
+	public static long getDroppedCount() {
+		return mDropped.get();
+	}
+
+	/**
+	 * Wait until records enqueued before this call are written, at most timeout(ms)
+	 */
+	public static void flush(long timeout) {
+		long target = mTail.get();
+		long deadline = System.currentTimeMillis() + timeout;
+		LockSupport.unpark(mThread);
+		while(mDrained < target && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
 		}
 	}
-	
+
+
+	/*****************************************************
+	 *	Log methods
+	 ******************************************************/
+
+	public static void v(String msg) {
+		log(LEVEL_VERBOSE, TAG, msg, 0, null, null, 0, 0);
+	}
+
+	public static void v(String tag, String msg) {
+		log(LEVEL_VERBOSE, tag, msg, 0, null, null, 0, 0);
+	}
+
+	public static void v(String tag, String format, Object arg) {
+		log(LEVEL_VERBOSE, tag, format, 1, arg, null, 0, 0);
+	}
+
 	public static void d(String msg) {
-		if(mIsEnabled) {
-			Log.d(TAG, msg);
-		}
+		log(LEVEL_DEBUG, TAG, msg, 0, null, null, 0, 0);
 	}
-	
+
 	public static void d(String tag, String msg) {
-		if(mIsEnabled) {
-			Log.d(tag, msg);
-		}
+		log(LEVEL_DEBUG, tag, msg, 0, null, null, 0, 0);
 	}
-	
+
+	public static void d(String tag, String format, Object arg) {
+		log(LEVEL_DEBUG, tag, format, 1, arg, null, 0, 0);
+	}
+
+	public static void d(String tag, String format, Object arg1, Object arg2) {
+		log(LEVEL_DEBUG, tag, format, 2, arg1, arg2, 0, 0);
+	}
+
+	/**
+	 * Number arguments are not boxed
+	 */
+	public static void d(String tag, String format, long arg) {
+		log(LEVEL_DEBUG, tag, format, Record.NUMBER_ARGS | 1, null, null, arg, 0);
+	}
+
+	public static void d(String tag, String format, long arg1, long arg2) {
+		log(LEVEL_DEBUG, tag, format, Record.NUMBER_ARGS | 2, null, null, arg1, arg2);
+	}
+
 	public static void e(String msg) {
-		if(mIsEnabled) {
-			Log.e(TAG, msg);
-		}
+		log(LEVEL_ERROR, TAG, msg, 0, null, null, 0, 0);
 	}
-	
+
 	public static void e(String tag, String msg) {
-		if(mIsEnabled) {
-			Log.e(tag, msg);
-		}
+		log(LEVEL_ERROR, tag, msg, 0, null, null, 0, 0);
+	}
+
+	public static void e(String tag, String format, Object arg) {
+		log(LEVEL_ERROR, tag, format, 1, arg, null, 0, 0);
 	}
-	
+
 	public static void i(String msg) {
-		if(mIsEnabled) {
-			Log.e(TAG, msg);
-		}
+		log(LEVEL_INFO, TAG, msg, 0, null, null, 0, 0);
 	}
-	
+
 	public static void i(String tag, String msg) {
-		if(mIsEnabled) {
-			Log.e(tag, msg);
+		log(LEVEL_INFO, tag, msg, 0, null, null, 0, 0);
+	}
+
+	public static void i(String tag, String format, Object arg) {
+		log(LEVEL_INFO, tag, format, 1, arg, null, 0, 0);
+	}
+
+
+	/*****************************************************
+	 *	Private methods
+	 ******************************************************/
+
+	/**
+	 * Claim a slot and fill it. Multiple producers, no lock.
+	 */
+	private static void log(int level, String tag, String format, int argInfo,
+			Object arg1, Object arg2, long num1, long num2) {
+		if(!mIsEnabled || level < mLevel || format == null)
+			return;
+
+		long pos = mTail.get();
+		while(true) {
+			int index = (int) (pos & (RING_SIZE - 1));
+			long diff = mSequences.get(index) - pos;
+			if(diff == 0) {
+				if(mTail.compareAndSet(pos, pos + 1))
+					break;
+				pos = mTail.get();
+			} else if(diff < 0) {
+				// Full. Log thread can't keep up.
+				mDropped.incrementAndGet();
+				return;
+			} else {
+				pos = mTail.get();
+			}
+		}
+
+		int index = (int) (pos & (RING_SIZE - 1));
+		Record r = mRing[index];
+		r.mTime = System.currentTimeMillis();
+		r.mLevel = level;
+		r.mTag = tag;
+		r.mFormat = format;
+		r.mArgInfo = argInfo;
+		r.mArg1 = arg1;
+		r.mArg2 = arg2;
+		r.mNum1 = num1;
+		r.mNum2 = num2;
+		mSequences.set(index, pos + 1);		// Publish
+		if(mIsWaiting)
+			LockSupport.unpark(mThread);
+	}
+
+	/**
+	 * Log thread
+	 */
+	private static void drainLoop() {
+		StringBuilder sb = new StringBuilder(256);
+		long reportedDropped = 0;
+
+		while(true) {
+			int index = (int) (mHead & (RING_SIZE - 1));
+			if(mSequences.get(index) != mHead + 1) {
+				// Empty
+				long dropped = mDropped.get();
+				if(dropped != reportedDropped) {
+					safeWrite(LEVEL_ERROR, TAG, "# Logs dropped: " + (dropped - reportedDropped), sb, 0);
+					reportedDropped = dropped;
+				}
+				flushFile();
+				mDrained = mHead;
+				// Producers unpark this thread only while it is waiting. Check again after setting the flag.
+				mIsWaiting = true;
+				if(mSequences.get(index) != mHead + 1)
+					LockSupport.parkNanos(IDLE_WAIT_NANOS);
+				mIsWaiting = false;
+				continue;
+			}
+
+			Record r = mRing[index];
+			int level = r.mLevel;
+			String tag = r.mTag;
+			long time = r.mTime;
+			String msg;
+			try {
+				msg = r.format(sb);
+			} catch(Throwable t) {
+				// toString() of an argument failed. Keep the format so the call site can be found.
+				msg = "# Cannot format log (" + t.getClass().getName() + "): " + r.mFormat;
+			}
+			r.clear();
+			mSequences.set(index, mHead + RING_SIZE);		// Free the slot
+			mHead++;
+
+			safeWrite(level, tag, msg, sb, time);
+		}
+	}
+
+	/**
+	 * This is the only log thread. A failing record must not stop it.
+	 */
+	private static void safeWrite(int level, String tag, String msg, StringBuilder sb, long time) {
+		try {
+			write(level, tag, msg, sb, time);
+		} catch(Throwable t) {
+			// Drop this record only
+		}
+	}
+
+	private static void write(int level, String tag, String msg, StringBuilder sb, long time) {
+		Log.println(level, tag, msg);
+
+		if(!openFile())
+			return;
+		if(time < 1)
+			time = System.currentTimeMillis();
+		long second = time / 1000;
+		if(second != mPrefixSecond) {
+			if(mDateFormat == null)
+				mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.", Locale.US);
+			mPrefix = mDateFormat.format(new Date(second * 1000));
+			mPrefixSecond = second;
+		}
+		int millis = (int) (time % 1000);
+		sb.setLength(0);
+		sb.append(mPrefix).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+				.append((char) ('0' + millis % 10)).append(' ').append(levelChar(level)).append('/')
+				.append(tag).append(": ").append(msg).append('\n');
+		try {
+			byte[] bytes = sb.toString().getBytes("UTF-8");
+			mFileStream.write(bytes);
+			mFileSize += bytes.length;
+			mIsFileDirty = true;
+			if(mFileSize >= mMaxFileSize)
+				rotate();
+		} catch(IOException e) {
+			closeFile();
 		}
 	}
-	
+
+	private static char levelChar(int level) {
+		switch(level) {
+		case LEVEL_VERBOSE:
+			return 'V';
+		case LEVEL_DEBUG:
+			return 'D';
+		case LEVEL_INFO:
+			return 'I';
+		default:
+			return 'E';
+		}
+	}
+
+	private static boolean openFile() {
+		File dir = mFileDir;
+		if(dir != mOpenedDir)
+			closeFile();
+		if(dir == null)
+			return false;
+		if(mFileStream != null)
+			return true;
+		try {
+			dir.mkdirs();
+			File file = new File(dir, FILE_NAME + FILE_EXT);
+			mFileSize = file.length();
+			mFileStream = new BufferedOutputStream(new FileOutputStream(file, true), 8 * 1024);
+			mOpenedDir = dir;
+		} catch(IOException e) {
+			mFileDir = null;		// Don't retry for every record
+			Log.e(TAG, "# Cannot open log file: " + e.getMessage());
+		}
+		return mFileStream != null;
+	}
+
+	private static void flushFile() {
+		if(mFileStream == null || !mIsFileDirty)
+			return;
+		try {
+			mFileStream.flush();
+			mIsFileDirty = false;
+		} catch(IOException e) {
+			closeFile();
+		}
+	}
+
+	private static void closeFile() {
+		if(mFileStream != null) {
+			try {
+				mFileStream.close();
+			} catch(IOException e) {}
+		}
+		mFileStream = null;
+		mOpenedDir = null;
+		mIsFileDirty = false;
+	}
+
+	/**
+	 * log.txt -> log.1.txt -> log.2.txt ... Oldest file is deleted.
+	 */
+	private static void rotate() {
+		File dir = mOpenedDir;
+		closeFile();
+		int maxFiles = mMaxFiles;
+		new File(dir, FILE_NAME + "." + (maxFiles - 1) + FILE_EXT).delete();
+		for(int i=maxFiles-2; i>=0; i--) {
+			File from = new File(dir, i == 0 ? FILE_NAME + FILE_EXT : FILE_NAME + "." + i + FILE_EXT);
+			if(from.exists())
+				from.renameTo(new File(dir, FILE_NAME + "." + (i + 1) + FILE_EXT));
+		}
+		new File(dir, FILE_NAME + FILE_EXT).delete();	// maxFiles == 1
+	}
+
+
+	/*****************************************************
+	 *	Sub classes
+	 ******************************************************/
+
+	/**
+	 * A log call waiting in the ring
+	 */
+	private static class Record {
+		static final int NUMBER_ARGS = 0x100;
+
+		long mTime;
+		int mLevel;
+		String mTag;
+		String mFormat;
+		int mArgInfo;		// argument count | NUMBER_ARGS
+		Object mArg1;
+		Object mArg2;
+		long mNum1;
+		long mNum2;
+
+		/**
+		 * Replace each {} with next argument
+		 */
+		String format(StringBuilder sb) {
+			int count = mArgInfo & 0xFF;
+			if(count == 0)
+				return mFormat;
+			boolean isNumber = (mArgInfo & NUMBER_ARGS) != 0;
+
+			sb.setLength(0);
+			int start = 0;
+			for(int i=0; i<count; i++) {
+				int found = mFormat.indexOf("{}", start);
+				if(found < 0)
+					break;
+				sb.append(mFormat, start, found);
+				if(isNumber)
+					sb.append(i == 0 ? mNum1 : mNum2);
+				else
+					sb.append(i == 0 ? mArg1 : mArg2);
+				start = found + 2;
+			}
+			sb.append(mFormat, start, mFormat.length());
+			return sb.toString();
+		}
+
+		void clear() {
+			mTag = null;
+			mFormat = null;
+			mArg1 = null;
+			mArg2 = null;
+		}
+	}
+
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Bluetooth Connection Template
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hardcopy.blechat.utils;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket rate limiter.
+ * A token is added every refill interval up to the capacity.
+ * Each request takes one token.
+ */
+public class TokenBucket {
+	
+	private final int mCapacity;
+	private final long mRefillInterval;
+	
+	private int mTokens;
+	private long mLastRefillTime;
+	
+	/**
+	 * @param capacity			maximum tokens (burst size)
+	 * @param refillInterval	milliseconds to add a token
+	 */
+	public TokenBucket(int capacity, long refillInterval) {
+		mCapacity = (capacity < 1 ? 1 : capacity);
+		mRefillInterval = (refillInterval < 1 ? 1 : refillInterval);
+		mTokens = mCapacity;
+		mLastRefillTime = SystemClock.elapsedRealtime();
+	}
+	
+	/**
+	 * Take a token if available
+	 * @return	boolean		true if a token is taken
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if(mTokens < 1)
+			return false;
+		mTokens--;
+		return true;
+	}
+	
+	/**
+	 * Returns milliseconds until next token is available
+	 */
+	public synchronized long getWaitTime() {
+		refill();
+		if(mTokens > 0)
+			return 0;
+		return mLastRefillTime + mRefillInterval - SystemClock.elapsedRealtime();
+	}
+	
+	private void refill() {
+		long now = SystemClock.elapsedRealtime();
+		long added = (now - mLastRefillTime) / mRefillInterval;
+		if(added > 0) {
+			mTokens = (int) Math.min(mCapacity, mTokens + added);
+			mLastRefillTime += added * mRefillInterval;
+		}
+		if(mTokens == mCapacity)
+			mLastRefillTime = now;
+	}
+	
+}
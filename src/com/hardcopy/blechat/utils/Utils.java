@@ -38,8 +38,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
-import com.hardcopy.blechat.R;
-
 public class Utils {
 	private Context mContext;
 	